@@ -0,0 +1,438 @@
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.LongSupplier;
+
+/* Class with the workloads the JMH benchmarks time. The benchmarks themselves
+   are in the jmidi.benchmarks package because JMH does not take benchmarks in
+   the default package, and classes in a package cannot use the library (which
+   is in the default package). So the benchmarks only ask for a workload by
+   name (through reflection, once, before anything is timed) and get back a
+   LongSupplier: everything the workload needs is set up by prepare, and each
+   call of the supplier is one run of what is timed. What it returns depends
+   on everything the run did, so the JIT cannot drop any of it.
+
+   A source is a file name (looked for in the directory given by the system
+   property jmidi.midiFiles, else MIDI_Files or ../MIDI_Files) or a
+   JMidiSyntheticGenerator spec (ex: synthetic:tracks=16,notes=200000).
+ */
+public class JMidiBenchmarkWorkloads {
+
+    public static final String MIDI_FILES_PROPERTY = "jmidi.midiFiles";
+
+    // Number of codes looked up per run of the lookup workloads.
+    public static final int LOOKUPS = 4096;
+
+    // Workloads that read a source, and ones that do not need one (lookups).
+    public static final String[] SOURCE_WORKLOADS = {"readEvents", "readSequence", "analyze",
+            "readExcerptFiltered", "readExcerptIndexed", "scanArchiveKeys", "decodeArchive", "pairNotes",
+            "buildClusters", "classifyChords", "transcribeText", "writeBinaryClusters", "writeMidi"};
+    public static final String[] LOOKUP_WORKLOADS = {"controlLookups", "keySignatureLookups", "noteLookups"};
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1){
+            System.out.println("Usage: java JMidiBenchmarkWorkloads <source (file in MIDI_Files or synthetic spec)> [workload]");
+            return;
+        }
+
+        // Runs every workload (or one) a few times, as a quick check outside of JMH
+        String[] workloads = args.length >= 2 ? new String[]{args[1]} : SOURCE_WORKLOADS;
+        for(String workload : workloads){
+            LongSupplier run = prepare(workload, args[0]);
+            long start = System.nanoTime();
+            long result = 0;
+            for(int i = 0; i < 10; i++)
+                result = run.getAsLong();
+            System.out.println(workload + ": " + result + ", " + (System.nanoTime() - start) / 10_000 + " us per run");
+        }
+    }
+
+    // Sets up a workload on a source (ignored by the lookup workloads) and returns one run of it.
+    public static LongSupplier prepare(String workload, String source) throws IOException {
+        JMidiNote.setUpChannelLookup();
+        JMidiControl.initMessageSet();
+        JMidiKeySign.initList();
+
+        switch (workload) {
+            case "controlLookups": return controlLookups();
+            case "keySignatureLookups": return keySignatureLookups();
+            case "noteLookups": return noteLookups();
+        }
+
+        byte[] file = load(source);
+        JMidiFileReader reader = new JMidiFileReader();
+        ByteBuffer data = ByteBuffer.wrap(file);
+
+        switch (workload) {
+            case "readEvents":
+                // Decoding only: every event goes to a handler that just adds it up
+                return () -> {
+                    EventCounter counter = new EventCounter();
+                    read(reader, data, counter);
+                    return counter.checksum;
+                };
+            case "readSequence":
+                // The same file loaded the javax.sound.midi way
+                return () -> {
+                    try {
+                        Sequence sequence = MidiSystem.getSequence(new ByteArrayInputStream(file));
+                        return sequence.getTickLength() + sequence.getTracks().length;
+                    } catch (IOException | InvalidMidiDataException e) {
+                        throw new IllegalStateException(e);
+                    }
+                };
+            case "analyze":
+                return () -> {
+                    JMidiAnalysis.Collector collector = new JMidiAnalysis.Collector();
+                    read(reader, data, collector);
+                    return collector.toAnalysis().getNotes().size();
+                };
+            case "pairNotes":
+                return pairNotes(reader, data);
+            case "readExcerptFiltered":
+            case "readExcerptIndexed":
+                return readExcerpt(workload.equals("readExcerptIndexed"), data);
+        }
+
+        JMidiAnalysis.Collector collector = new JMidiAnalysis.Collector();
+        read(reader, data, collector);
+        JMidiNoteTable notes = collector.toAnalysis().getNotes();
+        switch (workload) {
+            case "buildClusters":
+                // From the notes as they were paired (by track) to clusters: a copy to sort, then the cluster ends
+                JMidiNoteTable unsorted = unsortedCopy(notes);
+                return () -> {
+                    JMidiNoteTable copy = new JMidiNoteTable(unsorted.getPPQ(), unsorted.size());
+                    copy.addAll(unsorted);
+                    copy.sortByTickStart();
+                    long clusters = 0;
+                    for(int start = 0; start < copy.size(); start = copy.clusterEnd(start))
+                        clusters++;
+                    return clusters;
+                };
+            case "classifyChords":
+                int[] codes = new int[notes.size()];
+                return () -> {
+                    int clusters = JMidiChordAnalyzer.classifyClusters(notes, true, codes, null);
+                    long checksum = clusters;
+                    for(int i = 0; i < clusters; i++)
+                        checksum += codes[i];
+                    return checksum;
+                };
+            case "transcribeText":
+                // The whole text transcription, printed to a stream that only counts
+                return () -> {
+                    CountingStream counter = new CountingStream();
+                    PrintStream out = new PrintStream(counter);
+                    read(reader, data, new JMidiTranscriber(out));
+                    out.flush();
+                    return counter.count;
+                };
+            case "writeBinaryClusters":
+                return () -> {
+                    CountingStream counter = new CountingStream();
+                    try (JMidiBinaryClusterWriter writer = new JMidiBinaryClusterWriter(counter)) {
+                        writer.writeClusters(notes);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return counter.count;
+                };
+            case "scanArchiveKeys":
+            case "decodeArchive":
+                return scanArchive(workload.equals("decodeArchive"), notes);
+            case "writeMidi":
+                // Every event read back out as a MIDI file
+                return () -> {
+                    CountingStream counter = new CountingStream();
+                    read(reader, data, new JMidiFileWriter(counter));
+                    return counter.count;
+                };
+            default:
+                throw new IllegalArgumentException("Unknown workload: " + workload);
+        }
+    }
+
+    // Bytes of a source: a generated file for a spec, else a file in the MIDI files directory.
+    public static byte[] load(String source) throws IOException {
+        if(JMidiSyntheticGenerator.isSpec(source))
+            return JMidiSyntheticGenerator.parse(source).generate();
+        return Files.readAllBytes(midiFilesDirectory().resolve(source));
+    }
+
+    // Directory with the MIDI files: the jmidi.midiFiles property, else MIDI_Files in the working
+    // directory or the one above it (running from the benchmarks module).
+    public static Path midiFilesDirectory(){
+        String property = System.getProperty(MIDI_FILES_PROPERTY);
+        if(property != null)
+            return Paths.get(property);
+        Path here = Paths.get("MIDI_Files");
+        return Files.isDirectory(here) ? here : Paths.get("..", "MIDI_Files");
+    }
+
+    private static void read(JMidiFileReader reader, ByteBuffer data, JMidiEventHandler handler){
+        try {
+            reader.read(data.duplicate(), handler);
+        } catch (InvalidMidiDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Pairing only: the channel messages are decoded once, up front, into arrays, and each
+    // run pairs them into a new table (tracks are marked by a status of 0).
+    private static LongSupplier pairNotes(JMidiFileReader reader, ByteBuffer data){
+        MessageRecorder recorder = new MessageRecorder();
+        read(reader, data, recorder);
+        long[] ticks = Arrays.copyOf(recorder.ticks, recorder.size);
+        int[] messages = Arrays.copyOf(recorder.messages, recorder.size);
+        int ppq = recorder.ppq;
+
+        return () -> {
+            PairingRun run = new PairingRun(ppq, ticks.length / 2);
+            JMidiNotePairer pairer = new JMidiNotePairer(run);
+            for(int i = 0; i < ticks.length; i++){
+                int message = messages[i];
+                if(message == 0){
+                    run.track++;
+                    pairer.clear();
+                }
+                else
+                    pairer.onShortMessage(ticks[i], message & 0xFF, (message >> 8) & 0xFF, message >> 16);
+            }
+            return run.notes.size();
+        };
+    }
+
+    // Decoding an excerpt, the 16th of the file in the middle of it: with a tick window
+    // filter (decodes every track from its start up to the end of the excerpt) or with a
+    // JMidiTrackIndex built up front (decodes from the last checkpoint before the excerpt).
+    private static LongSupplier readExcerpt(boolean indexed, ByteBuffer data) throws IOException {
+        EventCounter lastTick = new EventCounter();
+        read(new JMidiFileReader(), data, lastTick);
+        long from = lastTick.maxTick / 2;
+        long to = from + lastTick.maxTick / 16 + 1;
+
+        JMidiFileReader reader = new JMidiFileReader();
+        if(!indexed){
+            reader.setFilter(new JMidiFilter().keepTicks(from, to));
+            return () -> {
+                EventCounter counter = new EventCounter();
+                read(reader, data, counter);
+                return counter.checksum;
+            };
+        }
+        JMidiTrackIndex index;
+        try {
+            index = JMidiTrackIndex.build(data);
+        } catch (InvalidMidiDataException e) {
+            throw new IOException(e);
+        }
+        return () -> {
+            EventCounter counter = new EventCounter();
+            try {
+                reader.readTicks(data.duplicate(), index, from, to, counter);
+            } catch (InvalidMidiDataException e) {
+                throw new IllegalStateException(e);
+            }
+            return counter.checksum;
+        };
+    }
+
+    // Scanning the notes from a JMidiCorpusArchive (written to a temporary file up front), on
+    // one thread: only the keys, or every column.
+    private static LongSupplier scanArchive(boolean allColumns, JMidiNoteTable notes) throws IOException {
+        Path file = Files.createTempFile("jmidi-benchmark", ".jmca");
+        file.toFile().deleteOnExit();
+        try (JMidiCorpusArchive.Writer writer = new JMidiCorpusArchive.Writer(file)) {
+            writer.add("notes", notes);
+        }
+        JMidiCorpusArchive archive = JMidiCorpusArchive.open(file);
+        int[] blocks = archive.findBlocks(0, Long.MAX_VALUE, 0, 127);
+        int columns = allColumns ? JMidiCorpusArchive.ALL_COLUMNS : JMidiCorpusArchive.KEYS;
+        return () -> {
+            long[] checksum = new long[1];
+            archive.forEachBlock(blocks, columns, block -> {
+                long sum = 0;
+                for(int i = 0; i < block.size(); i++)
+                    sum += block.getKey(i);
+                if(allColumns){
+                    for(int i = 0; i < block.size(); i++)
+                        sum += block.getTickStop(i) + block.getVelocity(i) + block.getChannel(i) + block.getTrack(i);
+                }
+                checksum[0] += sum;
+            });
+            return checksum[0];
+        };
+    }
+
+    // The notes in the order they were paired (by track, then by tick stop), like a collector
+    // has them before sorting.
+    private static JMidiNoteTable unsortedCopy(JMidiNoteTable notes){
+        JMidiNoteTable copy = new JMidiNoteTable(notes.getPPQ(), notes.size());
+        Integer[] order = new Integer[notes.size()];
+        for(int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> notes.getTrack(a) != notes.getTrack(b) ? Integer.compare(notes.getTrack(a), notes.getTrack(b))
+                : Long.compare(notes.getTickStop(a), notes.getTickStop(b)));
+        for(int i : order)
+            copy.add(notes.getTickStart(i), notes.getTickStop(i), notes.getChannel(i), notes.getKey(i),
+                    notes.getVelocity(i), notes.getTrack(i));
+        return copy;
+    }
+
+    private static LongSupplier controlLookups(){
+        int[] codes = randomCodes(JMidiControl.CODE_COUNT);
+        return () -> {
+            long checksum = 0;
+            for(int code : codes){
+                checksum += JMidiControl.codeNameOf(code).length();
+                checksum += new JMidiControl(code, code).toString().length();
+            }
+            return checksum;
+        };
+    }
+
+    private static LongSupplier keySignatureLookups(){
+        // Key signature meta message data, as the reader hands it out: sharps or flats, then the mode
+        ByteBuffer[] keyData = new ByteBuffer[LOOKUPS];
+        int[] codes = randomCodes(15 * 2);
+        for(int i = 0; i < LOOKUPS; i++)
+            keyData[i] = ByteBuffer.wrap(new byte[]{(byte) (codes[i] / 2 - 7), (byte) (codes[i] % 2)});
+        return () -> {
+            long checksum = 0;
+            for(ByteBuffer data : keyData)
+                checksum += JMidiKeySign.findKey(data).getNumberOfSharps() + 8;
+            return checksum;
+        };
+    }
+
+    private static LongSupplier noteLookups(){
+        int[] codes = randomCodes(128);
+        return () -> {
+            long checksum = 0;
+            for(int code : codes){
+                checksum += JMidiNote.channelNameOf(code).length();
+                checksum += JMidiNote.pitchNotationOf(code).length();
+                checksum += JMidiNote.dynamicOf(code);
+            }
+            return checksum;
+        };
+    }
+
+    // LOOKUPS codes from 0 to bound - 1, the same every time.
+    private static int[] randomCodes(int bound){
+        Random random = new Random(42);
+        int[] codes = new int[LOOKUPS];
+        for(int i = 0; i < LOOKUPS; i++)
+            codes[i] = random.nextInt(bound);
+        return codes;
+    }
+
+    // Handler that adds up everything it is given (and keeps the last tick of a channel message).
+    private static class EventCounter implements JMidiEventHandler {
+        private long checksum;
+        private long maxTick;
+
+        @Override
+        public void shortMessage(long tick, int status, int data1, int data2){
+            checksum += tick + status + data1 + data2;
+            maxTick = Math.max(maxTick, tick);
+        }
+
+        @Override
+        public void metaMessage(long tick, int type, ByteBuffer data){
+            checksum += tick + type + data.remaining();
+        }
+
+        @Override
+        public void sysexMessage(long tick, int status, ByteBuffer data){
+            checksum += tick + status + data.remaining();
+        }
+    }
+
+    // Handler that keeps the channel messages as (tick, status | data1 << 8 | data2 << 16).
+    private static class MessageRecorder implements JMidiEventHandler {
+        private long[] ticks = new long[1024];
+        private int[] messages = new int[1024];
+        private int size;
+        private int ppq;
+
+        @Override
+        public void header(int format, int numberOfTracks, int division){
+            ppq = division;
+        }
+
+        @Override
+        public void startTrack(int trackNumber, int length){
+            add(0, 0);
+        }
+
+        @Override
+        public void shortMessage(long tick, int status, int data1, int data2){
+            add(tick, status | data1 << 8 | data2 << 16);
+        }
+
+        private void add(long tick, int message){
+            if(size == ticks.length){
+                ticks = Arrays.copyOf(ticks, size * 2);
+                messages = Arrays.copyOf(messages, size * 2);
+            }
+            ticks[size] = tick;
+            messages[size++] = message;
+        }
+    }
+
+    // Table the notes of one pairing run go to, and the track being paired.
+    private static class PairingRun implements JMidiNotePairer.PairListener {
+        private final JMidiNoteTable notes;
+        private int track = -1;
+
+        private PairingRun(int ppq, int initialCapacity){
+            notes = new JMidiNoteTable(ppq, Math.max(initialCapacity, 16));
+        }
+
+        @Override
+        public void notePaired(long tickStart, long tickStop, int channel, int key, int velocity){
+            notes.add(tickStart, tickStop, channel, key, velocity, track);
+        }
+    }
+
+    // Stream (and channel) that only counts the bytes written to it.
+    private static class CountingStream extends OutputStream implements WritableByteChannel {
+        private long count;
+
+        @Override
+        public void write(int b){
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len){
+            count += len;
+        }
+
+        @Override
+        public int write(ByteBuffer source){
+            int written = source.remaining();
+            source.position(source.limit());
+            count += written;
+            return written;
+        }
+
+        @Override
+        public boolean isOpen(){
+            return true;
+        }
+    }
+}
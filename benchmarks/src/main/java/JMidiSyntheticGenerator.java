@@ -0,0 +1,251 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/* Class that makes up MIDI files of any size for the benchmarks, so they can
+   be run on much more than the few files in MIDI_Files. The same settings (and
+   seed) always give the same file, byte for byte, so timings of different
+   versions of the library are comparable.
+
+   A file is format 1: a conductor track (tempo and time signature) and then
+   the note tracks, each on its own channel (skipping the drum channel) with a
+   program change first. The notes of a track are spread over it with gaps of
+   a sixteenth to a half note (or none, for chords), last a sixteenth to a
+   whole note, and never more than polyphony of them sound at once in one
+   track. Before a note there is a CONTROL CHANGE with the probability
+   controllerDensity (ex: 0.2 for about one every five notes).
+
+   Settings are given as a spec, "synthetic:" followed by name=value pairs
+   separated by commas or semicolons (every one is optional), ex:
+   synthetic:tracks=16,notes=200000,polyphony=8,controllers=0.2,ppq=480,seed=1
+   where notes is the total over every track. Semicolons are for the JMH
+   command line, where -p splits parameter values on commas.
+
+   Run it to write a file:
+   java JMidiSyntheticGenerator <output MIDI file> [spec]
+ */
+public class JMidiSyntheticGenerator {
+
+    public static final String SPEC_PREFIX = "synthetic:";
+
+    private static final int DRUM_CHANNEL = 9;
+    private static final int LOWEST_KEY = 36;
+    private static final int HIGHEST_KEY = 96;
+    private static final int[] CONTROLLERS = {1, 7, 10, 11, 64}; // modulation, volume, pan, expression, sustain
+
+    private final int tracks;
+    private final int notes;
+    private final int polyphony;
+    private final double controllerDensity;
+    private final int ppq;
+    private final long seed;
+
+    public JMidiSyntheticGenerator(int tracks, int notes, int polyphony, double controllerDensity, int ppq, long seed){
+        if(tracks < 1 || tracks > 0xFFFE)
+            throw new IllegalArgumentException("Number of tracks must be between 1 and 65534: " + tracks);
+        if(notes < 0)
+            throw new IllegalArgumentException("Number of notes cannot be negative: " + notes);
+        if(polyphony < 1 || polyphony > HIGHEST_KEY - LOWEST_KEY + 1)
+            throw new IllegalArgumentException("Polyphony must be between 1 and " + (HIGHEST_KEY - LOWEST_KEY + 1) + ": " + polyphony);
+        if(!(controllerDensity >= 0 && controllerDensity <= 1))
+            throw new IllegalArgumentException("Controller density must be between 0 and 1: " + controllerDensity);
+        if(ppq < 8 || ppq > 0x7FFF)
+            throw new IllegalArgumentException("PPQ must be between 8 and 32767: " + ppq);
+        this.tracks = tracks;
+        this.notes = notes;
+        this.polyphony = polyphony;
+        this.controllerDensity = controllerDensity;
+        this.ppq = ppq;
+        this.seed = seed;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1){
+            System.out.println("Usage: java JMidiSyntheticGenerator <output MIDI file> [spec, ex: "
+                    + SPEC_PREFIX + "tracks=16,notes=200000,polyphony=8,controllers=0.2]");
+            return;
+        }
+
+        JMidiSyntheticGenerator generator = parse(args.length >= 2 ? args[1] : SPEC_PREFIX);
+        try (FileChannel out = FileChannel.open(Paths.get(args[0]), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            generator.generate(out);
+            System.out.println("Wrote " + out.size() + " bytes (" + generator + ") to " + args[0]);
+        }
+    }
+
+    // True if source is a spec (starts with SPEC_PREFIX) rather than a file name.
+    public static boolean isSpec(String source){
+        return source.startsWith(SPEC_PREFIX);
+    }
+
+    // Generator with the settings of a spec; settings left out keep their defaults
+    // (8 tracks, 100000 notes, polyphony 4, controllers 0.1, ppq 480, seed 1).
+    public static JMidiSyntheticGenerator parse(String spec){
+        if(!isSpec(spec))
+            throw new IllegalArgumentException("A spec starts with " + SPEC_PREFIX + ": " + spec);
+
+        int tracks = 8;
+        int notes = 100_000;
+        int polyphony = 4;
+        double controllerDensity = 0.1;
+        int ppq = 480;
+        long seed = 1;
+        for(String setting : spec.substring(SPEC_PREFIX.length()).split("[,;]")){
+            if(setting.trim().isEmpty())
+                continue;
+            int equals = setting.indexOf('=');
+            if(equals < 0)
+                throw new IllegalArgumentException("Setting is not name=value: " + setting);
+            String name = setting.substring(0, equals).trim();
+            String value = setting.substring(equals + 1).trim();
+            try {
+                switch (name) {
+                    case "tracks": tracks = Integer.parseInt(value); break;
+                    case "notes": notes = Integer.parseInt(value); break;
+                    case "polyphony": polyphony = Integer.parseInt(value); break;
+                    case "controllers": controllerDensity = Double.parseDouble(value); break;
+                    case "ppq": ppq = Integer.parseInt(value); break;
+                    case "seed": seed = Long.parseLong(value); break;
+                    default: throw new IllegalArgumentException("Unknown setting: " + name);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Setting " + name + " is not a number: " + value);
+            }
+        }
+        return new JMidiSyntheticGenerator(tracks, notes, polyphony, controllerDensity, ppq, seed);
+    }
+
+    // The whole file in memory.
+    public byte[] generate(){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(notes * 7 + 1024);
+        try {
+            generate(Channels.newChannel(bytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // never happens in memory
+        }
+        return bytes.toByteArray();
+    }
+
+    // Writes the file to out (which is left open).
+    public void generate(WritableByteChannel out) throws IOException {
+        JMidiFileWriter writer = new JMidiFileWriter(out);
+        try {
+            generate(writer);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Sends the events of the file to a handler, as JMidiFileReader would if it read the file.
+    public void generate(JMidiEventHandler handler){
+        handler.header(1, tracks + 1, ppq);
+
+        // Conductor track: 120 BPM in 4/4
+        handler.startTrack(0, 0);
+        handler.metaMessage(0, JMidiTranscriber.SET_TEMPO, ByteBuffer.wrap(new byte[]{0x07, (byte) 0xA1, 0x20}));
+        handler.metaMessage(0, JMidiTranscriber.TIME_SIGNATURE, ByteBuffer.wrap(new byte[]{4, 2, 24, 8}));
+        handler.metaMessage(0, JMidiTranscriber.END_OF_TRACK, ByteBuffer.allocate(0));
+        handler.endTrack(0);
+
+        for(int track = 1; track <= tracks; track++){
+            int trackNotes = notes / tracks + (track <= notes % tracks ? 1 : 0);
+            handler.startTrack(track, 0);
+            generateTrack(handler, track, trackNotes);
+            handler.endTrack(track);
+        }
+        handler.endFile();
+    }
+
+    @Override
+    public String toString(){
+        return SPEC_PREFIX + "tracks=" + tracks + ",notes=" + notes + ",polyphony=" + polyphony
+                + ",controllers=" + controllerDensity + ",ppq=" + ppq + ",seed=" + seed;
+    }
+
+    private void generateTrack(JMidiEventHandler handler, int track, int trackNotes){
+        // Every track has its own generator so its notes do not depend on the other tracks
+        Random random = new Random(seed * 31 + track);
+        int channel = (track - 1) % 15;
+        if(channel >= DRUM_CHANNEL)
+            channel++;
+        handler.shortMessage(0, JMidiTranscriber.PROGRAM_CHANGE | channel, random.nextInt(128), 0);
+
+        // Sounding notes as a min-heap of (tick stop << 7 | key), and which keys they hold
+        long[] sounding = new long[polyphony];
+        int soundingCount = 0;
+        boolean[] held = new boolean[128];
+        long tick = 0;
+
+        for(int note = 0; note < trackNotes; note++){
+            // No gap 1 time out of 4 (a chord), else a sixteenth to a half note
+            if(random.nextInt(4) != 0)
+                tick += ppq / 4 * (1 + random.nextInt(8));
+            // Waits for a note to end if as many as allowed are sounding
+            if(soundingCount == polyphony)
+                tick = Math.max(tick, sounding[0] >>> 7);
+            while(soundingCount > 0 && (sounding[0] >>> 7) <= tick){
+                long stop = sounding[0];
+                soundingCount = popHeap(sounding, soundingCount);
+                held[(int) (stop & 0x7F)] = false;
+                handler.shortMessage(stop >>> 7, JMidiTranscriber.NOTE_OFF | channel, (int) (stop & 0x7F), 64);
+            }
+
+            if(random.nextDouble() < controllerDensity){
+                int controller = CONTROLLERS[random.nextInt(CONTROLLERS.length)];
+                handler.shortMessage(tick, JMidiTranscriber.MIDI_CONTROL_CHANGE | channel, controller, random.nextInt(128));
+            }
+
+            // A key that is not already held (there are more keys than the highest polyphony)
+            int key = LOWEST_KEY + random.nextInt(HIGHEST_KEY - LOWEST_KEY + 1);
+            while(held[key])
+                key = key == HIGHEST_KEY ? LOWEST_KEY : key + 1;
+            held[key] = true;
+            handler.shortMessage(tick, JMidiTranscriber.NOTE_ON | channel, key, 30 + random.nextInt(91));
+
+            long duration = ppq / 4 * (1 + random.nextInt(16));
+            soundingCount = pushHeap(sounding, soundingCount, (tick + duration) << 7 | key);
+        }
+
+        while(soundingCount > 0){
+            long stop = sounding[0];
+            soundingCount = popHeap(sounding, soundingCount);
+            handler.shortMessage(stop >>> 7, JMidiTranscriber.NOTE_OFF | channel, (int) (stop & 0x7F), 64);
+            tick = stop >>> 7;
+        }
+        handler.metaMessage(tick, JMidiTranscriber.END_OF_TRACK, ByteBuffer.allocate(0));
+    }
+
+    private static int pushHeap(long[] heap, int size, long value){
+        int i = size;
+        while(i > 0 && heap[(i - 1) / 2] > value){
+            heap[i] = heap[(i - 1) / 2];
+            i = (i - 1) / 2;
+        }
+        heap[i] = value;
+        return size + 1;
+    }
+
+    private static int popHeap(long[] heap, int size){
+        long last = heap[--size];
+        int i = 0;
+        while(2 * i + 1 < size){
+            int child = 2 * i + 1;
+            if(child + 1 < size && heap[child + 1] < heap[child])
+                child++;
+            if(heap[child] >= last)
+                break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = last;
+        return size;
+    }
+}
@@ -0,0 +1,55 @@
+package jmidi.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/* The lookup tables, each run looking up the same 4096 random codes:
+   JMidiControl (names and descriptions of Control Change codes), JMidiKeySign
+   (key signatures from meta message data) and JMidiNote (instrument names,
+   pitch notation and dynamics).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+
+    private LongSupplier controlLookups;
+    private LongSupplier keySignatureLookups;
+    private LongSupplier noteLookups;
+
+    @Setup
+    public void setUp() throws Exception {
+        controlLookups = Workloads.prepare("controlLookups", null);
+        keySignatureLookups = Workloads.prepare("keySignatureLookups", null);
+        noteLookups = Workloads.prepare("noteLookups", null);
+    }
+
+    @Benchmark
+    public long controlLookups(){
+        return controlLookups.getAsLong();
+    }
+
+    @Benchmark
+    public long keySignatureLookups(){
+        return keySignatureLookups.getAsLong();
+    }
+
+    @Benchmark
+    public long noteLookups(){
+        return noteLookups.getAsLong();
+    }
+}
@@ -0,0 +1,59 @@
+package jmidi.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/* Working on notes once the events are decoded: pairing NOTE ONs with their
+   NOTE OFFs (from messages decoded up front), building the clusters (sorting
+   the paired notes by starting tick and finding where each cluster ends) and
+   classifying the chord of every cluster.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NoteBenchmark {
+
+    @Param({"Fur_Elise.mid", "Beethoven_Symphony_no5.mid", "La_Campanella.mid", Workloads.LARGE})
+    public String source;
+
+    private LongSupplier pairNotes;
+    private LongSupplier buildClusters;
+    private LongSupplier classifyChords;
+
+    @Setup
+    public void setUp() throws Exception {
+        pairNotes = Workloads.prepare("pairNotes", source);
+        buildClusters = Workloads.prepare("buildClusters", source);
+        classifyChords = Workloads.prepare("classifyChords", source);
+    }
+
+    @Benchmark
+    public long pairNotes(){
+        return pairNotes.getAsLong();
+    }
+
+    @Benchmark
+    public long buildClusters(){
+        return buildClusters.getAsLong();
+    }
+
+    @Benchmark
+    public long classifyChords(){
+        return classifyChords.getAsLong();
+    }
+}
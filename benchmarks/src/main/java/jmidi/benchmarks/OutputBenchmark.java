@@ -0,0 +1,58 @@
+package jmidi.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/* Writing output, to streams that only count the bytes so the disk is not
+   timed: the text transcription of a whole file (JMidiTranscriber), the
+   clusters in the binary format and the file written back out as MIDI.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputBenchmark {
+
+    @Param({"Fur_Elise.mid", "Beethoven_Symphony_no5.mid", "La_Campanella.mid", Workloads.LARGE})
+    public String source;
+
+    private LongSupplier transcribeText;
+    private LongSupplier writeBinaryClusters;
+    private LongSupplier writeMidi;
+
+    @Setup
+    public void setUp() throws Exception {
+        transcribeText = Workloads.prepare("transcribeText", source);
+        writeBinaryClusters = Workloads.prepare("writeBinaryClusters", source);
+        writeMidi = Workloads.prepare("writeMidi", source);
+    }
+
+    @Benchmark
+    public long transcribeText(){
+        return transcribeText.getAsLong();
+    }
+
+    @Benchmark
+    public long writeBinaryClusters(){
+        return writeBinaryClusters.getAsLong();
+    }
+
+    @Benchmark
+    public long writeMidi(){
+        return writeMidi.getAsLong();
+    }
+}
@@ -0,0 +1,89 @@
+package jmidi.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/* Loading a file: decoding every event with JMidiFileReader, the same file
+   through javax.sound.midi (MidiSystem.getSequence) to compare, and the whole
+   analysis (notes paired and sorted, tempo map, measures). Also decoding an
+   excerpt (a 16th of the file, in the middle) with a tick window filter and
+   with a JMidiTrackIndex. And scanning the notes back from a
+   JMidiCorpusArchive: the keys only, and every column.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadBenchmark {
+
+    @Param({"Fur_Elise.mid", "Beethoven_Symphony_no5.mid", "La_Campanella.mid", Workloads.LARGE})
+    public String source;
+
+    private LongSupplier readEvents;
+    private LongSupplier readSequence;
+    private LongSupplier analyze;
+    private LongSupplier readExcerptFiltered;
+    private LongSupplier readExcerptIndexed;
+    private LongSupplier scanArchiveKeys;
+    private LongSupplier decodeArchive;
+
+    @Setup
+    public void setUp() throws Exception {
+        readEvents = Workloads.prepare("readEvents", source);
+        readSequence = Workloads.prepare("readSequence", source);
+        analyze = Workloads.prepare("analyze", source);
+        readExcerptFiltered = Workloads.prepare("readExcerptFiltered", source);
+        readExcerptIndexed = Workloads.prepare("readExcerptIndexed", source);
+        scanArchiveKeys = Workloads.prepare("scanArchiveKeys", source);
+        decodeArchive = Workloads.prepare("decodeArchive", source);
+    }
+
+    @Benchmark
+    public long readEvents(){
+        return readEvents.getAsLong();
+    }
+
+    @Benchmark
+    public long readSequence(){
+        return readSequence.getAsLong();
+    }
+
+    @Benchmark
+    public long analyze(){
+        return analyze.getAsLong();
+    }
+
+    @Benchmark
+    public long readExcerptFiltered(){
+        return readExcerptFiltered.getAsLong();
+    }
+
+    @Benchmark
+    public long readExcerptIndexed(){
+        return readExcerptIndexed.getAsLong();
+    }
+
+    @Benchmark
+    public long scanArchiveKeys(){
+        return scanArchiveKeys.getAsLong();
+    }
+
+    @Benchmark
+    public long decodeArchive(){
+        return decodeArchive.getAsLong();
+    }
+}
@@ -0,0 +1,38 @@
+package jmidi.benchmarks;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.function.LongSupplier;
+
+/* Gets the workloads of JMidiBenchmarkWorkloads (in the default package, like
+   the library, so it cannot be named from here) through reflection. This only
+   happens in the @Setup of the benchmarks: what they time is a plain call to
+   the LongSupplier that comes back.
+ */
+final class Workloads {
+
+    // Synthetic file every benchmark with a source also runs on (see JMidiSyntheticGenerator).
+    static final String LARGE = "synthetic:tracks=16,notes=200000,polyphony=8,controllers=0.2";
+
+    private static final Method PREPARE;
+
+    static {
+        try {
+            PREPARE = Class.forName("JMidiBenchmarkWorkloads").getMethod("prepare", String.class, String.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Workloads(){
+    }
+
+    // One run of the workload on the source (a file in MIDI_Files or a synthetic spec).
+    static LongSupplier prepare(String workload, String source) throws Exception {
+        try {
+            return (LongSupplier) PREPARE.invoke(null, workload, source);
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* Class that holds everything one read of a MIDI file finds that is worth
+   keeping: the paired notes (sorted by starting tick, so the clusters can be
+   walked with JMidiNoteTable.clusterEnd), the tempo map, the measure index
+   built from the time signatures and the key signatures.
+
+   It can be turned into and read back from a binary form, which is
+   what JMidiResultCache stores so a file only has to be decoded once.
+ */
+public class JMidiAnalysis {
+
+    // Version of the binary form; bump it whenever toByteBuffer() changes.
+    public static final int FORMAT_VERSION = 1;
+
+    private final JMidiNoteTable notes;
+    private final JMidiTempoMap tempoMap;
+    private final JMidiMeasureIndex measureIndex;
+
+    // Key signatures in order of tick: number of sharps (positive) or flats (negative)
+    private final long[] keyTicks;
+    private final int[] keySharpsOrFlats;
+
+    public JMidiAnalysis(JMidiNoteTable notes, JMidiTempoMap tempoMap, JMidiMeasureIndex measureIndex,
+                         long[] keyTicks, int[] keySharpsOrFlats){
+        if(keyTicks.length != keySharpsOrFlats.length)
+            throw new IllegalArgumentException("Every key signature needs a tick.");
+        this.notes = notes;
+        this.tempoMap = tempoMap;
+        this.measureIndex = measureIndex;
+        this.keyTicks = keyTicks;
+        this.keySharpsOrFlats = keySharpsOrFlats;
+    }
+
+    // Reads a MIDI file and analyzes it (notes are paired within each track).
+    public static JMidiAnalysis read(JMidiFileReader reader, File file) throws IOException, InvalidMidiDataException {
+        Collector collector = new Collector();
+        reader.read(file, collector);
+        return collector.toAnalysis();
+    }
+
+    public JMidiNoteTable getNotes(){
+        return notes;
+    }
+
+    public JMidiTempoMap getTempoMap(){
+        return tempoMap;
+    }
+
+    public JMidiMeasureIndex getMeasureIndex(){
+        return measureIndex;
+    }
+
+    public int getKeySignatureCount(){
+        return keyTicks.length;
+    }
+
+    public long getKeySignatureTick(int index){
+        return keyTicks[index];
+    }
+
+    public JMidiKeySign.JKeySignature getKeySignature(int index){
+        return JMidiKeySign.keyOf(keySharpsOrFlats[index]);
+    }
+
+    // Key signature in effect at a tick (the last one at or before it), or null if none is.
+    public JMidiKeySign.JKeySignature getKeySignatureAt(long tick){
+        int index = Arrays.binarySearch(keyTicks, tick);
+        if(index < 0)
+            index = -index - 2;
+        else{
+            while(index + 1 < keyTicks.length && keyTicks[index + 1] == tick)
+                index++; // the last of several at the same tick wins
+        }
+        return index < 0 ? null : getKeySignature(index);
+    }
+
+    // Rough size in memory, in bytes (used to bound the memory tier of JMidiResultCache).
+    public long estimatedSize(){
+        return 64 + notes.size() * 24L + tempoMap.size() * 20L + measureIndex.size() * 20L + keyTicks.length * 12L;
+    }
+
+    // The analysis in its binary form (big-endian): version, PPQ, the note table's columns
+    // (see JMidiNoteTable.putColumns), then the tempos, time signatures and key signatures.
+    public ByteBuffer toByteBuffer(){
+        int length = 8 + notes.columnsSize() + 4 + tempoMap.size() * 12
+                + 4 + measureIndex.size() * 16 + 4 + keyTicks.length * 9;
+        ByteBuffer out = ByteBuffer.allocate(length);
+        out.putInt(FORMAT_VERSION);
+        out.putInt(notes.getPPQ());
+        notes.putColumns(out);
+
+        out.putInt(tempoMap.size());
+        for(int i = 0; i < tempoMap.size(); i++){
+            out.putLong(tempoMap.getTick(i));
+            out.putInt(tempoMap.getMicrosecondsPerQuarter(i));
+        }
+
+        out.putInt(measureIndex.size());
+        for(int i = 0; i < measureIndex.size(); i++){
+            out.putLong(measureIndex.getTick(i));
+            out.putInt(measureIndex.getNumerator(i));
+            out.putInt(measureIndex.getDenominator(i));
+        }
+
+        out.putInt(keyTicks.length);
+        for(int i = 0; i < keyTicks.length; i++){
+            out.putLong(keyTicks[i]);
+            out.put((byte) keySharpsOrFlats[i]);
+        }
+        out.flip();
+        return out;
+    }
+
+    // Reads an analysis written by toByteBuffer.
+    public static JMidiAnalysis fromByteBuffer(ByteBuffer in) throws IOException {
+        try {
+            int version = in.getInt();
+            if(version != FORMAT_VERSION)
+                throw new IOException("Unsupported analysis version: " + version);
+            int ppq = in.getInt();
+            JMidiNoteTable notes = JMidiNoteTable.getColumns(in, ppq);
+
+            int tempoCount = checkCount(in.getInt(), in, 12);
+            long[] tempoTicks = new long[tempoCount];
+            int[] tempos = new int[tempoCount];
+            for(int i = 0; i < tempoCount; i++){
+                tempoTicks[i] = in.getLong();
+                tempos[i] = in.getInt();
+            }
+
+            int timeCount = checkCount(in.getInt(), in, 16);
+            long[] timeTicks = new long[timeCount];
+            int[] numerators = new int[timeCount];
+            int[] denominators = new int[timeCount];
+            for(int i = 0; i < timeCount; i++){
+                timeTicks[i] = in.getLong();
+                numerators[i] = in.getInt();
+                denominators[i] = in.getInt();
+            }
+
+            int keyCount = checkCount(in.getInt(), in, 9);
+            long[] keyTicks = new long[keyCount];
+            int[] keys = new int[keyCount];
+            for(int i = 0; i < keyCount; i++){
+                keyTicks[i] = in.getLong();
+                keys[i] = in.get();
+            }
+
+            return new JMidiAnalysis(notes, new JMidiTempoMap(ppq, tempoTicks, tempos, tempoCount),
+                    new JMidiMeasureIndex(ppq, timeTicks, numerators, denominators, timeCount), keyTicks, keys);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt analysis.", e);
+        }
+    }
+
+    // A count of entries of entrySize bytes must fit in what is left of the buffer (so a
+    // corrupt count is caught before anything is allocated for it).
+    private static int checkCount(int count, ByteBuffer in, int entrySize) throws IOException {
+        if(count < 0 || count > in.remaining() / entrySize)
+            throw new IOException("Corrupt analysis (count " + count + ").");
+        return count;
+    }
+
+    // Handler that collects everything in one pass over the file.
+    public static class Collector implements JMidiEventHandler {
+        private final JMidiTempoMap.Collector tempos = new JMidiTempoMap.Collector();
+        private final JMidiMeasureIndex.Collector timeSignatures = new JMidiMeasureIndex.Collector();
+        private JMidiNoteTable notes;
+        private JMidiNotePairer pairer;
+        private int currentTrack;
+        private long[] keyTicks = new long[4];
+        private int[] keys = new int[4];
+        private int keyCount;
+
+        @Override
+        public void header(int format, int numberOfTracks, int division){
+            tempos.header(format, numberOfTracks, division);
+            timeSignatures.header(format, numberOfTracks, division);
+            notes = new JMidiNoteTable(division);
+            pairer = new JMidiNotePairer((tickStart, tickStop, channel, key, velocity) ->
+                    notes.add(tickStart, tickStop, channel, key, velocity, currentTrack));
+        }
+
+        @Override
+        public void startTrack(int trackNumber, int length){
+            // Notes are paired within a track, never across tracks
+            currentTrack = trackNumber;
+            pairer.clear();
+        }
+
+        @Override
+        public void shortMessage(long tick, int status, int data1, int data2){
+            pairer.onShortMessage(tick, status, data1, data2);
+        }
+
+        @Override
+        public void metaMessage(long tick, int type, ByteBuffer data){
+            if(type == JMidiTranscriber.KEY_SIGNATURE){
+                if(data.limit() < 1 || JMidiKeySign.keyOf(data.get(0)) == null)
+                    return; // broken message
+                if(keyCount == keyTicks.length){
+                    keyTicks = Arrays.copyOf(keyTicks, keyCount * 2);
+                    keys = Arrays.copyOf(keys, keyCount * 2);
+                }
+                keyTicks[keyCount] = tick;
+                keys[keyCount] = data.get(0);
+                keyCount++;
+            }
+            else{
+                tempos.metaMessage(tick, type, data);
+                timeSignatures.metaMessage(tick, type, data);
+            }
+        }
+
+        @Override
+        public void endFile(){
+            notes.sortByTickStart();
+        }
+
+        public JMidiAnalysis toAnalysis(){
+            // Key signatures of several tracks are put in order of tick (stable)
+            Integer[] order = new Integer[keyCount];
+            for(int i = 0; i < keyCount; i++)
+                order[i] = i;
+            Arrays.sort(order, (a, b) -> Long.compare(keyTicks[a], keyTicks[b]));
+            long[] sortedTicks = new long[keyCount];
+            int[] sortedKeys = new int[keyCount];
+            for(int i = 0; i < keyCount; i++){
+                sortedTicks[i] = keyTicks[order[i]];
+                sortedKeys[i] = keys[order[i]];
+            }
+            return new JMidiAnalysis(notes, tempos.toTempoMap(), timeSignatures.toMeasureIndex(), sortedTicks, sortedKeys);
+        }
+    }
+}
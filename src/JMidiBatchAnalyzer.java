@@ -0,0 +1,251 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Class that analyzes every MIDI file in a directory tree, several files at
+   a time. Each input file gets its own transcription (the same output as
+   MidiTester) in the output directory, at the same relative path with
+   ".txt" added, and statistics of the whole batch (JMidiStatistics, merged
+   from those of each file) are gathered while the files are transcribed.
+   Only a bounded number of files are loaded at once: the
+   directory walk blocks until a file is done before handing out another.
+   A file that cannot be read (or runs out of memory) is reported and
+   skipped; it never stops the batch.
+
+   Usage: java JMidiBatchAnalyzer <input dir> <output dir> [threads] [files in memory]
+ */
+public class JMidiBatchAnalyzer {
+
+    private final int threads;
+    private final int maxFilesInMemory;
+    private final JMidiFileReader reader = new JMidiFileReader();
+
+    // Results of the last run
+    private final AtomicLong filesAnalyzed = new AtomicLong();
+    private final AtomicLong eventsAnalyzed = new AtomicLong();
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+    private JMidiStatistics statistics = new JMidiStatistics();
+    private long elapsedNanos;
+
+    public JMidiBatchAnalyzer(int threads, int maxFilesInMemory){
+        if(threads < 1 || maxFilesInMemory < 1)
+            throw new IllegalArgumentException("A batch needs at least one thread and one file in memory.");
+        this.threads = threads;
+        this.maxFilesInMemory = maxFilesInMemory;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2){
+            System.out.println("Usage: java JMidiBatchAnalyzer <input dir> <output dir> [threads] [files in memory]");
+            return;
+        }
+
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int inMemory = args.length > 3 ? Integer.parseInt(args[3]) : threads * 2;
+        JMidiBatchAnalyzer batch = new JMidiBatchAnalyzer(threads, inMemory);
+        batch.analyze(Paths.get(args[0]), Paths.get(args[1]));
+
+        String summary = batch.getSummary();
+        System.out.print(summary);
+        Files.write(Paths.get(args[1]).resolve("summary.txt"), summary.getBytes());
+        Files.write(Paths.get(args[1]).resolve("statistics.txt"), batch.getStatistics().toString().getBytes());
+    }
+
+    // Analyzes every .mid/.midi file under inputDir, writing the results under outputDir.
+    public void analyze(Path inputDir, Path outputDir) throws IOException, InterruptedException {
+        filesAnalyzed.set(0);
+        eventsAnalyzed.set(0);
+        failures.clear();
+        synchronized(this){
+            statistics = new JMidiStatistics();
+        }
+
+        // Loaded once here, not by whichever worker thread needs a table first
+        JMidiNote.setUpChannelLookup();
+        JMidiKeySign.initList();
+        JMidiControl.initMessageSet();
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Semaphore inMemory = new Semaphore(maxFilesInMemory);
+        try {
+            List<Path> inputs = JMidiFileReader.findMidiFiles(inputDir);
+            for(Path input : inputs){
+                // Backpressure: wait until one of the files in memory is done
+                inMemory.acquire();
+                Path output = outputDir.resolve(inputDir.relativize(input).toString() + ".txt");
+                pool.execute(() -> {
+                    try {
+                        analyzeFile(input, output);
+                        filesAnalyzed.incrementAndGet();
+                    } catch (Throwable e) {
+                        // Errors too (ex: OutOfMemoryError on a huge file), so every file is counted once
+                        failures.add(input + ": " + e);
+                        synchronized(this){
+                            statistics.merge(JMidiStatistics.failedFile());
+                        }
+                        deletePartialOutput(output);
+                    } finally {
+                        inMemory.release();
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            elapsedNanos = System.nanoTime() - start;
+        }
+    }
+
+    // Transcribes one file into its output file.
+    private void analyzeFile(Path input, Path output) throws Exception {
+        ByteBuffer data = reader.open(input.toFile());
+        if(output.getParent() != null)
+            Files.createDirectories(output.getParent());
+
+        // PrintStream swallows write errors (even on close), so they are checked once it is closed
+        PrintStream out = new PrintStream(new BufferedOutputStream(Files.newOutputStream(output), 1 << 16));
+        EventCounter counter = new EventCounter(new JMidiTranscriber(out));
+        try {
+            reader.read(data, counter);
+        } finally {
+            out.close();
+        }
+        if(out.checkError())
+            throw new IOException("Could not write " + output);
+
+        eventsAnalyzed.addAndGet(counter.events);
+        synchronized(this){
+            statistics.merge(counter.statistics);
+        }
+    }
+
+    // A failed file should not leave half of a transcription behind.
+    private static void deletePartialOutput(Path output){
+        try {
+            Files.deleteIfExists(output);
+        } catch (IOException ignored) {
+            // nothing else we can do, the failure is already reported
+        }
+    }
+
+    public long getFilesAnalyzed(){
+        return filesAnalyzed.get();
+    }
+
+    public long getEventsAnalyzed(){
+        return eventsAnalyzed.get();
+    }
+
+    public List<String> getFailures(){
+        return new ArrayList<>(failures);
+    }
+
+    // Statistics of every file analyzed in the last run.
+    public synchronized JMidiStatistics getStatistics(){
+        return new JMidiStatistics().merge(statistics);
+    }
+
+    // Human readable summary of the last run (throughput and failures).
+    public String getSummary(){
+        double seconds = elapsedNanos / 1e9;
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append("Files analyzed: ");
+        stringBuilder.append(filesAnalyzed.get());
+        stringBuilder.append("\n");
+
+        stringBuilder.append("Files failed: ");
+        stringBuilder.append(failures.size());
+        stringBuilder.append("\n");
+
+        stringBuilder.append("Events analyzed: ");
+        stringBuilder.append(eventsAnalyzed.get());
+        stringBuilder.append("\n");
+
+        stringBuilder.append("Seconds: ");
+        stringBuilder.append(seconds);
+        stringBuilder.append("\n");
+
+        stringBuilder.append("Files per second: ");
+        stringBuilder.append(seconds > 0 ? filesAnalyzed.get() / seconds : 0);
+        stringBuilder.append("\n");
+
+        stringBuilder.append("Events per second: ");
+        stringBuilder.append(seconds > 0 ? eventsAnalyzed.get() / seconds : 0);
+        stringBuilder.append("\n");
+
+        for(String failure : getFailures()){
+            stringBuilder.append("FAILED: ");
+            stringBuilder.append(failure);
+            stringBuilder.append("\n");
+        }
+        return stringBuilder.toString();
+    }
+
+    // Handler that counts the events of a file (and gathers its statistics) on their
+    // way to another handler.
+    private static class EventCounter implements JMidiEventHandler {
+        private final JMidiEventHandler handler;
+        private final JMidiStatistics statistics = new JMidiStatistics();
+        private long events;
+
+        private EventCounter(JMidiEventHandler handler){
+            this.handler = handler;
+        }
+
+        @Override
+        public void header(int format, int numberOfTracks, int division){
+            handler.header(format, numberOfTracks, division);
+            statistics.header(format, numberOfTracks, division);
+        }
+
+        @Override
+        public void startTrack(int trackNumber, int length){
+            handler.startTrack(trackNumber, length);
+            statistics.startTrack(trackNumber, length);
+        }
+
+        @Override
+        public void shortMessage(long tick, int status, int data1, int data2){
+            events++;
+            handler.shortMessage(tick, status, data1, data2);
+            statistics.shortMessage(tick, status, data1, data2);
+        }
+
+        @Override
+        public void metaMessage(long tick, int type, ByteBuffer data){
+            events++;
+            handler.metaMessage(tick, type, data);
+            statistics.metaMessage(tick, type, data);
+        }
+
+        @Override
+        public void sysexMessage(long tick, int status, ByteBuffer data){
+            events++;
+            handler.sysexMessage(tick, status, data);
+            statistics.sysexMessage(tick, status, data);
+        }
+
+        @Override
+        public void endTrack(int trackNumber){
+            handler.endTrack(trackNumber);
+        }
+
+        @Override
+        public void endFile(){
+            handler.endFile();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/* Class that reads back a cluster file written by JMidiBinaryClusterWriter,
+   one cluster at a time, so the whole file never has to be in memory.
+   The current cluster lives in a few reusable primitive arrays:
+
+   while(reader.next()){
+       reader.getTickStart(); reader.size(); reader.getKey(i); ...
+   }
+
+   Run it with a cluster file to print it in the text layout:
+   java JMidiBinaryClusterReader <cluster file>
+ */
+public class JMidiBinaryClusterReader implements Closeable {
+
+    private final InputStream in;
+    private final int PPQ;
+
+    // The current cluster
+    private long tickStart;
+    private int size;
+    private int[] keys = new int[16];
+    private int[] channels = new int[16];
+    private int[] velocities = new int[16];
+    private long[] durations = new long[16];
+
+    public JMidiBinaryClusterReader(InputStream in) throws IOException {
+        this.in = new BufferedInputStream(in, 1 << 16);
+        int magic = 0;
+        for(int i = 0; i < 4; i++)
+            magic = (magic << 8) | readByte();
+        if(magic != JMidiBinaryClusterWriter.MAGIC)
+            throw new IOException("Not a JMidi cluster file.");
+
+        int version = readByte();
+        if(version != JMidiBinaryClusterWriter.VERSION)
+            throw new IOException("Unsupported cluster file version: " + version);
+        PPQ = (int) readVarint();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1){
+            System.out.println("Usage: java JMidiBinaryClusterReader <cluster file>");
+            return;
+        }
+
+        PrintStream out = System.out;
+        try (JMidiBinaryClusterReader reader = new JMidiBinaryClusterReader(new FileInputStream(args[0]))) {
+            JMidiNoteTable cluster = new JMidiNoteTable(reader.getPPQ());
+            JMidiTextClusterWriter writer = new JMidiTextClusterWriter(out);
+            while(reader.next()){
+                cluster.clear();
+                reader.addTo(cluster);
+                writer.writeCluster(cluster, 0, cluster.size());
+            }
+            writer.flush();
+        }
+    }
+
+    // Moves to the next cluster; returns false at the end of the file.
+    public boolean next() throws IOException {
+        int first = in.read();
+        if(first < 0)
+            return false;
+
+        tickStart += readVarint(first);
+        long count = readVarint();
+        if(count < 1 || count > JMidiBinaryClusterWriter.MAX_CLUSTER_NOTES)
+            throw new IOException("Corrupt cluster file (a cluster of " + count + " notes).");
+        size = (int) count;
+        if(size > keys.length){
+            int capacity = Math.max(size, keys.length * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            channels = Arrays.copyOf(channels, capacity);
+            velocities = Arrays.copyOf(velocities, capacity);
+            durations = Arrays.copyOf(durations, capacity);
+        }
+
+        for(int i = 0; i < size; i++){
+            keys[i] = readByte();
+            channels[i] = readByte();
+            velocities[i] = readByte();
+            durations[i] = readVarint();
+        }
+        return true;
+    }
+
+    public int getPPQ(){
+        return PPQ;
+    }
+
+    // Getters for the current cluster and its notes (0 to size() - 1).
+    public long getTickStart(){
+        return tickStart;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public int getKey(int note){
+        return keys[note];
+    }
+
+    public int getChannel(int note){
+        return channels[note];
+    }
+
+    public int getVelocity(int note){
+        return velocities[note];
+    }
+
+    public long getDurationInTicks(int note){
+        return durations[note];
+    }
+
+    public double getNoteInTermsOfQuarter(int note){
+        return JMidiNote.quarterRatioOf(durations[note], PPQ);
+    }
+
+    // Adds the notes of the current cluster to a note table (track 0).
+    public void addTo(JMidiNoteTable notes){
+        for(int i = 0; i < size; i++)
+            notes.add(tickStart, tickStart + durations[i], channels[i], keys[i], velocities[i], 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if(b < 0)
+            throw new EOFException("Cluster file ends in the middle of a cluster.");
+        return b;
+    }
+
+    private long readVarint() throws IOException {
+        return readVarint(readByte());
+    }
+
+    // Reads a varint whose first byte has already been read.
+    private long readVarint(int first) throws IOException {
+        long value = first & 0x7F;
+        int shift = 7;
+        int b = first;
+        while((b & 0x80) != 0){
+            b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,93 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/* Class that writes note clusters in a compact, versioned binary format that
+   is much cheaper to read back than the text layout. The layout is:
+
+   "JMCL"            magic (4 bytes)
+   version           1 byte (currently 1)
+   ppq               varint: ticks per quarter note, the fixed-point scale of the durations
+   then, until the end of the stream, one record per cluster:
+     tick delta      varint: starting tick minus the previous cluster's starting tick
+     note count      varint (1 to MAX_CLUSTER_NOTES)
+     per note        key (1 byte), channel (1 byte), velocity (1 byte),
+                     duration in ticks (varint; duration / ppq = ratio to a quarter note)
+
+   Varints are unsigned LEB128 (7 bits per byte, low bits first). Read it back
+   with JMidiBinaryClusterReader.
+ */
+public class JMidiBinaryClusterWriter implements JMidiClusterWriter {
+
+    // "JMCL" and the current version of the format
+    public static final int MAGIC = 0x4A4D434C;
+    public static final int VERSION = 1;
+
+    // Most notes a cluster can hold: every key on every channel, 32 times over (ex: doubled in
+    // many tracks). The reader rejects larger counts as corrupt instead of allocating for them.
+    public static final int MAX_CLUSTER_NOTES = 128 * 16 * 32;
+
+    private final OutputStream out;
+    private boolean headerWritten;
+    private long previousTick;
+
+    // Starts a cluster file; the stream is buffered here. The header is written with the
+    // first cluster, since that is when the PPQ of the notes is known.
+    public JMidiBinaryClusterWriter(OutputStream out){
+        this.out = new BufferedOutputStream(out, 1 << 16);
+    }
+
+    @Override
+    public void writeCluster(JMidiNoteTable notes, int start, int end) throws IOException {
+        if(!headerWritten)
+            writeHeader(notes.getPPQ());
+
+        long tick = notes.getTickStart(start);
+        if(tick < previousTick)
+            throw new IllegalStateException("Clusters must be written in order of starting tick.");
+
+        if(end - start < 1 || end - start > MAX_CLUSTER_NOTES)
+            throw new IllegalArgumentException("A cluster holds 1 to " + MAX_CLUSTER_NOTES + " notes, not " + (end - start));
+
+        writeVarint(tick - previousTick);
+        writeVarint(end - start);
+        for(int i = start; i < end; i++){
+            out.write(notes.getKey(i));
+            out.write(notes.getChannel(i));
+            out.write(notes.getVelocity(i));
+            writeVarint(notes.getTickStop(i) - notes.getTickStart(i));
+        }
+        previousTick = tick;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    // A file without clusters still gets a header (with a PPQ of 0).
+    @Override
+    public void close() throws IOException {
+        if(!headerWritten)
+            writeHeader(0);
+        out.close();
+    }
+
+    private void writeHeader(int ppq) throws IOException {
+        out.write(MAGIC >>> 24);
+        out.write(MAGIC >>> 16);
+        out.write(MAGIC >>> 8);
+        out.write(MAGIC);
+        out.write(VERSION);
+        writeVarint(ppq);
+        headerWritten = true;
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while((value & ~0x7FL) != 0){
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
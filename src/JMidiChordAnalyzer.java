@@ -0,0 +1,280 @@
+import java.util.Arrays;
+
+/* Class that names the chords formed by clusters of notes. A cluster is
+   reduced to a 12-bit pitch-class set (bit 0 = C, bit 1 = C#, ... bit 11 = B)
+   and looked up in a 4096-entry table built once from the chord templates
+   below, so classifying a chord is one array read (plus one more for the
+   inversion, which depends on the lowest note).
+
+   A chord is returned as a packed int "code" so nothing is allocated per
+   cluster; rootOf, qualityOf, inversionOf and nameOf take it apart. NO_CHORD
+   (0) means the pitch classes do not form any of the known chords.
+
+   Pitch-class sets that fit several templates get the first one in Quality
+   order, and every rotation of a symmetric chord (augmented, diminished 7th)
+   is named after the lowest root.
+ */
+public class JMidiChordAnalyzer {
+
+    // Chord qualities and their intervals (in semitones above the root), in order of preference.
+    public enum Quality {
+        MAJOR("major", 0, 4, 7),
+        MINOR("minor", 0, 3, 7),
+        DOMINANT_7("7", 0, 4, 7, 10),
+        MAJOR_7("major 7", 0, 4, 7, 11),
+        MINOR_7("minor 7", 0, 3, 7, 10),
+        HALF_DIMINISHED_7("half-diminished 7", 0, 3, 6, 10),
+        DIMINISHED_7("diminished 7", 0, 3, 6, 9),
+        MINOR_MAJOR_7("minor-major 7", 0, 3, 7, 11),
+        DIMINISHED("diminished", 0, 3, 6),
+        AUGMENTED("augmented", 0, 4, 8),
+        SUSPENDED_4("sus4", 0, 5, 7),
+        SUSPENDED_2("sus2", 0, 2, 7),
+        // Sevenths without their fifth (common in real voicings)
+        DOMINANT_7_NO_5("7 (no 5th)", 0, 4, 10),
+        MAJOR_7_NO_5("major 7 (no 5th)", 0, 4, 11),
+        MINOR_7_NO_5("minor 7 (no 5th)", 0, 3, 10),
+        POWER("5", 0, 7);
+
+        private final String name;
+        private final int[] intervals;
+
+        Quality(String name, int... intervals){
+            this.name = name;
+            this.intervals = intervals;
+        }
+
+        public String getName(){
+            return name;
+        }
+
+        // Semitones above the root of each chord tone (root, third, fifth, seventh...).
+        public int[] getIntervals(){
+            return intervals.clone();
+        }
+    }
+
+    // Code of a set of pitch classes that is not a known chord.
+    public static final int NO_CHORD = 0;
+
+    private static final Quality[] QUALITIES = Quality.values();
+    private static final String[] INVERSION_NAMES = {"root position", "1st inversion", "2nd inversion", "3rd inversion"};
+
+    // Code layout: bits 0-3 root pitch class, bits 4-8 quality ordinal + 1, bits 9-10 inversion.
+    private static final int QUALITY_SHIFT = 4;
+    private static final int INVERSION_SHIFT = 9;
+
+    // CHORDS[mask]: code (root position) of a pitch-class set, or NO_CHORD.
+    private static final int[] CHORDS = new int[4096];
+
+    // INVERSIONS[quality ordinal * 12 + interval of the bass above the root]: the inversion
+    // (0 to 3), or 0 if the bass is not a chord tone.
+    private static final byte[] INVERSIONS = new byte[QUALITIES.length * 12];
+
+    static {
+        for(Quality quality : QUALITIES){
+            int template = 0;
+            for(int position = 0; position < quality.intervals.length; position++){
+                template |= 1 << quality.intervals[position];
+                INVERSIONS[quality.ordinal() * 12 + quality.intervals[position]] = (byte) position;
+            }
+            for(int root = 0; root < 12; root++){
+                int mask = rotate(template, root);
+                if(CHORDS[mask] == NO_CHORD)
+                    CHORDS[mask] = root | (quality.ordinal() + 1) << QUALITY_SHIFT;
+            }
+        }
+    }
+
+    private JMidiChordAnalyzer(){
+    }
+
+    // Chord of a pitch-class set in root position.
+    public static int classify(int pitchClasses){
+        return CHORDS[pitchClasses & 0xFFF];
+    }
+
+    // Chord of a pitch-class set whose lowest note is bassKey (a MIDI key), with its inversion.
+    public static int classify(int pitchClasses, int bassKey){
+        int code = CHORDS[pitchClasses & 0xFFF];
+        if(code == NO_CHORD)
+            return NO_CHORD;
+        int interval = (bassKey - (code & 0x0F) + 120) % 12;
+        return code | INVERSIONS[((code >>> QUALITY_SHIFT) - 1) * 12 + interval] << INVERSION_SHIFT;
+    }
+
+    // Pitch-class set of one MIDI key.
+    public static int pitchClassOf(int key){
+        return 1 << (key % 12);
+    }
+
+    // Chord of a JMidiNoteCluster.
+    public static int classify(JMidiNoteCluster cluster){
+        int mask = 0;
+        int bass = Integer.MAX_VALUE;
+        for(JMidiNote note : cluster.cluster){
+            mask |= pitchClassOf(note.getKey());
+            bass = Math.min(bass, note.getKey());
+        }
+        return cluster.cluster.isEmpty() ? NO_CHORD : classify(mask, bass);
+    }
+
+    // Chord of the notes start to end - 1 of a note table (ex: a cluster found with clusterEnd).
+    public static int classify(JMidiNoteTable notes, int start, int end){
+        int mask = 0;
+        int bass = Integer.MAX_VALUE;
+        for(int i = start; i < end; i++){
+            int key = notes.getKey(i);
+            mask |= 1 << (key % 12);
+            if(key < bass)
+                bass = key;
+        }
+        return start >= end ? NO_CHORD : classify(mask, bass);
+    }
+
+    // Classifies every cluster (notes sharing a starting tick) of a table sorted by starting
+    // tick in one sweep. With sounding set, a cluster also includes every note still held
+    // from earlier ticks, not just the ones that start with it. codes[i] and ticks[i] (either
+    // may be null) get the chord and starting tick of cluster i. Returns the number of clusters.
+    public static int classifyClusters(JMidiNoteTable notes, boolean sounding, int[] codes, long[] ticks){
+        if(!notes.isSortedByTickStart())
+            throw new IllegalStateException("The note table must be sorted by starting tick.");
+
+        // Notes that are sounding: how many per key, the keys as a 128-bit set (for the bass),
+        // and a min-heap of (tick stop, key) to let them go in order.
+        int[] heldPerKey = new int[128];
+        long heldLow = 0;
+        long heldHigh = 0;
+        long[] heapStops = new long[16];
+        int[] heapKeys = new int[16];
+        int heapSize = 0;
+
+        int clusters = 0;
+        for(int start = 0; start < notes.size(); ){
+            int end = notes.clusterEnd(start);
+            long tick = notes.getTickStart(start);
+            int code;
+
+            if(!sounding)
+                code = classify(notes, start, end);
+            else{
+                // Lets go of the notes that stopped at or before this tick
+                while(heapSize > 0 && heapStops[0] <= tick){
+                    int key = heapKeys[0];
+                    heapSize--;
+                    siftDown(heapStops, heapKeys, heapSize, heapStops[heapSize], heapKeys[heapSize]);
+                    if(--heldPerKey[key] == 0){
+                        if(key < 64)
+                            heldLow &= ~(1L << key);
+                        else
+                            heldHigh &= ~(1L << (key - 64));
+                    }
+                }
+
+                // Holds the notes of this cluster
+                for(int i = start; i < end; i++){
+                    int key = notes.getKey(i);
+                    if(heldPerKey[key]++ == 0){
+                        if(key < 64)
+                            heldLow |= 1L << key;
+                        else
+                            heldHigh |= 1L << (key - 64);
+                    }
+                    if(heapSize == heapStops.length){
+                        heapStops = Arrays.copyOf(heapStops, heapSize * 2);
+                        heapKeys = Arrays.copyOf(heapKeys, heapSize * 2);
+                    }
+                    siftUp(heapStops, heapKeys, heapSize++, notes.getTickStop(i), key);
+                }
+
+                int bass = heldLow != 0 ? Long.numberOfTrailingZeros(heldLow) : 64 + Long.numberOfTrailingZeros(heldHigh);
+                code = classify(pitchClassesOf(heldLow, heldHigh), bass);
+            }
+
+            if(codes != null)
+                codes[clusters] = code;
+            if(ticks != null)
+                ticks[clusters] = tick;
+            clusters++;
+            start = end;
+        }
+        return clusters;
+    }
+
+    // Getters for the parts of a code (meaningless for NO_CHORD).
+    public static int rootOf(int code){
+        return code & 0x0F;
+    }
+
+    public static Quality qualityOf(int code){
+        return code == NO_CHORD ? null : QUALITIES[((code >>> QUALITY_SHIFT) & 0x1F) - 1];
+    }
+
+    // 0 for root position, 1 for first inversion (third in the bass) and so on.
+    public static int inversionOf(int code){
+        return (code >>> INVERSION_SHIFT) & 0x03;
+    }
+
+    // Human readable name of a code (ex: "C major (1st inversion)").
+    public static String nameOf(int code){
+        if(code == NO_CHORD)
+            return "no chord";
+        return JMidiNote.NOTE_NAMES[rootOf(code)] + " " + qualityOf(code).getName()
+                + " (" + INVERSION_NAMES[inversionOf(code)] + ")";
+    }
+
+    // Pitch-class set of a 128-bit key set.
+    private static int pitchClassesOf(long low, long high){
+        int mask = 0;
+        for(int octave = 0; octave < 128; octave += 12){
+            // Bits octave to octave + 11 of the 128-bit set
+            long bits;
+            if(octave + 12 <= 64)
+                bits = low >>> octave;
+            else if(octave >= 64)
+                bits = high >>> (octave - 64);
+            else
+                bits = (low >>> octave) | (high << (64 - octave));
+            mask |= (int) bits & 0xFFF;
+        }
+        return mask;
+    }
+
+    private static int rotate(int template, int root){
+        return ((template << root) | (template >>> (12 - root))) & 0xFFF;
+    }
+
+    // Binary min-heap on tick stop, stored in two parallel arrays.
+    private static void siftUp(long[] stops, int[] keys, int index, long stop, int key){
+        while(index > 0){
+            int parent = (index - 1) >>> 1;
+            if(stops[parent] <= stop)
+                break;
+            stops[index] = stops[parent];
+            keys[index] = keys[parent];
+            index = parent;
+        }
+        stops[index] = stop;
+        keys[index] = key;
+    }
+
+    private static void siftDown(long[] stops, int[] keys, int size, long stop, int key){
+        int index = 0;
+        while(true){
+            int child = 2 * index + 1;
+            if(child >= size)
+                break;
+            if(child + 1 < size && stops[child + 1] < stops[child])
+                child++;
+            if(stops[child] >= stop)
+                break;
+            stops[index] = stops[child];
+            keys[index] = keys[child];
+            index = child;
+        }
+        if(index < size){
+            stops[index] = stop;
+            keys[index] = key;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+
+/* Interface for the different output formats of note clusters (groups of
+   notes starting on the same tick). Writers are fed straight from a
+   JMidiNoteTable sorted by starting tick, one cluster at a time, so no
+   intermediate objects or text are built.
+ */
+public interface JMidiClusterWriter extends Closeable, Flushable {
+
+    // Writes the cluster made of notes start to end - 1 of the table.
+    void writeCluster(JMidiNoteTable notes, int start, int end) throws IOException;
+
+    // Writes every cluster of a table sorted by starting tick.
+    default void writeClusters(JMidiNoteTable notes) throws IOException {
+        int start = 0;
+        while(start < notes.size()){
+            int end = notes.clusterEnd(start);
+            writeCluster(notes, start, end);
+            start = end;
+        }
+    }
+}
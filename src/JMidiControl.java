@@ -1,7 +1,5 @@
-import java.io.File;
-import java.io.FileNotFoundException;
+import java.util.List;
 import java.util.Scanner;
-import java.util.TreeSet;
 
 /* Class that represents a MIDI Control Change message.
    Allows client to no longer require original MIDI data to
@@ -10,14 +8,20 @@ import java.util.TreeSet;
  */
 public class JMidiControl {
 
-    // TreeSet containing all the MIDI Control Change messages. Obtained
-    // using the file generated at PATH_NAME_FOR_CONTROL_MESSAGE
-    public static TreeSet<MidiControlMessage> MESSAGE_SET = new TreeSet<>();
+    // Number of MIDI Control Change codes, 0 to 127
+    public final static int CODE_COUNT = 128;
     private final static String UNDEFINED = "UNDEFINED"; // String assigned to undefined values (MIDI has a lot)
 
-    // DO NOT CHANGE unless you are certain that the pathname has the standardized file, otherwise
-    // this program WILL BREAK.
-    private final static String PATH_NAME_FOR_CONTROL_MESSAGE = ".\\req\\MIDI_Control_Change_Codes.txt";
+    // DO NOT CHANGE unless you are certain that the file (in req, see JMidiResources) is the
+    // standardized file, otherwise this program WILL BREAK.
+    private final static String FILE_NAME_FOR_CONTROL_MESSAGE = "MIDI_Control_Change_Codes.txt";
+
+    // Table of all the MIDI Control Change messages, indexed by code number. The holder class
+    // is only loaded (and the file only read) the first time a message is needed; the JVM makes
+    // sure that happens once and that every thread sees the finished array.
+    private static class MessageTable {
+        private static final MidiControlMessage[] MESSAGES = readMessages();
+    }
 
     // Special number to indicate the end of track message.
     private final static int END_OF_TRACK = -1;
@@ -26,50 +30,60 @@ public class JMidiControl {
     private int codeNumber;
     private int currentStatus;
 
-    // Method that initializes MESSAGE_SET using the specialized file at PATH_NAME_FOR_CONTROL_MESSAGE.
-    // This method must be run before any JMidiControl objects are initialized.
-    public static void initMessageSet() throws FileNotFoundException {
-        // Scanner to go through the file and a String that contains all the
-        // undefined values.
-        Scanner codeScan = new Scanner(new File(PATH_NAME_FOR_CONTROL_MESSAGE));
-        String undefinedLine = codeScan.nextLine();
+    // Loads the Control Change table now instead of on first use (ex: before handing
+    // work to other threads). Calling it again does nothing.
+    public static void initMessageSet(){
+        codeNameOf(0);
+    }
 
-        // Scanner to go through all the undefined values
-        Scanner undefinedScan = new Scanner(undefinedLine);
+    // Name of a Control Change code (ex: 7 -> CHANNEL_VOLUME), or null if it is not a valid code.
+    public static String codeNameOf(int codeNum){
+        if(codeNum < 0 || codeNum >= CODE_COUNT || MessageTable.MESSAGES[codeNum] == null)
+            return null;
+        return MessageTable.MESSAGES[codeNum].codeName;
+    }
+
+    // Reads the table using the specialized file at FILE_NAME_FOR_CONTROL_MESSAGE.
+    private static MidiControlMessage[] readMessages(){
+        MidiControlMessage[] messages = new MidiControlMessage[CODE_COUNT];
+        List<String> lines = JMidiResources.readLines(FILE_NAME_FOR_CONTROL_MESSAGE);
+
+        // Scanner to go through all the undefined values (on the first line)
+        Scanner undefinedScan = new Scanner(lines.get(0));
         undefinedScan.next();
 
-        // Goes through the undefined values and adds them to the MESSAGE_SET
+        // Goes through the undefined values and adds them to the table
         while(undefinedScan.hasNext()){
             int codeNum = undefinedScan.nextInt();
-            MidiControlMessage message = new MidiControlMessage(codeNum, 0, 0, UNDEFINED);
-            MESSAGE_SET.add(message);
+            add(messages, new MidiControlMessage(codeNum, 0, 0, UNDEFINED));
         }
 
         undefinedScan.close(); // closes it since we don't need it anymore
 
-        // While the rest of the file has stuff
-        while(codeScan.hasNext()){
-            // Go through each line
-            String codeString = codeScan.nextLine();
+        // Go through the rest of the lines
+        for(String codeString : lines.subList(1, lines.size())){
             Scanner stringScan = new Scanner(codeString);
 
-            // While the line has stuff, record the data and add it to MESSAGE_SET
+            // While the line has stuff, record the data and add it to the table
             while(stringScan.hasNext()){
                 int codeNum = stringScan.nextInt();
                 int offLim = stringScan.nextInt();
                 int onLim = stringScan.nextInt();
                 String codeName = stringScan.next();
-                MidiControlMessage message = new MidiControlMessage(codeNum, offLim, onLim, codeName);
-                MESSAGE_SET.add(message);
+                add(messages, new MidiControlMessage(codeNum, offLim, onLim, codeName));
             }
         }
+        return messages;
     }
 
-    // Constructor for JMidiControl, assigns the code and status
-    public JMidiControl(int codeNum, int dataNum) throws FileNotFoundException{
-        if(MESSAGE_SET == null)
-            initMessageSet();
+    // The first message for a code is kept (the undefined line comes first).
+    private static void add(MidiControlMessage[] messages, MidiControlMessage message){
+        if(message.codeNum >= 0 && message.codeNum < CODE_COUNT && messages[message.codeNum] == null)
+            messages[message.codeNum] = message;
+    }
 
+    // Constructor for JMidiControl, assigns the code and status
+    public JMidiControl(int codeNum, int dataNum){
         codeNumber = codeNum;
         currentStatus = dataNum;
     }
@@ -94,11 +108,8 @@ public class JMidiControl {
         }
 
         // Finds the resulting MIDIControlMessage for the code number
-        for(MidiControlMessage mes: MESSAGE_SET){
-            if(mes.codeNum == codeNumber){
-                message = mes;
-            }
-        }
+        if(codeNumber >= 0 && codeNumber < CODE_COUNT)
+            message = MessageTable.MESSAGES[codeNumber];
 
         // Just in case but this should never be run.
         if(message == null)
@@ -124,9 +135,9 @@ public class JMidiControl {
         return stringBuilder.toString();
     }
 
-    // Inner class to represent the objects contained in MESSAGE_SET. These objects
-    // are generated using initMessageSet().
-    private static class MidiControlMessage implements Comparable<MidiControlMessage> {
+    // Inner class to represent the objects contained in the message table. These objects
+    // are generated using readMessages().
+    private static class MidiControlMessage {
         // Instance variables for the name of the MIDI Control Message, the number
         // of the code, the on limit (which represents how high a number can be for
         // it to be considered an "ON" message) and the off limit (how low a number
@@ -145,11 +156,5 @@ public class JMidiControl {
             onLimit = onLim;
             this.codeName = codeName;
         }
-
-        // compareTo is necessary in order to allow for a TreeSet.
-        @Override
-        public int compareTo(MidiControlMessage o) {
-            return codeNum - o.codeNum;
-        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,886 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/* Class that stores the paired notes of a whole corpus (many MIDI files) in
+   one compact file, column by column, so they can be scanned far faster than
+   the text or binary cluster dumps can be read back.
+
+   The notes of each file are grouped by track and channel, sorted by starting
+   tick in each group, and cut into blocks of up to BLOCK_NOTES notes of one
+   group (so of one file). In a block every column is stored on its own:
+   - tick starts, as the difference to the previous note (0 for the first);
+   - durations (tick stop - tick start, zigzag encoded);
+   - channels and tracks, run-length encoded (value and run length varints),
+     which is a single run since blocks are cut by group;
+   - keys and velocities.
+   Tick starts, durations, keys and velocities are number columns, stored
+   whichever of three ways is smallest for the block:
+   - FRAME: the lowest value, then every value minus it bit-packed in as few
+     bits as the highest needs (0 bits when every value is the same);
+   - DICTIONARY: the distinct values, then the index of every value
+     bit-packed (ex: durations, which are mostly a handful of note lengths);
+   - VARINTS: every value as a varint.
+   A block starts with the byte length of its columns, so a scan that only
+   needs some columns (ex: keys) skips the others.
+
+   After the blocks comes the directory: every file (name, PPQ, its blocks),
+   every block (where it is, its file, its number of notes, its first tick
+   start and last tick stop, its lowest and highest key) and the instrument
+   names of the 16 channels (JMidiNote.channelNameOf), stored once so the
+   channel column is the code into that dictionary. findBlocks uses the block
+   statistics to skip blocks that cannot hold what a scan is after, and blocks
+   decode on their own, so forEachBlockInParallel decodes them on every core.
+
+   Layout: "JMCA", version (int), the blocks, the directory, then the offset of
+   the directory (long) and "JMCA" again. Everything is big-endian, varints are
+   unsigned LEB128 like in JMidiBinaryClusterWriter, and bit-packed values go
+   lowest bits first. The archive is memory-mapped to be read, so it is
+   limited to 2 GB.
+
+   Run it to archive every MIDI file in a directory tree, or to scan an archive:
+   java JMidiCorpusArchive <archive> <directory with MIDI files>
+   java JMidiCorpusArchive <archive>
+ */
+public class JMidiCorpusArchive {
+
+    // "JMCA" and the current version of the format
+    public static final int MAGIC = 0x4A4D4341;
+    public static final int VERSION = 1;
+
+    // Most notes in one block
+    public static final int BLOCK_NOTES = 16384;
+
+    // Columns a block can be decoded with (ticks are the tick starts and stops)
+    public static final int TICKS = 1;
+    public static final int CHANNELS = 2;
+    public static final int KEYS = 4;
+    public static final int VELOCITIES = 8;
+    public static final int TRACKS = 16;
+    public static final int ALL_COLUMNS = TICKS | CHANNELS | KEYS | VELOCITIES | TRACKS;
+
+    // Ways a number column is stored
+    private static final int FRAME = 0;
+    private static final int DICTIONARY = 1;
+    private static final int VARINTS = 2;
+
+    // Widest bit-packed value (wider columns are stored as varints)
+    private static final int MAX_WIDTH = 56;
+
+    private static final int MIDI_CHANNELS = 16;
+
+    private final ByteBuffer data;
+
+    // Per file
+    private final String[] fileNames;
+    private final int[] filePPQs;
+    private final int[] fileFirstBlocks;
+    private final int[] fileBlockCounts;
+
+    // Per block
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final int[] blockFiles;
+    private final int[] blockNoteCounts;
+    private final long[] blockMinTicks;
+    private final long[] blockMaxTicks;
+    private final byte[] blockMinKeys;
+    private final byte[] blockMaxKeys;
+
+    private final String[] instrumentNames;
+
+    private JMidiCorpusArchive(ByteBuffer data) throws IOException {
+        this.data = data;
+        try {
+            int limit = data.limit();
+            if(limit < 20 || data.getInt(0) != MAGIC || data.getInt(limit - 4) != MAGIC)
+                throw new IOException("Not a corpus archive.");
+            int version = data.getInt(4);
+            if(version != VERSION)
+                throw new IOException("Unsupported corpus archive version: " + version);
+            long directoryOffset = data.getLong(limit - 12);
+            if(directoryOffset < 8 || directoryOffset > limit - 12)
+                throw new IOException("Corrupt corpus archive.");
+
+            ByteBuffer in = data.duplicate();
+            in.position((int) directoryOffset);
+            int fileCount = checkCount(in.getInt(), in);
+            fileNames = new String[fileCount];
+            filePPQs = new int[fileCount];
+            fileFirstBlocks = new int[fileCount];
+            fileBlockCounts = new int[fileCount];
+            for(int file = 0; file < fileCount; file++){
+                fileNames[file] = getString(in);
+                filePPQs[file] = in.getInt();
+                fileFirstBlocks[file] = in.getInt();
+                fileBlockCounts[file] = in.getInt();
+            }
+
+            int blockCount = checkCount(in.getInt(), in);
+            blockOffsets = new long[blockCount];
+            blockLengths = new int[blockCount];
+            blockFiles = new int[blockCount];
+            blockNoteCounts = new int[blockCount];
+            blockMinTicks = new long[blockCount];
+            blockMaxTicks = new long[blockCount];
+            blockMinKeys = new byte[blockCount];
+            blockMaxKeys = new byte[blockCount];
+            for(int block = 0; block < blockCount; block++){
+                blockOffsets[block] = in.getLong();
+                blockLengths[block] = in.getInt();
+                blockFiles[block] = in.getInt();
+                blockNoteCounts[block] = in.getInt();
+                blockMinTicks[block] = in.getLong();
+                blockMaxTicks[block] = in.getLong();
+                blockMinKeys[block] = in.get();
+                blockMaxKeys[block] = in.get();
+                if(blockOffsets[block] < 8 || blockLengths[block] < 0
+                        || blockOffsets[block] + blockLengths[block] > directoryOffset
+                        || blockFiles[block] < 0 || blockFiles[block] >= fileCount
+                        || blockNoteCounts[block] < 0 || blockNoteCounts[block] > BLOCK_NOTES)
+                    throw new IOException("Corrupt corpus archive.");
+            }
+            for(int file = 0; file < fileCount; file++){
+                if(fileFirstBlocks[file] < 0 || fileBlockCounts[file] < 0
+                        || fileFirstBlocks[file] + fileBlockCounts[file] > blockCount)
+                    throw new IOException("Corrupt corpus archive.");
+            }
+
+            instrumentNames = new String[MIDI_CHANNELS];
+            for(int channel = 0; channel < MIDI_CHANNELS; channel++)
+                instrumentNames[channel] = getString(in);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Corrupt corpus archive.", e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1){
+            System.out.println("Usage: java JMidiCorpusArchive <archive> [directory with MIDI files to archive]");
+            return;
+        }
+
+        if(args.length >= 2){
+            List<Path> inputs = JMidiFileReader.findMidiFiles(Paths.get(args[1]));
+            JMidiFileReader reader = new JMidiFileReader();
+            try (Writer writer = new Writer(Paths.get(args[0]))) {
+                for(Path input : inputs){
+                    try {
+                        writer.add(input.toString(), JMidiAnalysis.read(reader, input.toFile()).getNotes());
+                    } catch (Exception e) {
+                        System.out.println("FAILED: " + input + ": " + e);
+                    }
+                }
+            }
+        }
+
+        JMidiCorpusArchive archive = open(Paths.get(args[0]));
+        long notes = archive.getNoteCount();
+        long bytes = Files.size(Paths.get(args[0]));
+        System.out.println("Files: " + archive.getFileCount() + ", blocks: " + archive.getBlockCount()
+                + ", notes: " + notes + ", bytes: " + bytes
+                + String.format(" (%.2f bytes per note)", notes == 0 ? 0 : bytes / (double) notes));
+
+        // Notes per key, decoding only the keys, on every core (best of 5 runs, the first
+        // ones are slower while the JIT compiles the decoding)
+        int[] everyBlock = archive.findBlocks(0, Long.MAX_VALUE, 0, 127);
+        AtomicLongArray perKey = new AtomicLongArray(128);
+        long bestNanos = Long.MAX_VALUE;
+        for(int run = 0; run < 5; run++){
+            AtomicLongArray counted = new AtomicLongArray(128);
+            long start = System.nanoTime();
+            archive.forEachBlockInParallel(everyBlock, KEYS, block -> {
+                long[] counts = new long[128];
+                for(int i = 0; i < block.size(); i++)
+                    counts[block.getKey(i)]++;
+                for(int key = 0; key < 128; key++){
+                    if(counts[key] != 0)
+                        counted.addAndGet(key, counts[key]);
+                }
+            });
+            bestNanos = Math.min(bestNanos, Math.max(1, System.nanoTime() - start));
+            perKey = counted;
+        }
+        System.out.println(String.format("Scanned keys in %.3f ms (%.1f million notes per second)",
+                bestNanos / 1e6, notes * 1e3 / bestNanos));
+        int mostCommon = 0;
+        for(int key = 1; key < 128; key++){
+            if(perKey.get(key) > perKey.get(mostCommon))
+                mostCommon = key;
+        }
+        if(notes > 0)
+            System.out.println("Most common note: " + JMidiNote.pitchNotationOf(mostCommon) + " (" + perKey.get(mostCommon) + ")");
+    }
+
+    // Opens an archive written by a Writer (the file is memory-mapped).
+    public static JMidiCorpusArchive open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if(channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Corpus archive is too large to map: " + file);
+            return new JMidiCorpusArchive(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public int getFileCount(){
+        return fileNames.length;
+    }
+
+    public String getFileName(int file){
+        return fileNames[file];
+    }
+
+    public int getFilePPQ(int file){
+        return filePPQs[file];
+    }
+
+    public int getBlockCount(){
+        return blockOffsets.length;
+    }
+
+    public int getBlockFile(int block){
+        return blockFiles[block];
+    }
+
+    public int getBlockNoteCount(int block){
+        return blockNoteCounts[block];
+    }
+
+    // First tick start and last tick stop of the notes of a block
+    public long getBlockMinTick(int block){
+        return blockMinTicks[block];
+    }
+
+    public long getBlockMaxTick(int block){
+        return blockMaxTicks[block];
+    }
+
+    public int getBlockMinKey(int block){
+        return blockMinKeys[block];
+    }
+
+    public int getBlockMaxKey(int block){
+        return blockMaxKeys[block];
+    }
+
+    // Number of notes of every file.
+    public long getNoteCount(){
+        long count = 0;
+        for(int notes : blockNoteCounts)
+            count += notes;
+        return count;
+    }
+
+    // Instrument name of a channel (from the archive's dictionary), or null if it has none.
+    public String getInstrumentName(int channel){
+        String name = instrumentNames[channel];
+        return name.isEmpty() ? null : name;
+    }
+
+    // Blocks that may have notes starting before tickTo and stopping at or after tickFrom,
+    // with a key from lowestKey to highestKey (inclusive); the others are skipped without
+    // being decoded. Ticks are the ticks of each file.
+    public int[] findBlocks(long tickFrom, long tickTo, int lowestKey, int highestKey){
+        int[] found = new int[blockOffsets.length];
+        int count = 0;
+        for(int block = 0; block < blockOffsets.length; block++){
+            if(blockMinTicks[block] < tickTo && blockMaxTicks[block] >= tickFrom
+                    && blockMinKeys[block] <= highestKey && blockMaxKeys[block] >= lowestKey)
+                found[count++] = block;
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    // Every note of a file, sorted by starting tick (notes that start on the same tick by
+    // track, then channel).
+    public JMidiNoteTable readFile(int file){
+        int first = fileFirstBlocks[file];
+        int notes = 0;
+        for(int block = first; block < first + fileBlockCounts[file]; block++)
+            notes += blockNoteCounts[block];
+
+        JMidiNoteTable table = new JMidiNoteTable(filePPQs[file], notes);
+        Block decoded = new Block();
+        for(int block = first; block < first + fileBlockCounts[file]; block++){
+            decode(block, ALL_COLUMNS, decoded);
+            for(int i = 0; i < decoded.size; i++)
+                table.add(decoded.tickStarts[i], decoded.tickStops[i], decoded.channels[i], decoded.keys[i],
+                        decoded.velocities[i], decoded.tracks[i]);
+        }
+        table.sortByTickStart();
+        return table;
+    }
+
+    // Decodes the given columns (ex: KEYS | VELOCITIES) of a block into into, and returns it.
+    // The other columns of into are left as they were.
+    public Block decode(int block, int columns, Block into){
+        into.block = block;
+        into.file = blockFiles[block];
+        into.size = blockNoteCounts[block];
+        int size = into.size;
+
+        // Decoding from an array is much faster than through the mapped buffer
+        int length = blockLengths[block];
+        if(into.bytes.length < length)
+            into.bytes = new byte[Math.max(length, into.bytes.length * 2)];
+        byte[] bytes = into.bytes;
+        ByteBuffer in = data.duplicate();
+        in.position((int) blockOffsets[block]);
+        in.get(bytes, 0, length);
+
+        int[] at = {0};
+        int ticksEnd = (int) readVarint(bytes, at);
+        int durationsEnd = ticksEnd + (int) readVarint(bytes, at);
+        int channelsEnd = durationsEnd + (int) readVarint(bytes, at);
+        int tracksEnd = channelsEnd + (int) readVarint(bytes, at);
+        int keysEnd = tracksEnd + (int) readVarint(bytes, at);
+        int start = at[0];
+
+        if((columns & TICKS) != 0){
+            long[] tickStarts = into.tickStarts;
+            long[] tickStops = into.tickStops;
+            readNumbers(bytes, start, size, tickStarts);
+            long tick = blockMinTicks[block];
+            for(int i = 0; i < size; i++){
+                tick += tickStarts[i];
+                tickStarts[i] = tick;
+            }
+            readNumbers(bytes, start + ticksEnd, size, tickStops);
+            for(int i = 0; i < size; i++){
+                long duration = tickStops[i];
+                tickStops[i] = tickStarts[i] + ((duration >>> 1) ^ -(duration & 1));
+            }
+        }
+        if((columns & CHANNELS) != 0)
+            readRuns(bytes, start + durationsEnd, size, into.channels);
+        if((columns & TRACKS) != 0)
+            readRuns(bytes, start + channelsEnd, size, into.tracks);
+        if((columns & KEYS) != 0)
+            readNumbers(bytes, start + tracksEnd, size, into.numbers, into.keys);
+        if((columns & VELOCITIES) != 0)
+            readNumbers(bytes, start + keysEnd, size, into.numbers, into.velocities);
+        return into;
+    }
+
+    // Decodes the blocks one after the other (into the same Block) and hands each to action.
+    public void forEachBlock(int[] blocks, int columns, Consumer<Block> action){
+        Block decoded = new Block();
+        for(int block : blocks)
+            action.accept(decode(block, columns, decoded));
+    }
+
+    // Same as above, but the blocks are decoded on every core (the common ForkJoinPool), each
+    // thread into its own Block, in no particular order: action must be thread-safe.
+    public void forEachBlockInParallel(int[] blocks, int columns, Consumer<Block> action){
+        ThreadLocal<Block> decoded = ThreadLocal.withInitial(Block::new);
+        IntStream.of(blocks).parallel().forEach(block -> action.accept(decode(block, columns, decoded.get())));
+    }
+
+    // A number column (FRAME, DICTIONARY or VARINTS) of size values.
+    private static void readNumbers(byte[] bytes, int position, int size, long[] values){
+        int[] at = {position + 1};
+        switch(bytes[position]){
+            case FRAME: {
+                long base = readVarint(bytes, at);
+                int width = bytes[at[0]++];
+                unpack(bytes, at[0], size, width, values);
+                if(base != 0){
+                    for(int i = 0; i < size; i++)
+                        values[i] += base;
+                }
+                break;
+            }
+            case DICTIONARY: {
+                long[] dictionary = new long[(int) readVarint(bytes, at)];
+                long value = 0;
+                for(int i = 0; i < dictionary.length; i++){
+                    value += readVarint(bytes, at);
+                    dictionary[i] = value;
+                }
+                int width = bytes[at[0]++];
+                unpack(bytes, at[0], size, width, values);
+                for(int i = 0; i < size; i++)
+                    values[i] = dictionary[(int) values[i]];
+                break;
+            }
+            case VARINTS:
+                for(int i = 0; i < size; i++)
+                    values[i] = readVarint(bytes, at);
+                break;
+            default:
+                throw new IllegalStateException("Corrupt corpus archive block.");
+        }
+    }
+
+    // Same as above, for a column of ints (decoded in numbers first).
+    private static void readNumbers(byte[] bytes, int position, int size, long[] numbers, int[] values){
+        readNumbers(bytes, position, size, numbers);
+        for(int i = 0; i < size; i++)
+            values[i] = (int) numbers[i];
+    }
+
+    // size values of width bits (at most MAX_WIDTH), lowest bits first.
+    private static void unpack(byte[] bytes, int position, int size, int width, long[] values){
+        if(width == 0){
+            Arrays.fill(values, 0, size, 0);
+            return;
+        }
+        long mask = (1L << width) - 1;
+        int i = 0;
+        if(width <= 8){
+            // 8 values at a time, which take width bytes
+            for(; i + 8 <= size; i += 8){
+                long word = 0;
+                for(int b = 0; b < width; b++)
+                    word |= (bytes[position++] & 0xFFL) << (8 * b);
+                values[i] = word & mask;
+                values[i + 1] = (word >>> width) & mask;
+                values[i + 2] = (word >>> 2 * width) & mask;
+                values[i + 3] = (word >>> 3 * width) & mask;
+                values[i + 4] = (word >>> 4 * width) & mask;
+                values[i + 5] = (word >>> 5 * width) & mask;
+                values[i + 6] = (word >>> 6 * width) & mask;
+                values[i + 7] = (word >>> 7 * width) & mask;
+            }
+        }
+        long bits = 0;
+        int bitCount = 0;
+        for(; i < size; i++){
+            while(bitCount < width){
+                bits |= (bytes[position++] & 0xFFL) << bitCount;
+                bitCount += 8;
+            }
+            values[i] = bits & mask;
+            bits >>>= width;
+            bitCount -= width;
+        }
+    }
+
+    // (value, run length) varint pairs until size values are filled in.
+    private static void readRuns(byte[] bytes, int position, int size, int[] values){
+        int[] at = {position};
+        int filled = 0;
+        while(filled < size){
+            int value = (int) readVarint(bytes, at);
+            int run = (int) readVarint(bytes, at);
+            if(run <= 0 || run > size - filled)
+                throw new IllegalStateException("Corrupt corpus archive block.");
+            Arrays.fill(values, filled, filled + run, value);
+            filled += run;
+        }
+    }
+
+    // Reads the varint at at[0] and moves at[0] past it.
+    private static long readVarint(byte[] bytes, int[] at){
+        int position = at[0];
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do{
+            b = bytes[position++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while(b < 0);
+        at[0] = position;
+        return value;
+    }
+
+    private static int checkCount(int count, ByteBuffer in) throws IOException {
+        if(count < 0 || count > in.remaining())
+            throw new IOException("Corrupt corpus archive.");
+        return count;
+    }
+
+    private static String getString(ByteBuffer in){
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // The notes of one decoded block, column by column (only the columns that were decoded
+    // hold this block's notes). Reused from one block to the next.
+    public static class Block {
+        private int block;
+        private int file;
+        private int size;
+        private final long[] tickStarts = new long[BLOCK_NOTES];
+        private final long[] tickStops = new long[BLOCK_NOTES];
+        private final int[] channels = new int[BLOCK_NOTES];
+        private final int[] keys = new int[BLOCK_NOTES];
+        private final int[] velocities = new int[BLOCK_NOTES];
+        private final int[] tracks = new int[BLOCK_NOTES];
+
+        // Bytes of the block and the numbers of a column being decoded
+        private byte[] bytes = new byte[1 << 16];
+        private final long[] numbers = new long[BLOCK_NOTES];
+
+        // Number of the block and of the file its notes are from
+        public int getBlock(){
+            return block;
+        }
+
+        public int getFile(){
+            return file;
+        }
+
+        public int size(){
+            return size;
+        }
+
+        public long getTickStart(int index){
+            return tickStarts[index];
+        }
+
+        public long getTickStop(int index){
+            return tickStops[index];
+        }
+
+        public int getChannel(int index){
+            return channels[index];
+        }
+
+        public int getKey(int index){
+            return keys[index];
+        }
+
+        public int getVelocity(int index){
+            return velocities[index];
+        }
+
+        public int getTrack(int index){
+            return tracks[index];
+        }
+    }
+
+    // Writes an archive: add the notes of every file, then close it to write the directory.
+    // It is written to a temporary file, moved in place on close. Not thread-safe; files are
+    // stored in the order they are added.
+    public static class Writer implements Closeable {
+        private final Path file;
+        private final Path temporary;
+        private final FileChannel out;
+        private long position;
+        private ByteBuffer block = ByteBuffer.allocate(1 << 16);
+
+        // File entries and block entries of the directory, kept apart until close
+        private ByteBuffer fileEntries = ByteBuffer.allocate(1 << 12);
+        private ByteBuffer directory = ByteBuffer.allocate(1 << 12);
+        private int fileCount;
+        private int blockCount;
+
+        // A column of the block being written, and its values sorted
+        private final long[] numbers = new long[BLOCK_NOTES];
+        private final long[] sorted = new long[BLOCK_NOTES];
+
+        public Writer(Path file) throws IOException {
+            this.file = file;
+            temporary = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+            out = FileChannel.open(temporary, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            write(header);
+        }
+
+        // Adds the notes of a file.
+        public void add(String name, JMidiNoteTable notes) throws IOException {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            if(nameBytes.length > 0xFFFF)
+                throw new IllegalArgumentException("File name is too long: " + name);
+            JMidiNoteTable grouped = groupByTrackAndChannel(notes);
+
+            // A block holds one track and channel, so its ticks are in order and close together
+            int firstBlock = blockCount;
+            int start = 0;
+            while(start < grouped.size()){
+                int end = start + 1;
+                while(end < grouped.size() && end - start < BLOCK_NOTES && grouped.getTrack(end) == grouped.getTrack(start)
+                        && grouped.getChannel(end) == grouped.getChannel(start))
+                    end++;
+                writeBlock(grouped, start, end, fileCount);
+                start = end;
+            }
+
+            fileEntries = ensureRoom(fileEntries, 14 + nameBytes.length);
+            fileEntries.putShort((short) nameBytes.length).put(nameBytes);
+            fileEntries.putInt(notes.getPPQ()).putInt(firstBlock).putInt(blockCount - firstBlock);
+            fileCount++;
+        }
+
+        // The notes by track, then channel, then starting tick (the order they were added in
+        // when they start on the same tick).
+        private static JMidiNoteTable groupByTrackAndChannel(JMidiNoteTable notes){
+            if(!notes.isSortedByTickStart()){
+                JMidiNoteTable sorted = new JMidiNoteTable(notes.getPPQ(), notes.size());
+                sorted.addAll(notes);
+                sorted.sortByTickStart();
+                notes = sorted;
+            }
+
+            // Counting sort on the groups, which keeps the notes of a group by starting tick
+            int[] groups = new int[notes.size()];
+            for(int i = 0; i < groups.length; i++)
+                groups[i] = notes.getTrack(i) << 4 | notes.getChannel(i);
+            int[] distinct = IntStream.of(groups).distinct().sorted().toArray();
+            int[] positions = new int[distinct.length + 1];
+            for(int i = 0; i < groups.length; i++){
+                groups[i] = Arrays.binarySearch(distinct, groups[i]);
+                positions[groups[i] + 1]++;
+            }
+            for(int group = 0; group < distinct.length; group++)
+                positions[group + 1] += positions[group];
+            int[] order = new int[groups.length];
+            for(int i = 0; i < groups.length; i++)
+                order[positions[groups[i]]++] = i;
+
+            JMidiNoteTable grouped = new JMidiNoteTable(notes.getPPQ(), notes.size());
+            for(int i : order)
+                grouped.add(notes.getTickStart(i), notes.getTickStop(i), notes.getChannel(i), notes.getKey(i),
+                        notes.getVelocity(i), notes.getTrack(i));
+            return grouped;
+        }
+
+        // Writes the directory and moves the archive in place.
+        @Override
+        public void close() throws IOException {
+            try {
+                try {
+                    long directoryOffset = position;
+                    ByteBuffer count = ByteBuffer.allocate(4);
+                    count.putInt(fileCount).flip();
+                    write(count);
+                    fileEntries.flip();
+                    write(fileEntries);
+                    count.clear();
+                    count.putInt(blockCount).flip();
+                    write(count);
+                    directory.flip();
+                    write(directory);
+
+                    ByteBuffer trailer = ByteBuffer.allocate(1 << 10);
+                    for(int channel = 0; channel < MIDI_CHANNELS; channel++){
+                        String name = JMidiNote.channelNameOf(channel);
+                        byte[] nameBytes = (name == null ? "" : name).getBytes(StandardCharsets.UTF_8);
+                        trailer = ensureRoom(trailer, 2 + nameBytes.length + 12);
+                        trailer.putShort((short) nameBytes.length).put(nameBytes);
+                    }
+                    trailer.putLong(directoryOffset).putInt(MAGIC).flip();
+                    write(trailer);
+                } finally {
+                    out.close();
+                }
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+
+        private void writeBlock(JMidiNoteTable notes, int start, int end, int file) throws IOException {
+            int size = end - start;
+            // Worst case: 10 byte varints in every column and a run per note
+            block.clear();
+            block = ensureRoom(block, 64 + size * 64);
+
+            // Columns go after their lengths, which are only known at the end: they are
+            // written from byte 64 on and moved down once the lengths are in front
+            block.position(64);
+            long minTick = notes.getTickStart(start);
+            long maxTick = Long.MIN_VALUE;
+            int minKey = 127;
+            int maxKey = 0;
+            long previous = minTick;
+            for(int i = start; i < end; i++){
+                numbers[i - start] = notes.getTickStart(i) - previous;
+                previous = notes.getTickStart(i);
+                maxTick = Math.max(maxTick, notes.getTickStop(i));
+                minKey = Math.min(minKey, notes.getKey(i));
+                maxKey = Math.max(maxKey, notes.getKey(i));
+            }
+            int[] lengths = new int[5];
+            int mark = block.position();
+            putNumbers(size);
+            lengths[0] = block.position() - mark;
+
+            for(int i = start; i < end; i++){
+                long duration = notes.getTickStop(i) - notes.getTickStart(i);
+                numbers[i - start] = (duration << 1) ^ (duration >> 63);
+            }
+            mark = block.position();
+            putNumbers(size);
+            lengths[1] = block.position() - mark;
+
+            mark = block.position();
+            for(int i = start; i < end; ){
+                int channel = notes.getChannel(i);
+                int run = 1;
+                while(i + run < end && notes.getChannel(i + run) == channel)
+                    run++;
+                putVarint(block, channel);
+                putVarint(block, run);
+                i += run;
+            }
+            lengths[2] = block.position() - mark;
+
+            mark = block.position();
+            for(int i = start; i < end; ){
+                int track = notes.getTrack(i);
+                int run = 1;
+                while(i + run < end && notes.getTrack(i + run) == track)
+                    run++;
+                putVarint(block, track & 0xFFFF);
+                putVarint(block, run);
+                i += run;
+            }
+            lengths[3] = block.position() - mark;
+
+            for(int i = start; i < end; i++)
+                numbers[i - start] = notes.getKey(i);
+            mark = block.position();
+            putNumbers(size);
+            lengths[4] = block.position() - mark;
+
+            for(int i = start; i < end; i++)
+                numbers[i - start] = notes.getVelocity(i);
+            putNumbers(size);
+
+            // Lengths in front of the columns (the velocities run to the end of the block)
+            int columnsEnd = block.position();
+            ByteBuffer header = ByteBuffer.allocate(64);
+            for(int length : lengths)
+                putVarint(header, length);
+            int headerLength = header.position();
+            System.arraycopy(block.array(), 64, block.array(), headerLength, columnsEnd - 64);
+            System.arraycopy(header.array(), 0, block.array(), 0, headerLength);
+            block.position(0).limit(headerLength + columnsEnd - 64);
+
+            long offset = position;
+            int length = block.remaining();
+            write(block);
+
+            directory = ensureRoom(directory, 42);
+            directory.putLong(offset).putInt(length).putInt(file).putInt(size);
+            directory.putLong(minTick).putLong(maxTick).put((byte) minKey).put((byte) maxKey);
+            blockCount++;
+        }
+
+        // Writes the first size numbers as a number column, whichever way is smallest.
+        private void putNumbers(int size){
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            long varintsLength = 0;
+            for(int i = 0; i < size; i++){
+                min = Math.min(min, numbers[i]);
+                max = Math.max(max, numbers[i]);
+                varintsLength += varintLength(numbers[i]);
+            }
+
+            // Negative numbers are huge unsigned ones (ex: the zigzag of a hugely negative
+            // duration), which only varints can hold
+            long frameLength = Long.MAX_VALUE;
+            int frameWidth = bitsFor(max - min);
+            if(min >= 0 && frameWidth <= MAX_WIDTH)
+                frameLength = varintLength(min) + 1 + ((long) size * frameWidth + 7) / 8;
+
+            long dictionaryLength = Long.MAX_VALUE;
+            int distinct = 0;
+            if(min >= 0){
+                System.arraycopy(numbers, 0, sorted, 0, size);
+                Arrays.sort(sorted, 0, size);
+                dictionaryLength = 0;
+                for(int i = 0; i < size; i++){
+                    if(i == 0 || sorted[i] != sorted[i - 1]){
+                        dictionaryLength += varintLength(distinct == 0 ? sorted[i] : sorted[i] - sorted[distinct - 1]);
+                        sorted[distinct++] = sorted[i];
+                    }
+                }
+                dictionaryLength += varintLength(distinct) + 1 + ((long) size * bitsFor(distinct - 1) + 7) / 8;
+            }
+
+            if(frameLength <= dictionaryLength && frameLength <= varintsLength){
+                block.put((byte) FRAME);
+                putVarint(block, min);
+                block.put((byte) frameWidth);
+                for(int i = 0; i < size; i++)
+                    numbers[i] -= min;
+                pack(size, frameWidth);
+            }
+            else if(dictionaryLength <= varintsLength){
+                block.put((byte) DICTIONARY);
+                putVarint(block, distinct);
+                for(int i = 0; i < distinct; i++)
+                    putVarint(block, i == 0 ? sorted[i] : sorted[i] - sorted[i - 1]);
+                int width = bitsFor(distinct - 1);
+                block.put((byte) width);
+                for(int i = 0; i < size; i++)
+                    numbers[i] = Arrays.binarySearch(sorted, 0, distinct, numbers[i]);
+                pack(size, width);
+            }
+            else{
+                block.put((byte) VARINTS);
+                for(int i = 0; i < size; i++)
+                    putVarint(block, numbers[i]);
+            }
+        }
+
+        // The first size numbers in width bits each (at most MAX_WIDTH), lowest bits first.
+        private void pack(int size, int width){
+            long bits = 0;
+            int bitCount = 0;
+            for(int i = 0; i < size; i++){
+                bits |= numbers[i] << bitCount;
+                bitCount += width;
+                while(bitCount >= 8){
+                    block.put((byte) bits);
+                    bits >>>= 8;
+                    bitCount -= 8;
+                }
+            }
+            if(bitCount > 0)
+                block.put((byte) bits);
+        }
+
+        private static int bitsFor(long value){
+            return 64 - Long.numberOfLeadingZeros(value);
+        }
+
+        private static int varintLength(long value){
+            int length = 1;
+            while((value >>>= 7) != 0)
+                length++;
+            return length;
+        }
+
+        private static void putVarint(ByteBuffer out, long value){
+            while((value & ~0x7FL) != 0){
+                out.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.put((byte) value);
+        }
+
+        private static ByteBuffer ensureRoom(ByteBuffer buffer, int room){
+            if(buffer.remaining() >= room)
+                return buffer;
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + room));
+            buffer.flip();
+            bigger.put(buffer);
+            return bigger;
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            while(buffer.hasRemaining())
+                position += out.write(buffer);
+        }
+    }
+}
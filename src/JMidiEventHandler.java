@@ -0,0 +1,42 @@
+import java.nio.ByteBuffer;
+
+/* Interface for clients of JMidiFileReader. The reader pushes every event
+   it decodes to these callbacks using primitive arguments, so nothing is
+   allocated per channel message. Only the callbacks a client cares about
+   need to be overridden.
+ */
+public interface JMidiEventHandler {
+
+    // Called once with the contents of the header (MThd) chunk. division is the
+    // raw division field: ticks per quarter note (PPQ) unless the top bit is set.
+    default void header(int format, int numberOfTracks, int division){
+    }
+
+    // Called before the first event of each track (MTrk) chunk. trackNumber starts
+    // at 0 and length is the size of the chunk in bytes.
+    default void startTrack(int trackNumber, int length){
+    }
+
+    // Called for every channel message (NOTE ON, CONTROL CHANGE, etc.). status is the
+    // full status byte (command | channel); data2 is 0 for messages with one data byte.
+    default void shortMessage(long tick, int status, int data1, int data2){
+    }
+
+    // Called for every meta message. data is a slice of the file holding only the
+    // payload (index 0 is the first byte after the length); it shares memory with the
+    // file, so it must not be kept after the file is closed or unmapped.
+    default void metaMessage(long tick, int type, ByteBuffer data){
+    }
+
+    // Called for every SysEx message (status is 0xF0 or 0xF7). Same rules as metaMessage.
+    default void sysexMessage(long tick, int status, ByteBuffer data){
+    }
+
+    // Called after the last event of each track chunk.
+    default void endTrack(int trackNumber){
+    }
+
+    // Called once after the last chunk of the file.
+    default void endFile(){
+    }
+}
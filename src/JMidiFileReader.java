@@ -0,0 +1,413 @@
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/* Class that reads a Standard MIDI File (SMF) byte by byte and pushes every
+   event to a JMidiEventHandler. Unlike MidiSystem.getSequence, nothing is
+   built for an event (no MidiEvent/MidiMessage objects), so analysis can
+   run straight off the bytes of the file. Handles the header chunk, track
+   chunks, variable-length delta times, running status, meta and SysEx events.
+
+   Files at least as big as the mapping threshold are memory-mapped and decoded
+   in place; smaller files (where mapping costs more than it saves) are read
+   into a single heap buffer. Either way meta and SysEx payloads are handed
+   out as slices of that buffer, never as copies.
+
+   Tracks are independent of each other, so they can also be decoded in
+   parallel (readInParallel), each track with its own handler.
+
+   With a JMidiFilter set, events the filter does not keep are skipped as
+   they are decoded and never reach the handler (see JMidiFilter).
+ */
+public class JMidiFileReader {
+
+    // Chunk types ("MThd" and "MTrk" as big-endian ints)
+    private static final int HEADER_CHUNK = 0x4D546864;
+    private static final int TRACK_CHUNK = 0x4D54726B;
+
+    // Status bytes that are not channel messages
+    public static final int META = 0xFF;
+    public static final int SYSEX = 0xF0;
+    public static final int SYSEX_CONTINUATION = 0xF7;
+
+    // Files smaller than this (in bytes) are read instead of memory-mapped.
+    public static final long DEFAULT_MAPPING_THRESHOLD = 256 * 1024;
+
+    private long mappingThreshold = DEFAULT_MAPPING_THRESHOLD;
+    private JMidiFilter filter;
+
+    // Sets the file size (in bytes) from which files are memory-mapped. 0 maps
+    // every file, Long.MAX_VALUE never maps.
+    public void setMappingThreshold(long mappingThreshold){
+        if(mappingThreshold < 0)
+            throw new IllegalArgumentException("Mapping threshold cannot be negative.");
+        this.mappingThreshold = mappingThreshold;
+    }
+
+    public long getMappingThreshold(){
+        return mappingThreshold;
+    }
+
+    // Sets the filter events must pass to reach the handler; null (the default) keeps everything.
+    public void setFilter(JMidiFilter filter){
+        this.filter = filter;
+    }
+
+    public JMidiFilter getFilter(){
+        return filter;
+    }
+
+    // Every .mid or .midi file under path (path itself if it is one), sorted by path.
+    public static List<Path> findMidiFiles(Path path) throws IOException {
+        try (Stream<Path> walk = Files.walk(path)) {
+            return walk.filter(Files::isRegularFile).filter(JMidiFileReader::isMidiFile).sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    public static boolean isMidiFile(Path path){
+        String name = path.getFileName().toString().toLowerCase();
+        return name.endsWith(".mid") || name.endsWith(".midi");
+    }
+
+    // Reads the MIDI file at the given location.
+    public void read(File file, JMidiEventHandler handler) throws IOException, InvalidMidiDataException {
+        read(open(file), handler);
+    }
+
+    // Reads a MIDI file from a stream (the whole stream is read before decoding starts).
+    public void read(InputStream in, JMidiEventHandler handler) throws IOException, InvalidMidiDataException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while((count = in.read(buffer)) != -1)
+            bytes.write(buffer, 0, count);
+        read(bytes.toByteArray(), handler);
+    }
+
+    // Decodes a whole MIDI file that is already in memory.
+    public void read(byte[] data, JMidiEventHandler handler) throws InvalidMidiDataException {
+        read(ByteBuffer.wrap(data), handler);
+    }
+
+    // Loads the bytes of a MIDI file: memory-mapped if the file is at least
+    // getMappingThreshold() bytes long, otherwise read into a heap buffer.
+    // The returned buffer is read-only and positioned at the start of the file.
+    public ByteBuffer open(File file) throws IOException {
+        long start = JMidiMetrics.ENABLED ? System.nanoTime() : 0;
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size > Integer.MAX_VALUE)
+                throw new IOException("MIDI file is too large to read: " + file);
+
+            if(size >= mappingThreshold)
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            else{
+                buffer = ByteBuffer.allocate((int) size);
+                while(buffer.hasRemaining()){
+                    if(channel.read(buffer) < 0)
+                        throw new IOException("Unexpected end of file: " + file);
+                }
+                buffer.flip();
+                buffer = buffer.asReadOnlyBuffer();
+            }
+        }
+        if(JMidiMetrics.ENABLED){
+            JMidiMetrics.READ.record(start);
+            JMidiMetrics.fileRead(buffer.remaining());
+        }
+        return buffer;
+    }
+
+    // Decodes a whole MIDI file from the buffer's position to its limit.
+    // The buffer's position and limit are not changed.
+    public void read(ByteBuffer data, JMidiEventHandler handler) throws InvalidMidiDataException {
+        readHeader(data, handler);
+        for(TrackChunk chunk : findTracks(data))
+            readTrack(data, chunk, handler);
+        handler.endFile();
+    }
+
+    // Decodes every track on the given executor (ex: a ForkJoinPool), each with the
+    // handler handlers.apply(trackNumber) returns. Each of those handlers gets the header,
+    // then the events of its own track; endFile is not called. Tracks the filter does not
+    // keep get no handler. Returns once every track has been decoded.
+    public void readInParallel(ByteBuffer data, IntFunction<JMidiEventHandler> handlers, Executor executor)
+            throws InvalidMidiDataException {
+        readInParallel(data, findTracks(data), handlers, executor);
+    }
+
+    // Same as above, for the tracks findTracks already found in data (so callers that
+    // need the number of tracks first do not look for them twice).
+    public void readInParallel(ByteBuffer data, List<TrackChunk> chunks, IntFunction<JMidiEventHandler> handlers,
+                               Executor executor) throws InvalidMidiDataException {
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for(TrackChunk chunk : chunks){
+            if(filter != null && !filter.keepsTrack(chunk.trackNumber))
+                continue;
+            tasks.add(CompletableFuture.runAsync(() -> {
+                JMidiEventHandler handler = handlers.apply(chunk.trackNumber);
+                try {
+                    readHeader(data, handler);
+                    readTrack(data, chunk, handler);
+                } catch (InvalidMidiDataException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+
+        try {
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof InvalidMidiDataException)
+                throw (InvalidMidiDataException) e.getCause();
+            throw e;
+        }
+    }
+
+    // Decodes the header (MThd) chunk and hands it to the handler.
+    public void readHeader(ByteBuffer data, JMidiEventHandler handler) throws InvalidMidiDataException {
+        int base = data.position();
+        checkHeader(data);
+
+        int format = readShort(data, base + 8);
+        int numberOfTracks = readShort(data, base + 10);
+        int division = readShort(data, base + 12);
+        handler.header(format, numberOfTracks, division);
+    }
+
+    // Finds every track (MTrk) chunk of the file without decoding it; other chunks are skipped.
+    public List<TrackChunk> findTracks(ByteBuffer data) throws InvalidMidiDataException {
+        int base = data.position();
+        int limit = data.limit();
+        int headerLength = checkHeader(data);
+
+        List<TrackChunk> chunks = new ArrayList<>();
+        int position = base + 8 + headerLength;
+        while(position + 8 <= limit){
+            int chunkType = data.getInt(position);
+            long chunkLength = data.getInt(position + 4) & 0xFFFFFFFFL;
+            int start = position + 8;
+            if(start + chunkLength > limit)
+                throw new InvalidMidiDataException("Chunk at byte " + (position - base) + " runs past the end of the file.");
+
+            if(chunkType == TRACK_CHUNK)
+                chunks.add(new TrackChunk(chunks.size(), start, (int) chunkLength));
+            position = start + (int) chunkLength;
+        }
+        return chunks;
+    }
+
+    // Decodes the events of one track found by findTracks, between startTrack and endTrack.
+    // A track the filter does not keep is skipped entirely.
+    public void readTrack(ByteBuffer data, TrackChunk chunk, JMidiEventHandler handler)
+            throws InvalidMidiDataException {
+        if(filter != null && !filter.keepsTrack(chunk.trackNumber))
+            return;
+        readTrack(data, data.duplicate(), chunk.trackNumber, chunk.length, chunk.offset, chunk.offset + chunk.length,
+                0, 0, filter, handler);
+    }
+
+    // Decodes only the events from tick fromTick up to (not including) toTick, using an
+    // index of the file (see JMidiTrackIndex) to start each track at its last checkpoint
+    // before fromTick rather than at its first event. The handler gets the header, then
+    // startTrack, the events in the range and endTrack for every track, then endFile; the
+    // reader's filter still applies. Ticks are the ticks of the whole file.
+    public void readTicks(ByteBuffer data, JMidiTrackIndex index, long fromTick, long toTick,
+                          JMidiEventHandler handler) throws InvalidMidiDataException {
+        if(!index.matches(data))
+            throw new InvalidMidiDataException("The track index was not built from this file.");
+        JMidiFilter range = new JMidiFilter().keepTicks(fromTick, toTick);
+        if(filter != null)
+            range = range.and(filter);
+
+        readHeader(data, handler);
+        int base = data.position();
+        ByteBuffer view = data.duplicate();
+        for(int track = 0; track < index.getTrackCount(); track++){
+            if(!range.keepsTrack(track))
+                continue;
+            int checkpoint = index.checkpointBefore(track, fromTick);
+            int end = base + index.getTrackOffset(track) + index.getTrackLength(track);
+            readTrack(data, view, track, index.getTrackLength(track), base + index.getCheckpointOffset(checkpoint), end,
+                    index.getCheckpointTick(checkpoint), index.getCheckpointStatus(checkpoint), range, handler);
+        }
+        handler.endFile();
+    }
+
+    // Makes sure the buffer starts with a whole MThd chunk and returns its length.
+    private static int checkHeader(ByteBuffer data) throws InvalidMidiDataException {
+        int base = data.position();
+        if(data.limit() - base < 14 || data.getInt(base) != HEADER_CHUNK)
+            throw new InvalidMidiDataException("Not a Standard MIDI File (missing MThd chunk).");
+        int headerLength = data.getInt(base + 4);
+        if(headerLength < 6 || base + 8L + headerLength > data.limit())
+            throw new InvalidMidiDataException("Invalid MThd chunk length: " + headerLength);
+        return headerLength;
+    }
+
+    // Decodes a track between startTrack and endTrack, from byte start (an event, where the
+    // tick so far and the running status are tick and runningStatus) to byte end - 1.
+    private void readTrack(ByteBuffer data, ByteBuffer view, int trackNumber, int length, int start, int end,
+                           long tick, int runningStatus, JMidiFilter filter, JMidiEventHandler handler)
+            throws InvalidMidiDataException {
+        long startNanos = JMidiMetrics.ENABLED ? System.nanoTime() : 0;
+        long[] messageCounts = JMidiMetrics.ENABLED ? new long[JMidiMetrics.MESSAGE_KINDS] : null;
+        handler.startTrack(trackNumber, length);
+        readEvents(data, view, start, end, tick, runningStatus, filter, handler, messageCounts);
+        handler.endTrack(trackNumber);
+        if(JMidiMetrics.ENABLED){
+            JMidiMetrics.addMessages(messageCounts);
+            JMidiMetrics.DECODE.record(startNanos);
+        }
+    }
+
+    // Decodes the events of a track chunk from byte start to end - 1 of data. With metrics
+    // on, the messages decoded are counted by kind in messageCounts.
+    private void readEvents(ByteBuffer data, ByteBuffer view, int start, int end, long tick, int runningStatus,
+                            JMidiFilter filter, JMidiEventHandler handler, long[] messageCounts)
+            throws InvalidMidiDataException {
+        int position = start;
+
+        while(position < end){
+            // Delta time (variable-length quantity)
+            long delta = 0;
+            int b;
+            do{
+                if(position >= end)
+                    throw truncated(position);
+                b = data.get(position++) & 0xFF;
+                delta = (delta << 7) | (b & 0x7F);
+            } while((b & 0x80) != 0);
+            tick += delta;
+            if(filter != null && filter.isPastEnd(tick))
+                return; // nothing else in this track can pass the filter
+
+            if(position >= end)
+                throw truncated(position);
+            int status = data.get(position) & 0xFF;
+
+            // Meta message: FF type length data
+            if(status == META){
+                if(position + 2 > end)
+                    throw truncated(position);
+                int type = data.get(position + 1) & 0xFF;
+                position += 2;
+                int length = 0;
+                do{
+                    if(position >= end)
+                        throw truncated(position);
+                    b = data.get(position++) & 0xFF;
+                    length = (length << 7) | (b & 0x7F);
+                } while((b & 0x80) != 0);
+                if(length < 0 || length > end - position)
+                    throw truncated(position);
+
+                if(JMidiMetrics.ENABLED)
+                    messageCounts[JMidiMetrics.META]++;
+                if(filter == null || filter.keepsMetaMessage(tick, type))
+                    handler.metaMessage(tick, type, slice(view, position, length));
+                position += length;
+            }
+            // SysEx message: F0/F7 length data
+            else if(status == SYSEX || status == SYSEX_CONTINUATION){
+                position++;
+                int length = 0;
+                do{
+                    if(position >= end)
+                        throw truncated(position);
+                    b = data.get(position++) & 0xFF;
+                    length = (length << 7) | (b & 0x7F);
+                } while((b & 0x80) != 0);
+                if(length < 0 || length > end - position)
+                    throw truncated(position);
+
+                if(JMidiMetrics.ENABLED)
+                    messageCounts[JMidiMetrics.SYSEX]++;
+                if(filter == null || filter.keepsSysexMessage(tick))
+                    handler.sysexMessage(tick, status, slice(view, position, length));
+                position += length;
+            }
+            // Channel message, possibly using running status
+            else{
+                if(status >= 0x80){
+                    if(status > 0xEF)
+                        throw new InvalidMidiDataException("Unexpected status byte " + status + " at byte " + position);
+                    runningStatus = status;
+                    position++;
+                }
+                else if(runningStatus == 0)
+                    throw new InvalidMidiDataException("Data byte without a status byte at byte " + position);
+
+                int command = runningStatus & 0xF0;
+                if(command == 0xC0 || command == 0xD0){
+                    // PROGRAM CHANGE and CHANNEL PRESSURE only have one data byte
+                    if(position >= end)
+                        throw truncated(position);
+                    int data1 = data.get(position) & 0x7F;
+                    if(JMidiMetrics.ENABLED)
+                        messageCounts[JMidiMetrics.kindOf(runningStatus, 0)]++;
+                    if(filter == null || filter.keepsShortMessage(tick, runningStatus, data1, 0))
+                        handler.shortMessage(tick, runningStatus, data1, 0);
+                    position++;
+                }
+                else{
+                    if(position + 2 > end)
+                        throw truncated(position);
+                    int data1 = data.get(position) & 0x7F;
+                    int data2 = data.get(position + 1) & 0x7F;
+                    if(JMidiMetrics.ENABLED)
+                        messageCounts[JMidiMetrics.kindOf(runningStatus, data2)]++;
+                    if(filter == null || filter.keepsShortMessage(tick, runningStatus, data1, data2))
+                        handler.shortMessage(tick, runningStatus, data1, data2);
+                    position += 2;
+                }
+            }
+        }
+    }
+
+    // Slice of the file holding a payload: shares the file's memory, nothing is copied.
+    private static ByteBuffer slice(ByteBuffer view, int position, int length){
+        view.limit(position + length).position(position);
+        return view.slice();
+    }
+
+    // Big-endian 16-bit unsigned short
+    private static int readShort(ByteBuffer data, int position){
+        return data.getShort(position) & 0xFFFF;
+    }
+
+    private static InvalidMidiDataException truncated(int position){
+        return new InvalidMidiDataException("Track chunk ends in the middle of an event at byte " + position);
+    }
+
+    // Location of a track chunk in the file: offset is the absolute buffer index of
+    // its first event and length the size of the chunk in bytes.
+    public static class TrackChunk {
+        public final int trackNumber;
+        public final int offset;
+        public final int length;
+
+        public TrackChunk(int trackNumber, int offset, int length){
+            this.trackNumber = trackNumber;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/* Class that writes Standard MIDI Files straight from primitive events, with
+   no javax.sound.midi Sequence in between. It is a JMidiEventHandler, so it
+   can be handed to JMidiFileReader.read (with a JMidiFilter, or behind any
+   handler that changes the events) to write out what is left of a file:
+   every event it is given is written back in its track.
+
+   Each track is put together in one growable buffer and written as an MTrk
+   chunk once it ends, so only one track is in memory at a time. Delta times
+   are variable-length quantities, channel messages use running status (the
+   status byte is left out when it repeats), meta and SysEx messages are
+   copied byte for byte, and a track that ends without an END OF TRACK gets
+   one. If the number of tracks written differs from the header's (ex: the
+   filter dropped tracks), the header is fixed at the end, which needs a
+   channel that can seek (ex: a FileChannel).
+
+   write(JMidiAnalysis, ...) writes paired notes instead: a format 1 file with
+   a conductor track (tempos, time signatures, key signatures) and one track
+   per track the notes came from. Note offs are written as NOTE ON messages
+   with a velocity of 0 so running status covers them too. Only what the
+   analysis keeps is written (no program or control changes, and key
+   signatures are written as major since the mode is not kept).
+ */
+public class JMidiFileWriter implements JMidiEventHandler {
+
+    private static final int HEADER_CHUNK = 0x4D546864; // "MThd"
+    private static final int TRACK_CHUNK = 0x4D54726B; // "MTrk"
+
+    // Largest delta time a variable-length quantity can hold (4 bytes).
+    private static final long MAX_DELTA = 0x0FFFFFFF;
+
+    private final WritableByteChannel out;
+
+    // Where the header is (to fix the number of tracks), and the number it holds
+    private long headerPosition = -1;
+    private int declaredTracks;
+    private int tracksWritten;
+
+    // The track being put together
+    private ByteBuffer track = ByteBuffer.allocate(1 << 16);
+    private long previousTick;
+    private int runningStatus;
+    private boolean trackEnded;
+
+    public JMidiFileWriter(WritableByteChannel out){
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2){
+            System.out.println("Usage: java JMidiFileWriter <MIDI file> <output file> [--notes]");
+            return;
+        }
+
+        File input = new File(args[0]);
+        Path output = Paths.get(args[1]);
+        JMidiFileReader reader = new JMidiFileReader();
+        long start = System.nanoTime();
+        if(args.length >= 3 && args[2].equals("--notes"))
+            write(JMidiAnalysis.read(reader, input), output);
+        else{
+            try (FileChannel channel = open(output)) {
+                reader.read(input, new JMidiFileWriter(channel));
+            }
+        }
+        System.out.println(input.length() + " bytes in, " + output.toFile().length() + " bytes out, "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    // Writes the notes, tempos, time signatures and key signatures of an analysis to a file.
+    public static void write(JMidiAnalysis analysis, Path file) throws IOException {
+        try (FileChannel channel = open(file)) {
+            write(analysis, channel);
+        }
+    }
+
+    // Writes the notes, tempos, time signatures and key signatures of an analysis.
+    public static void write(JMidiAnalysis analysis, WritableByteChannel out) throws IOException {
+        JMidiNoteTable notes = analysis.getNotes();
+
+        // Tracks the notes came from, in order
+        boolean[] noteTracks = new boolean[1 << 16];
+        int trackCount = 1;
+        for(int i = 0; i < notes.size(); i++){
+            if(!noteTracks[notes.getTrack(i) & 0xFFFF]){
+                noteTracks[notes.getTrack(i) & 0xFFFF] = true;
+                trackCount++;
+            }
+        }
+
+        JMidiFileWriter writer = new JMidiFileWriter(out);
+        try {
+            writer.header(1, trackCount, notes.getPPQ());
+            writer.writeConductorTrack(analysis);
+            int trackNumber = 1;
+            for(int noteTrack = 0; noteTrack < noteTracks.length; noteTrack++){
+                if(noteTracks[noteTrack])
+                    writer.writeNoteTrack(notes, noteTrack, trackNumber++);
+            }
+            writer.endFile();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    public int getTracksWritten(){
+        return tracksWritten;
+    }
+
+    @Override
+    public void header(int format, int numberOfTracks, int division){
+        if(out instanceof SeekableByteChannel){
+            try {
+                headerPosition = ((SeekableByteChannel) out).position();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        declaredTracks = numberOfTracks;
+
+        ByteBuffer header = ByteBuffer.allocate(14);
+        header.putInt(HEADER_CHUNK).putInt(6);
+        header.putShort((short) format).putShort((short) numberOfTracks).putShort((short) division);
+        header.flip();
+        write(header);
+    }
+
+    @Override
+    public void startTrack(int trackNumber, int length){
+        track.clear();
+        previousTick = 0;
+        runningStatus = 0;
+        trackEnded = false;
+    }
+
+    @Override
+    public void shortMessage(long tick, int status, int data1, int data2){
+        if(trackEnded)
+            return;
+        ensureRoom(8);
+        putDelta(tick);
+        if(status != runningStatus){
+            track.put((byte) status);
+            runningStatus = status;
+        }
+        track.put((byte) data1);
+        int command = status & 0xF0;
+        if(command != 0xC0 && command != 0xD0)
+            track.put((byte) data2); // PROGRAM CHANGE and CHANNEL PRESSURE only have one data byte
+    }
+
+    @Override
+    public void metaMessage(long tick, int type, ByteBuffer data){
+        if(trackEnded)
+            return;
+        ByteBuffer payload = data.duplicate();
+        payload.rewind();
+        ensureRoom(11 + payload.remaining());
+        putDelta(tick);
+        track.put((byte) JMidiFileReader.META).put((byte) type);
+        putVariableLength(payload.remaining());
+        track.put(payload);
+        runningStatus = 0; // meta and SysEx messages cancel running status
+        if(type == JMidiTranscriber.END_OF_TRACK)
+            trackEnded = true;
+    }
+
+    @Override
+    public void sysexMessage(long tick, int status, ByteBuffer data){
+        if(trackEnded)
+            return;
+        ByteBuffer payload = data.duplicate();
+        payload.rewind();
+        ensureRoom(10 + payload.remaining());
+        putDelta(tick);
+        track.put((byte) status);
+        putVariableLength(payload.remaining());
+        track.put(payload);
+        runningStatus = 0;
+    }
+
+    @Override
+    public void endTrack(int trackNumber){
+        if(!trackEnded)
+            metaMessage(previousTick, JMidiTranscriber.END_OF_TRACK, ByteBuffer.allocate(0));
+
+        track.flip();
+        ByteBuffer chunkHeader = ByteBuffer.allocate(8);
+        chunkHeader.putInt(TRACK_CHUNK).putInt(track.remaining());
+        chunkHeader.flip();
+        write(chunkHeader);
+        write(track);
+        tracksWritten++;
+    }
+
+    @Override
+    public void endFile(){
+        if(tracksWritten == declaredTracks)
+            return;
+        if(headerPosition < 0)
+            throw new IllegalStateException("The header declares " + declaredTracks + " tracks but " + tracksWritten
+                    + " were written, and the channel cannot seek back to fix it.");
+
+        // Fixes the number of tracks in the header, then comes back to the end
+        try {
+            SeekableByteChannel channel = (SeekableByteChannel) out;
+            long end = channel.position();
+            ByteBuffer count = ByteBuffer.allocate(2);
+            count.putShort((short) tracksWritten).flip();
+            channel.position(headerPosition + 10);
+            write(count);
+            channel.position(end);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Track 0 of write(JMidiAnalysis): tempos, time signatures and key signatures in order of tick.
+    private void writeConductorTrack(JMidiAnalysis analysis){
+        JMidiTempoMap tempoMap = analysis.getTempoMap();
+        JMidiMeasureIndex measureIndex = analysis.getMeasureIndex();
+        startTrack(0, 0);
+
+        int tempo = 0;
+        int timeSignature = 0;
+        int keySignature = 0;
+        ByteBuffer payload = ByteBuffer.allocate(5);
+        while(true){
+            long tempoTick = tempo < tempoMap.size() ? tempoMap.getTick(tempo) : Long.MAX_VALUE;
+            long timeTick = timeSignature < measureIndex.size() ? measureIndex.getTick(timeSignature) : Long.MAX_VALUE;
+            long keyTick = keySignature < analysis.getKeySignatureCount()
+                    ? analysis.getKeySignatureTick(keySignature) : Long.MAX_VALUE;
+            long tick = Math.min(tempoTick, Math.min(timeTick, keyTick));
+            if(tick == Long.MAX_VALUE)
+                break;
+
+            payload.clear();
+            if(tick == tempoTick){
+                int microseconds = tempoMap.getMicrosecondsPerQuarter(tempo++);
+                payload.put((byte) (microseconds >> 16)).put((byte) (microseconds >> 8)).put((byte) microseconds);
+                payload.flip();
+                metaMessage(tick, JMidiTranscriber.SET_TEMPO, payload);
+            }
+            else if(tick == timeTick){
+                // Denominator as a power of two, 24 MIDI clocks per metronome click, 8 32nd notes per quarter
+                int denominator = Integer.numberOfTrailingZeros(measureIndex.getDenominator(timeSignature));
+                payload.put((byte) measureIndex.getNumerator(timeSignature++)).put((byte) denominator);
+                payload.put((byte) 24).put((byte) 8);
+                payload.flip();
+                metaMessage(tick, JMidiTranscriber.TIME_SIGNATURE, payload);
+            }
+            else{
+                JMidiKeySign.JKeySignature key = analysis.getKeySignature(keySignature++);
+                payload.put((byte) (key.getNumberOfSharps() - key.getNumberOfFlats())).put((byte) 0);
+                payload.flip();
+                metaMessage(tick, JMidiTranscriber.KEY_SIGNATURE, payload);
+            }
+        }
+        endTrack(0);
+    }
+
+    // A track of write(JMidiAnalysis): the notes of one of the original tracks. On any tick,
+    // notes that end are let go before notes start (so a key can be struck again), except
+    // notes without duration, which end right after they start.
+    private void writeNoteTrack(JMidiNoteTable notes, int noteTrack, int trackNumber){
+        int count = 0;
+        int[] starts = new int[16];
+        for(int i = 0; i < notes.size(); i++){
+            if((notes.getTrack(i) & 0xFFFF) == noteTrack){
+                if(count == starts.length)
+                    starts = Arrays.copyOf(starts, count * 2);
+                starts[count++] = i;
+            }
+        }
+        starts = Arrays.copyOf(starts, count);
+        if(!notes.isSortedByTickStart())
+            sortByTick(notes, starts, true);
+        int[] stops = starts.clone();
+        sortByTick(notes, stops, false);
+
+        startTrack(trackNumber, 0);
+        int nextStart = 0;
+        int nextStop = 0;
+        while(nextStop < count){
+            long tick = notes.getTickStop(stops[nextStop]);
+            if(nextStart < count)
+                tick = Math.min(tick, notes.getTickStart(starts[nextStart]));
+
+            int stopsEnd = nextStop;
+            while(stopsEnd < count && notes.getTickStop(stops[stopsEnd]) == tick)
+                stopsEnd++;
+            for(int i = nextStop; i < stopsEnd; i++){
+                if(notes.getTickStart(stops[i]) < tick)
+                    noteOff(notes, stops[i], tick);
+            }
+            while(nextStart < count && notes.getTickStart(starts[nextStart]) == tick){
+                int note = starts[nextStart++];
+                shortMessage(tick, JMidiTranscriber.NOTE_ON | notes.getChannel(note), notes.getKey(note), notes.getVelocity(note));
+            }
+            for(int i = nextStop; i < stopsEnd; i++){
+                if(notes.getTickStart(stops[i]) >= tick)
+                    noteOff(notes, stops[i], tick);
+            }
+            nextStop = stopsEnd;
+        }
+        endTrack(trackNumber);
+    }
+
+    private void noteOff(JMidiNoteTable notes, int note, long tick){
+        shortMessage(tick, JMidiTranscriber.NOTE_ON | notes.getChannel(note), notes.getKey(note), 0);
+    }
+
+    // Stable sort of note indices by tick start (or tick stop).
+    private static void sortByTick(JMidiNoteTable notes, int[] indices, boolean byStart){
+        long[] ticks = new long[indices.length];
+        for(int i = 0; i < indices.length; i++)
+            ticks[i] = byStart ? notes.getTickStart(indices[i]) : notes.getTickStop(indices[i]);
+        int[] order = new int[indices.length];
+        for(int i = 0; i < order.length; i++)
+            order[i] = i;
+        mergeSort(ticks, order, new int[order.length], 0, order.length);
+
+        int[] sorted = new int[indices.length];
+        for(int i = 0; i < order.length; i++)
+            sorted[i] = indices[order[i]];
+        System.arraycopy(sorted, 0, indices, 0, sorted.length);
+    }
+
+    private static void mergeSort(long[] values, int[] order, int[] scratch, int from, int to){
+        if(to - from < 2)
+            return;
+        int middle = (from + to) >>> 1;
+        mergeSort(values, order, scratch, from, middle);
+        mergeSort(values, order, scratch, middle, to);
+        if(values[order[middle - 1]] <= values[order[middle]])
+            return; // already in order
+
+        System.arraycopy(order, from, scratch, from, to - from);
+        int left = from;
+        int right = middle;
+        for(int i = from; i < to; i++){
+            if(right >= to || (left < middle && values[scratch[left]] <= values[scratch[right]]))
+                order[i] = scratch[left++];
+            else
+                order[i] = scratch[right++];
+        }
+    }
+
+    private void putDelta(long tick){
+        long delta = tick - previousTick;
+        if(delta < 0)
+            throw new IllegalStateException("Events must be written in order of tick (" + tick + " after " + previousTick + ").");
+        if(delta > MAX_DELTA)
+            throw new IllegalStateException("Delta time too long for a MIDI file: " + delta);
+        putVariableLength(delta);
+        previousTick = tick;
+    }
+
+    // Big-endian groups of 7 bits, every byte but the last with its top bit set.
+    private void putVariableLength(long value){
+        int shift = 0;
+        while(shift < 63 && (value >>> (shift + 7)) != 0)
+            shift += 7;
+        for(; shift > 0; shift -= 7)
+            track.put((byte) (((value >>> shift) & 0x7F) | 0x80));
+        track.put((byte) (value & 0x7F));
+    }
+
+    private void ensureRoom(int bytes){
+        if(track.remaining() < bytes){
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(track.capacity() * 2, track.position() + bytes));
+            track.flip();
+            bigger.put(track);
+            track = bigger;
+        }
+    }
+
+    private void write(ByteBuffer bytes){
+        try {
+            while(bytes.hasRemaining())
+                out.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+}
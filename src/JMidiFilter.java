@@ -0,0 +1,291 @@
+import java.util.Arrays;
+import java.util.BitSet;
+
+/* Class that describes which MIDI events to keep ("declutter" mode). Hand it
+   to JMidiFileReader.setFilter and events that do not pass are skipped while
+   the file is decoded: a channel message is checked on its status byte with
+   one array lookup (plus a range check on the key, velocity or controller),
+   meta and SysEx events are checked before their payload is sliced, tracks
+   that are not kept are never decoded, and a track stops being decoded once
+   its ticks pass the end of the tick window.
+
+   A new JMidiFilter keeps everything. Each keep... method returns a copy that
+   keeps less, so filters can be shared between threads and built up in steps:
+
+   new JMidiFilter().keepCommands(NOTE_ON, NOTE_OFF).keepChannels(0, 9).keepTicks(0, 960)
+
+   and(...) keeps only what two filters both keep.
+
+   Keys apply to NOTE OFF, NOTE ON and POLYPHONIC PRESSURE; velocities apply to
+   NOTE ON with a velocity above 0 (a NOTE ON with velocity 0 is a note off and
+   is kept so notes can still be paired); controllers apply to CONTROL CHANGE.
+
+   Each event is checked on its own, so notes are not followed from their NOTE
+   ON to their note off. A note whose NOTE ON is dropped by the velocities, or
+   that starts or ends outside the tick window, is never paired: it is missing
+   from the clusters and analyses (notes are not clipped at the window's
+   edges), and its note off, if kept, is counted as unmatched. Widen the tick
+   window by the longest note to keep the notes that cross its edges.
+ */
+public class JMidiFilter {
+
+    // Commands (status & 0xF0) of the channel messages
+    public static final int NOTE_OFF = 0x80;
+    public static final int NOTE_ON = 0x90;
+    public static final int POLYPHONIC_PRESSURE = 0xA0;
+    public static final int CONTROL_CHANGE = 0xB0;
+    public static final int PROGRAM_CHANGE = 0xC0;
+    public static final int CHANNEL_PRESSURE = 0xD0;
+    public static final int PITCH_BEND = 0xE0;
+
+    // Bit n set: command n << 4 / channel n is kept
+    private static final int ALL_COMMANDS = 0x7F00;
+    private static final int ALL_CHANNELS = 0xFFFF;
+
+    private int commands = ALL_COMMANDS;
+    private int channels = ALL_CHANNELS;
+    private boolean[] metaTypes = filled(256);
+    private boolean sysex = true;
+    private BitSet tracks; // null keeps every track
+    private int lowestKey = 0;
+    private int highestKey = 127;
+    private int lowestVelocity = 0;
+    private int highestVelocity = 127;
+    private boolean[] controllers = filled(128);
+    private long tickStart = 0;
+    private long tickEnd = Long.MAX_VALUE;
+
+    // Kept status bytes, worked out from commands and channels
+    private boolean[] statuses = new boolean[256];
+
+    // A filter that keeps everything.
+    public JMidiFilter(){
+        updateStatuses();
+    }
+
+    // Keeps only the channel messages with these commands (ex: NOTE_ON, NOTE_OFF).
+    public JMidiFilter keepCommands(int... commands){
+        int mask = 0;
+        for(int command : commands){
+            if(command < NOTE_OFF || command > PITCH_BEND || (command & 0x0F) != 0)
+                throw new IllegalArgumentException("Not a channel message command: " + command);
+            mask |= 1 << (command >> 4);
+        }
+        JMidiFilter filter = copy();
+        filter.commands = mask;
+        filter.updateStatuses();
+        return filter;
+    }
+
+    // Keeps only the channel messages on these channels (0 to 15).
+    public JMidiFilter keepChannels(int... channels){
+        int mask = 0;
+        for(int channel : channels){
+            if(channel < 0 || channel > 15)
+                throw new IllegalArgumentException("Channels go from 0 to 15, not " + channel);
+            mask |= 1 << channel;
+        }
+        JMidiFilter filter = copy();
+        filter.channels = mask;
+        filter.updateStatuses();
+        return filter;
+    }
+
+    // Keeps only the meta messages of these types (ex: JMidiTranscriber.SET_TEMPO).
+    // With no types, every meta message is skipped.
+    public JMidiFilter keepMetaTypes(int... types){
+        boolean[] kept = new boolean[256];
+        for(int type : types){
+            if(type < 0 || type > 255)
+                throw new IllegalArgumentException("Not a meta message type: " + type);
+            kept[type] = true;
+        }
+        JMidiFilter filter = copy();
+        filter.metaTypes = kept;
+        return filter;
+    }
+
+    // Keeps or skips every SysEx message.
+    public JMidiFilter keepSysex(boolean keep){
+        JMidiFilter filter = copy();
+        filter.sysex = keep;
+        return filter;
+    }
+
+    // Keeps only these tracks (numbered from 0); the others are not decoded at all.
+    public JMidiFilter keepTracks(int... tracks){
+        BitSet kept = new BitSet();
+        for(int track : tracks){
+            if(track < 0)
+                throw new IllegalArgumentException("Tracks are numbered from 0, not " + track);
+            kept.set(track);
+        }
+        JMidiFilter filter = copy();
+        filter.tracks = kept;
+        return filter;
+    }
+
+    // Keeps only the note messages with keys from lowest to highest (inclusive).
+    public JMidiFilter keepKeys(int lowest, int highest){
+        checkRange(lowest, highest, 127);
+        JMidiFilter filter = copy();
+        filter.lowestKey = lowest;
+        filter.highestKey = highest;
+        return filter;
+    }
+
+    // Keeps only the NOTE ON messages with velocities from lowest to highest (inclusive).
+    // The note offs of the notes dropped are still kept (and are left unmatched).
+    public JMidiFilter keepVelocities(int lowest, int highest){
+        checkRange(lowest, highest, 127);
+        JMidiFilter filter = copy();
+        filter.lowestVelocity = lowest;
+        filter.highestVelocity = highest;
+        return filter;
+    }
+
+    // Keeps only the CONTROL CHANGE messages for these controllers (0 to 127).
+    public JMidiFilter keepControllers(int... controllers){
+        boolean[] kept = new boolean[128];
+        for(int controller : controllers){
+            if(controller < 0 || controller > 127)
+                throw new IllegalArgumentException("Controllers go from 0 to 127, not " + controller);
+            kept[controller] = true;
+        }
+        JMidiFilter filter = copy();
+        filter.controllers = kept;
+        return filter;
+    }
+
+    // Keeps only the events from tick start up to (not including) tick end. Notes that cross
+    // either end are dropped, not clipped (see above).
+    public JMidiFilter keepTicks(long start, long end){
+        if(start < 0 || end < start)
+            throw new IllegalArgumentException("Invalid tick window: " + start + " to " + end);
+        JMidiFilter filter = copy();
+        filter.tickStart = start;
+        filter.tickEnd = end;
+        return filter;
+    }
+
+    // Filter that keeps only what both this filter and other keep.
+    public JMidiFilter and(JMidiFilter other){
+        JMidiFilter filter = copy();
+        filter.commands &= other.commands;
+        filter.channels &= other.channels;
+        for(int i = 0; i < filter.metaTypes.length; i++)
+            filter.metaTypes[i] &= other.metaTypes[i];
+        filter.sysex &= other.sysex;
+        if(other.tracks != null){
+            if(filter.tracks == null)
+                filter.tracks = (BitSet) other.tracks.clone();
+            else
+                filter.tracks.and(other.tracks);
+        }
+        filter.lowestKey = Math.max(lowestKey, other.lowestKey);
+        filter.highestKey = Math.min(highestKey, other.highestKey);
+        filter.lowestVelocity = Math.max(lowestVelocity, other.lowestVelocity);
+        filter.highestVelocity = Math.min(highestVelocity, other.highestVelocity);
+        for(int i = 0; i < filter.controllers.length; i++)
+            filter.controllers[i] &= other.controllers[i];
+        filter.tickStart = Math.max(tickStart, other.tickStart);
+        filter.tickEnd = Math.min(tickEnd, other.tickEnd);
+        filter.updateStatuses();
+        return filter;
+    }
+
+    // Should the track be decoded at all?
+    public boolean keepsTrack(int trackNumber){
+        return tracks == null || tracks.get(trackNumber);
+    }
+
+    // Is the channel message kept? (status is the full status byte, 0x80 to 0xEF)
+    @SuppressWarnings("fallthrough") // NOTE ON falls through to the key check on purpose
+    public boolean keepsShortMessage(long tick, int status, int data1, int data2){
+        if(!statuses[status] || tick < tickStart || tick >= tickEnd)
+            return false;
+
+        switch(status & 0xF0){
+            case NOTE_ON:
+                if(data2 != 0 && (data2 < lowestVelocity || data2 > highestVelocity))
+                    return false;
+                // then the key, like the other note messages
+            case NOTE_OFF:
+            case POLYPHONIC_PRESSURE:
+                return data1 >= lowestKey && data1 <= highestKey;
+            case CONTROL_CHANGE:
+                return controllers[data1];
+            default:
+                return true;
+        }
+    }
+
+    // Is a meta message of that type kept?
+    public boolean keepsMetaMessage(long tick, int type){
+        return metaTypes[type] && tick >= tickStart && tick < tickEnd;
+    }
+
+    // Is a SysEx message kept?
+    public boolean keepsSysexMessage(long tick){
+        return sysex && tick >= tickStart && tick < tickEnd;
+    }
+
+    // Ticks within a track only go up, so no event of a track is kept once this returns true.
+    public boolean isPastEnd(long tick){
+        return tick >= tickEnd;
+    }
+
+    // Text that is the same for two filters exactly when they keep the same events (used
+    // by JMidiResultCache to key results decoded through a filter).
+    public String fingerprint(){
+        StringBuilder text = new StringBuilder();
+        for(int status = 0x80; status <= 0xEF; status++)
+            text.append(statuses[status] ? '1' : '0');
+        text.append('/');
+        for(boolean kept : metaTypes)
+            text.append(kept ? '1' : '0');
+        text.append('/').append(sysex ? '1' : '0');
+        text.append('/').append(tracks == null ? "*" : tracks.toString());
+        text.append('/').append(lowestKey).append('-').append(highestKey);
+        text.append('/').append(lowestVelocity).append('-').append(highestVelocity);
+        text.append('/');
+        for(boolean kept : controllers)
+            text.append(kept ? '1' : '0');
+        text.append('/').append(tickStart).append('-').append(tickEnd);
+        return text.toString();
+    }
+
+    private JMidiFilter copy(){
+        JMidiFilter filter = new JMidiFilter();
+        filter.commands = commands;
+        filter.channels = channels;
+        filter.metaTypes = metaTypes.clone();
+        filter.sysex = sysex;
+        filter.tracks = tracks == null ? null : (BitSet) tracks.clone();
+        filter.lowestKey = lowestKey;
+        filter.highestKey = highestKey;
+        filter.lowestVelocity = lowestVelocity;
+        filter.highestVelocity = highestVelocity;
+        filter.controllers = controllers.clone();
+        filter.tickStart = tickStart;
+        filter.tickEnd = tickEnd;
+        filter.updateStatuses();
+        return filter;
+    }
+
+    private void updateStatuses(){
+        for(int status = 0x80; status <= 0xEF; status++)
+            statuses[status] = (commands & (1 << (status >> 4))) != 0 && (channels & (1 << (status & 0x0F))) != 0;
+    }
+
+    private static void checkRange(int lowest, int highest, int maximum){
+        if(lowest < 0 || highest > maximum || lowest > highest)
+            throw new IllegalArgumentException("Invalid range: " + lowest + " to " + highest);
+    }
+
+    private static boolean[] filled(int length){
+        boolean[] array = new boolean[length];
+        Arrays.fill(array, true);
+        return array;
+    }
+}
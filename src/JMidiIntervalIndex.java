@@ -0,0 +1,343 @@
+import java.io.File;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/* Class that answers "which notes are sounding at this tick / in this range
+   of ticks" for a JMidiNoteTable of paired notes without scanning every note.
+   A note sounds from its tick start up to (not including) its tick stop, so
+   notes without duration are never found.
+
+   The notes are kept in order of tick start, and the order itself is used as
+   an implicit balanced binary tree (the note in the middle of a range is the
+   parent of the two halves) where every node also stores the latest tick stop
+   in its subtree. A query skips every subtree whose latest stop is before the
+   range, so it costs O(log n + k) for k notes found, and it needs no objects
+   per node: just a few arrays built once.
+
+   The index is immutable (queries can run on several threads); it must be
+   rebuilt if the table changes. Queries report note indices of the table, in
+   order of tick start.
+
+   A Sweep walks the ticks where notes start or stop in order and keeps the set
+   of sounding notes up to date as it goes, which is what polyphony counts and
+   anything else that needs every tick's sounding notes should use.
+ */
+public class JMidiIntervalIndex {
+
+    private final JMidiNoteTable notes;
+
+    // By position (order of tick start): the note's index in the table, its ticks, and
+    // the latest tick stop in the subtree of the position
+    private final int[] order;
+    private final long[] starts;
+    private final long[] stops;
+    private final long[] maxStops;
+    private final int maxLevel;
+
+    // Positions in order of tick stop, and those tick stops
+    private final int[] stopOrder;
+    private final long[] sortedStops;
+
+    public JMidiIntervalIndex(JMidiNoteTable notes){
+        this.notes = notes;
+        int size = notes.size();
+
+        long[] tableStarts = new long[size];
+        for(int i = 0; i < size; i++)
+            tableStarts[i] = notes.getTickStart(i);
+        order = sortedOrder(tableStarts);
+
+        starts = new long[size];
+        stops = new long[size];
+        for(int position = 0; position < size; position++){
+            starts[position] = notes.getTickStart(order[position]);
+            stops[position] = notes.getTickStop(order[position]);
+        }
+
+        stopOrder = sortedOrder(stops);
+        sortedStops = new long[size];
+        for(int i = 0; i < size; i++)
+            sortedStops[i] = stops[stopOrder[i]];
+
+        maxStops = new long[size];
+        maxLevel = buildTree();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1){
+            System.out.println("Usage: java JMidiIntervalIndex <MIDI file> [tick]");
+            return;
+        }
+
+        JMidiNoteTable notes = JMidiAnalysis.read(new JMidiFileReader(), new File(args[0])).getNotes();
+        JMidiIntervalIndex index = new JMidiIntervalIndex(notes);
+
+        // Highest polyphony, and where it happens first
+        int maxPolyphony = 0;
+        long maxTick = 0;
+        Sweep sweep = index.sweep();
+        while(sweep.next()){
+            if(sweep.getSoundingCount() > maxPolyphony){
+                maxPolyphony = sweep.getSoundingCount();
+                maxTick = sweep.getTick();
+            }
+        }
+        System.out.println("Notes: " + notes.size() + ", highest polyphony: " + maxPolyphony + " at tick " + maxTick);
+
+        long tick = args.length >= 2 ? Long.parseLong(args[1]) : maxTick;
+        System.out.println("Sounding at tick " + tick + ":");
+        JMidiNoteTable.NoteView view = notes.view();
+        index.forEachSoundingAt(tick, note -> System.out.println(view.moveTo(note)));
+    }
+
+    public JMidiNoteTable getNotes(){
+        return notes;
+    }
+
+    public int size(){
+        return order.length;
+    }
+
+    // Calls action with the table index of every note sounding at some tick from
+    // tickFrom up to (not including) tickTo, in order of tick start.
+    public void forEachOverlapping(long tickFrom, long tickTo, IntConsumer action){
+        int size = order.length;
+        if(size == 0 || tickFrom >= tickTo)
+            return;
+
+        // Depth-first walk of the implicit tree: (node, level, left child done?) per entry
+        long[] stackNodes = new long[64];
+        int[] stackLevels = new int[64];
+        boolean[] stackLeftDone = new boolean[64];
+        int top = 0;
+        stackNodes[top] = (1L << maxLevel) - 1;
+        stackLevels[top] = maxLevel;
+        stackLeftDone[top++] = false;
+
+        while(top > 0){
+            top--;
+            long node = stackNodes[top];
+            int level = stackLevels[top];
+
+            if(level <= 3){
+                // Small subtree: checks every note in it
+                long first = node >> level << level;
+                long end = Math.min(first + (1L << (level + 1)) - 1, size);
+                for(int position = (int) first; position < end && starts[position] < tickTo; position++){
+                    if(stops[position] > tickFrom && stops[position] > starts[position])
+                        action.accept(order[position]);
+                }
+            }
+            else if(!stackLeftDone[top]){
+                // Comes back to this node once its left subtree is done
+                stackLeftDone[top++] = true;
+                long left = node - (1L << (level - 1)); // may be past the end of the notes
+                if(left >= size || maxStops[(int) left] > tickFrom){
+                    stackNodes[top] = left;
+                    stackLevels[top] = level - 1;
+                    stackLeftDone[top++] = false;
+                }
+            }
+            else if(node < size && starts[(int) node] < tickTo){
+                // Every note of the right subtree starts after this one
+                if(stops[(int) node] > tickFrom && stops[(int) node] > starts[(int) node])
+                    action.accept(order[(int) node]);
+                stackNodes[top] = node + (1L << (level - 1));
+                stackLevels[top] = level - 1;
+                stackLeftDone[top++] = false;
+            }
+        }
+    }
+
+    // Calls action with the table index of every note sounding at tick, in order of tick start.
+    public void forEachSoundingAt(long tick, IntConsumer action){
+        forEachOverlapping(tick, tick + 1, action);
+    }
+
+    // Table indices of the notes sounding at some tick from tickFrom up to tickTo (excluded).
+    public int[] overlapping(long tickFrom, long tickTo){
+        IndexList found = new IndexList();
+        forEachOverlapping(tickFrom, tickTo, found);
+        return found.toArray();
+    }
+
+    // Table indices of the notes sounding at tick.
+    public int[] soundingAt(long tick){
+        return overlapping(tick, tick + 1);
+    }
+
+    // Number of notes sounding at tick (the polyphony), in O(log n): the notes that
+    // started at or before it minus the ones that also stopped at or before it.
+    public int countSoundingAt(long tick){
+        return upperBound(starts, tick) - upperBound(sortedStops, tick);
+    }
+
+    // Creates a sweep positioned before the first tick (call next()).
+    public Sweep sweep(){
+        return new Sweep();
+    }
+
+    // Fills maxStops bottom-up, level by level (level 0 are the even positions, the leaves).
+    // Returns the level of the root.
+    private int buildTree(){
+        int size = order.length;
+        if(size == 0)
+            return -1;
+
+        // The last node of a level may have a right subtree past the end of the notes;
+        // lastMax stands in for it (the latest stop of the incomplete part of the tree)
+        long lastNode = 0;
+        long lastMax = 0;
+        for(int position = 0; position < size; position += 2){
+            lastNode = position;
+            lastMax = maxStops[position] = stops[position];
+        }
+
+        int level;
+        for(level = 1; (1L << level) <= size; level++){
+            long half = 1L << (level - 1);
+            for(long node = (half << 1) - 1; node < size; node += half << 2){
+                long left = maxStops[(int) (node - half)];
+                long right = node + half < size ? maxStops[(int) (node + half)] : lastMax;
+                maxStops[(int) node] = Math.max(stops[(int) node], Math.max(left, right));
+            }
+            // lastNode moves up to its parent
+            lastNode = ((lastNode >> level) & 1) != 0 ? lastNode - half : lastNode + half;
+            if(lastNode < size && maxStops[(int) lastNode] > lastMax)
+                lastMax = maxStops[(int) lastNode];
+        }
+        return level - 1;
+    }
+
+    // Number of values (sorted) that are at most value.
+    private static int upperBound(long[] sorted, long value){
+        int low = 0;
+        int high = sorted.length;
+        while(low < high){
+            int middle = (low + high) >>> 1;
+            if(sorted[middle] <= value)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    // Indices 0 to values.length - 1 in order of value (stable).
+    private static int[] sortedOrder(long[] values){
+        int[] order = new int[values.length];
+        for(int i = 0; i < order.length; i++)
+            order[i] = i;
+        mergeSort(values, order, new int[order.length], 0, order.length);
+        return order;
+    }
+
+    private static void mergeSort(long[] values, int[] order, int[] scratch, int from, int to){
+        if(to - from < 2)
+            return;
+        int middle = (from + to) >>> 1;
+        mergeSort(values, order, scratch, from, middle);
+        mergeSort(values, order, scratch, middle, to);
+        if(values[order[middle - 1]] <= values[order[middle]])
+            return; // already in order
+
+        System.arraycopy(order, from, scratch, from, to - from);
+        int left = from;
+        int right = middle;
+        for(int i = from; i < to; i++){
+            if(right >= to || (left < middle && values[scratch[left]] <= values[scratch[right]]))
+                order[i] = scratch[left++];
+            else
+                order[i] = scratch[right++];
+        }
+    }
+
+    // Growable list of note indices for the array-returning queries.
+    private static class IndexList implements IntConsumer {
+        private int[] indices = new int[16];
+        private int size;
+
+        @Override
+        public void accept(int index){
+            if(size == indices.length)
+                indices = Arrays.copyOf(indices, size * 2);
+            indices[size++] = index;
+        }
+
+        private int[] toArray(){
+            return Arrays.copyOf(indices, size);
+        }
+    }
+
+    // Cursor that stops at every tick where a note starts or stops, in order, and keeps
+    // the notes sounding from that tick up to the next one. Each note is added and
+    // removed once, so a whole sweep costs O(n) after the index is built.
+    public class Sweep {
+        private int nextStart;
+        private int nextStop;
+        private long tick = Long.MIN_VALUE;
+
+        // Sounding notes (by position, in no particular order) and where each position
+        // is in that array (-1 if it is not sounding), for removals in O(1)
+        private final int[] sounding = new int[order.length];
+        private final int[] slots = new int[order.length];
+        private int soundingCount;
+
+        private Sweep(){
+            Arrays.fill(slots, -1);
+        }
+
+        // Moves to the next tick where a note starts or stops; false once past the last one.
+        public boolean next(){
+            if(nextStop >= sortedStops.length)
+                return false;
+            tick = nextStart < starts.length ? Math.min(starts[nextStart], sortedStops[nextStop]) : sortedStops[nextStop];
+
+            // Notes that stop on or before their start tick never sound
+            while(nextStart < starts.length && starts[nextStart] <= tick){
+                if(stops[nextStart] > tick){
+                    slots[nextStart] = soundingCount;
+                    sounding[soundingCount++] = nextStart;
+                }
+                nextStart++;
+            }
+            while(nextStop < sortedStops.length && sortedStops[nextStop] <= tick){
+                int position = stopOrder[nextStop++];
+                int slot = slots[position];
+                if(slot < 0)
+                    continue;
+                int moved = sounding[--soundingCount];
+                sounding[slot] = moved;
+                slots[moved] = slot;
+                slots[position] = -1;
+            }
+            return true;
+        }
+
+        public long getTick(){
+            return tick;
+        }
+
+        // Tick where the sounding notes change next (Long.MAX_VALUE after the last tick).
+        public long getNextTick(){
+            long next = Long.MAX_VALUE;
+            if(nextStart < starts.length)
+                next = starts[nextStart];
+            if(nextStop < sortedStops.length)
+                next = Math.min(next, sortedStops[nextStop]);
+            return next;
+        }
+
+        // Number of notes sounding from getTick() up to getNextTick().
+        public int getSoundingCount(){
+            return soundingCount;
+        }
+
+        // Table index of the i-th sounding note (0 to getSoundingCount() - 1, in no particular order).
+        public int getSoundingNote(int i){
+            if(i >= soundingCount)
+                throw new IndexOutOfBoundsException("Only " + soundingCount + " notes are sounding.");
+            return order[sounding[i]];
+        }
+    }
+}
@@ -0,0 +1,302 @@
+import java.io.File;
+import java.util.Arrays;
+
+/* Class that estimates the key of the music from the notes themselves, since
+   the key signature messages (JMidiKeySign) are often missing or wrong. It
+   uses the Krumhansl-Kessler key profiles: the pitch classes of a stretch of
+   music are counted, weighted by how long they sound, and correlated with the
+   profile of each of the 24 major and minor keys; the best match wins.
+
+   The key is estimated over windows of windowTicks that slide forward by
+   stepTicks. Each window is not recounted from scratch: for every pitch class
+   the total time it has sounded up to a tick is a running sum, kept by two
+   cursors that only move forward (one at the start, one at the end of the
+   window), so a window's histogram is the difference of the two. Runs of
+   windows with the same key become segments, so the changes of key
+   (modulations) can be read off next to the declared key signatures. A run
+   shorter than minimumWindows (ex: a few bars on the dominant) does not start
+   a segment of its own; it stays in the key around it.
+
+   Keys are numbered 0 to 23: 0-11 are C major to B major, 12-23 C minor to B minor.
+ */
+public class JMidiKeyEstimator {
+
+    // Krumhansl-Kessler probe-tone profiles, from the tonic up.
+    private static final double[] MAJOR_PROFILE = {6.35, 2.23, 3.48, 2.33, 4.38, 4.09, 2.52, 5.19, 2.39, 3.66, 2.29, 2.88};
+    private static final double[] MINOR_PROFILE = {6.33, 2.68, 3.52, 5.38, 2.60, 3.53, 2.54, 4.75, 3.98, 2.69, 3.34, 3.17};
+
+    public static final int KEY_COUNT = 24;
+
+    // PROFILES[key][pitch class]: the key's profile minus its mean, divided by its length,
+    // so a correlation is a dot product divided by the histogram's spread.
+    private static final double[][] PROFILES = new double[KEY_COUNT][12];
+
+    static {
+        for(int key = 0; key < KEY_COUNT; key++){
+            double[] profile = key < 12 ? MAJOR_PROFILE : MINOR_PROFILE;
+            int tonic = key % 12;
+            double mean = 0;
+            for(double value : profile)
+                mean += value / 12;
+            double length = 0;
+            for(double value : profile)
+                length += (value - mean) * (value - mean);
+            length = Math.sqrt(length);
+            for(int pitchClass = 0; pitchClass < 12; pitchClass++)
+                PROFILES[key][pitchClass] = (profile[(pitchClass - tonic + 12) % 12] - mean) / length;
+        }
+    }
+
+    private final long windowTicks;
+    private final long stepTicks;
+    private final int minimumWindows;
+
+    public JMidiKeyEstimator(long windowTicks, long stepTicks){
+        this(windowTicks, stepTicks, 1);
+    }
+
+    public JMidiKeyEstimator(long windowTicks, long stepTicks, int minimumWindows){
+        if(windowTicks <= 0 || stepTicks <= 0 || minimumWindows <= 0)
+            throw new IllegalArgumentException("Window, step and minimum number of windows must be positive.");
+        this.windowTicks = windowTicks;
+        this.stepTicks = stepTicks;
+        this.minimumWindows = minimumWindows;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1){
+            System.out.println("Usage: java JMidiKeyEstimator <MIDI file> [window in quarter notes] [step in quarter notes]"
+                    + " [minimum windows per key]");
+            return;
+        }
+
+        JMidiAnalysis analysis = JMidiAnalysis.read(new JMidiFileReader(), new File(args[0]));
+        int ppq = analysis.getNotes().getPPQ();
+        int window = args.length >= 2 ? Integer.parseInt(args[1]) : 16;
+        int step = args.length >= 3 ? Integer.parseInt(args[2]) : 2;
+        int minimum = args.length >= 4 ? Integer.parseInt(args[3]) : 4;
+
+        System.out.println("Whole file: " + keyName(estimateKey(analysis.getNotes())));
+        Result result = new JMidiKeyEstimator((long) window * ppq, (long) step * ppq, minimum).estimate(analysis.getNotes());
+        System.out.print(result.describe(analysis));
+    }
+
+    // The key of a whole note table (one window over everything), or -1 if it has no notes.
+    public static int estimateKey(JMidiNoteTable notes){
+        long[] histogram = new long[12];
+        for(int i = 0; i < notes.size(); i++)
+            histogram[notes.getKey(i) % 12] += notes.getTickStop(i) - notes.getTickStart(i);
+        double[] correlation = new double[1];
+        return bestKey(histogram, correlation);
+    }
+
+    // Estimates the key of every window of a note table (in any order).
+    public Result estimate(JMidiNoteTable notes){
+        // Every start and stop of a note as one sortable long: tick, then pitch class and
+        // whether the note starts (1) or stops (0) in the low 5 bits.
+        long[] events = new long[notes.size() * 2];
+        long lastTick = 0;
+        for(int i = 0; i < notes.size(); i++){
+            int pitchClass = notes.getKey(i) % 12;
+            events[2 * i] = notes.getTickStart(i) << 5 | pitchClass << 1 | 1;
+            events[2 * i + 1] = notes.getTickStop(i) << 5 | pitchClass << 1;
+            lastTick = Math.max(lastTick, notes.getTickStop(i));
+        }
+        Arrays.sort(events);
+
+        int windows = notes.size() == 0 ? 0 : (int) Math.max(1, (lastTick - windowTicks + stepTicks - 1) / stepTicks + 1);
+        long[] starts = new long[windows];
+        int[] keys = new int[windows];
+        double[] correlations = new double[windows];
+
+        Cursor front = new Cursor(events);
+        Cursor back = new Cursor(events);
+        long[] histogram = new long[12];
+        double[] correlation = new double[1];
+        for(int window = 0; window < windows; window++){
+            long start = window * stepTicks;
+            front.advanceTo(start + windowTicks);
+            back.advanceTo(start);
+            for(int pitchClass = 0; pitchClass < 12; pitchClass++)
+                histogram[pitchClass] = front.sounded[pitchClass] - back.sounded[pitchClass];
+
+            starts[window] = start;
+            keys[window] = bestKey(histogram, correlation);
+            correlations[window] = correlation[0];
+        }
+        return new Result(starts, keys, correlations, windowTicks, minimumWindows);
+    }
+
+    // Name of a key (ex: "A minor").
+    public static String keyName(int key){
+        if(key < 0)
+            return "none";
+        return JMidiNote.NOTE_NAMES[key % 12] + (key < 12 ? " major" : " minor");
+    }
+
+    // Key signature of a key (ex: E minor -> 1 sharp).
+    public static JMidiKeySign.JKeySignature keySignatureOf(int key){
+        int major = key < 12 ? key : (key + 3) % 12; // minor keys share the signature of their relative major
+        int sharps = major * 7 % 12; // each step around the circle of fifths adds a sharp
+        return JMidiKeySign.keyOf(sharps > 6 ? sharps - 12 : sharps);
+    }
+
+    // Key that best matches a histogram (-1 if it is empty); its correlation goes in correlation[0].
+    private static int bestKey(long[] histogram, double[] correlation){
+        double mean = 0;
+        for(long value : histogram)
+            mean += value / 12.0;
+        double spread = 0;
+        for(long value : histogram)
+            spread += (value - mean) * (value - mean);
+        if(spread == 0){
+            correlation[0] = 0;
+            return -1;
+        }
+
+        int best = -1;
+        double bestDot = Double.NEGATIVE_INFINITY;
+        for(int key = 0; key < KEY_COUNT; key++){
+            double[] profile = PROFILES[key];
+            double dot = 0;
+            for(int pitchClass = 0; pitchClass < 12; pitchClass++)
+                dot += profile[pitchClass] * histogram[pitchClass];
+            if(dot > bestDot){
+                bestDot = dot;
+                best = key;
+            }
+        }
+        correlation[0] = bestDot / Math.sqrt(spread);
+        return best;
+    }
+
+    // Moves forward through the events, keeping how long each pitch class has sounded
+    // (summed over its notes) before the cursor's tick.
+    private static class Cursor {
+        private final long[] events;
+        private int next;
+        private long tick;
+        private final int[] sounding = new int[12];
+        private final long[] sounded = new long[12];
+
+        private Cursor(long[] events){
+            this.events = events;
+        }
+
+        private void advanceTo(long target){
+            while(next < events.length && (events[next] >> 5) <= target){
+                long eventTick = events[next] >> 5;
+                addTime(eventTick - tick);
+                tick = eventTick;
+                int pitchClass = (int) (events[next] >> 1) & 0x0F;
+                sounding[pitchClass] += (events[next] & 1) != 0 ? 1 : -1;
+                next++;
+            }
+            addTime(target - tick);
+            tick = target;
+        }
+
+        private void addTime(long ticks){
+            if(ticks <= 0)
+                return;
+            for(int pitchClass = 0; pitchClass < 12; pitchClass++)
+                sounded[pitchClass] += sounding[pitchClass] * ticks;
+        }
+    }
+
+    // Estimated key of every window, and the segments of consecutive windows with the same key.
+    public static class Result {
+        private final long[] windowStarts;
+        private final int[] windowKeys;
+        private final double[] windowCorrelations;
+        private final long windowTicks;
+
+        // Segment i covers the windows segmentFirst[i] to segmentFirst[i + 1] - 1
+        private final int[] segmentFirst;
+        private final int[] segmentKeys;
+        private final int segmentCount;
+
+        private Result(long[] windowStarts, int[] windowKeys, double[] windowCorrelations, long windowTicks, int minimumWindows){
+            this.windowStarts = windowStarts;
+            this.windowKeys = windowKeys;
+            this.windowCorrelations = windowCorrelations;
+            this.windowTicks = windowTicks;
+
+            int[] first = new int[windowKeys.length + 1];
+            int[] keys = new int[windowKeys.length];
+            int count = 0;
+            for(int run = 0; run < windowKeys.length; ){
+                int runEnd = run + 1;
+                while(runEnd < windowKeys.length && windowKeys[runEnd] == windowKeys[run])
+                    runEnd++;
+                // A run starts a segment if it is long enough and in another key than the
+                // current segment (the first run always does)
+                if(count == 0 || (runEnd - run >= minimumWindows && windowKeys[run] != keys[count - 1])){
+                    first[count] = run;
+                    keys[count] = windowKeys[run];
+                    count++;
+                }
+                run = runEnd;
+            }
+            first[count] = windowKeys.length;
+            segmentFirst = Arrays.copyOf(first, count + 1);
+            segmentKeys = Arrays.copyOf(keys, count);
+            segmentCount = count;
+        }
+
+        public int getWindowCount(){
+            return windowStarts.length;
+        }
+
+        public long getWindowStart(int window){
+            return windowStarts[window];
+        }
+
+        // Key of a window (-1 if nothing sounds in it) and how well it matched (-1 to 1).
+        public int getWindowKey(int window){
+            return windowKeys[window];
+        }
+
+        public double getWindowCorrelation(int window){
+            return windowCorrelations[window];
+        }
+
+        public int getSegmentCount(){
+            return segmentCount;
+        }
+
+        // First tick of a segment's first window, and the first tick of the next segment
+        // (or after the last window).
+        public long getSegmentStart(int segment){
+            return windowStarts[segmentFirst[segment]];
+        }
+
+        public long getSegmentEnd(int segment){
+            if(segment + 1 < segmentCount)
+                return windowStarts[segmentFirst[segment + 1]];
+            return windowStarts[windowStarts.length - 1] + windowTicks;
+        }
+
+        public int getSegmentKey(int segment){
+            return segmentKeys[segment];
+        }
+
+        // Segments next to the key signature declared in the file at their start.
+        public String describe(JMidiAnalysis analysis){
+            StringBuilder stringBuilder = new StringBuilder();
+            for(int segment = 0; segment < segmentCount; segment++){
+                int key = getSegmentKey(segment);
+                stringBuilder.append("Ticks ").append(getSegmentStart(segment)).append(" to ").append(getSegmentEnd(segment));
+                stringBuilder.append(": ").append(keyName(key));
+                JMidiKeySign.JKeySignature declared = analysis.getKeySignatureAt(getSegmentStart(segment));
+                if(declared != null){
+                    stringBuilder.append(", declared ").append(declared.getMajorName()).append(" / ").append(declared.getMinorName());
+                    if(key >= 0 && keySignatureOf(key) != declared)
+                        stringBuilder.append(" (signature differs)");
+                }
+                stringBuilder.append('\n');
+            }
+            return stringBuilder.toString();
+        }
+    }
+}
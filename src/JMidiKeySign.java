@@ -1,6 +1,4 @@
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
 import java.util.Scanner;
 
 /* Class that represents a MIDI Key Signature message.
@@ -10,66 +8,78 @@ import java.util.Scanner;
  */
 public class JMidiKeySign {
 
-    // HashSet containing all the possible key signatures
-    // in a standardized format. MUST BE INITIALIZED THROUGH
-    // initList() before any object is created or findKey() is
-    // called.
-    public static HashSet<JKeySignature> KEY_SIGNATURES;
-
-    // FILE NAME OF REQUIRED FILE NECESSARY TO GENERATE KEY_SIGNATURE
-    // DO NOT CHANGE UNLESS FILE PATH CHANGES
-    private static String PATH_NAME_FOR_KEY_SIGNATURES = ".\\req\\MIDI_Key_Signature.txt";
-
-    // Method that initializes KEY_SIGNATURE if necessary.
-    // Pre: PATH_NAME_FOR_KEY_SIGNATURE must be the correct file path for the
-    // MIDI Key Signature text file.
-    public static void initList() throws FileNotFoundException {
-        if(KEY_SIGNATURES == null){
-            // Accesses the MIDI Key Signature text file
-            Scanner fileScan = new Scanner(new File(PATH_NAME_FOR_KEY_SIGNATURES));
-            KEY_SIGNATURES = new HashSet<>();
-
-            // Goes through the file
-            while (fileScan.hasNextLine()) {
-                String key = fileScan.nextLine();
-                Scanner keyScan = new Scanner(key);
-
-                // Goes through the given key signature
-                while (keyScan.hasNextLine()) {
-                    // Adds the information
-                    int sharps = keyScan.nextInt();
-                    int flats = keyScan.nextInt();
-                    String major = keyScan.next();
-                    keyScan.next();
-                    String minor = keyScan.next();
-
-                    // Creates the JKeySignature object for the given Key Signature and
-                    // adds it to KEY_SIGNATURES
-                    JKeySignature keySign = new JKeySignature(sharps, flats, major, minor);
-                    KEY_SIGNATURES.add(keySign);
-                }
-            }
-        }
+    // Number of key signatures: 7 flats to 7 sharps
+    public static final int KEY_COUNT = 15;
+
+    // FILE NAME OF REQUIRED FILE (in req, see JMidiResources) NECESSARY TO GENERATE THE KEY SIGNATURES
+    // DO NOT CHANGE UNLESS FILE NAME CHANGES
+    private static final String FILE_NAME_FOR_KEY_SIGNATURES = "MIDI_Key_Signature.txt";
+
+    // Array containing all the possible key signatures in a standardized format,
+    // indexed by sharps - flats + 7 (so 7 flats is 0 and 7 sharps is 14). The holder class
+    // is only loaded (and the file only read) the first time a key is needed; the JVM makes
+    // sure that happens once and that every thread sees the finished array.
+    private static class KeyTable {
+        private static final JKeySignature[] KEY_SIGNATURES = readKeySignatures();
+    }
+
+    // Loads the key signatures now instead of on first use (ex: before handing work to
+    // other threads). Calling it again does nothing.
+    public static void initList(){
+        keyOf(0);
+    }
+
+    // Key signature with the given number of sharps (positive) or flats (negative),
+    // or null if there is no such key signature.
+    public static JKeySignature keyOf(int sharpsOrFlats){
+        if(sharpsOrFlats < -7 || sharpsOrFlats > 7)
+            return null;
+        return KeyTable.KEY_SIGNATURES[sharpsOrFlats + 7];
     }
 
     // Finds a given JKeySignatue given the MIDI message data.
     public static JKeySignature findKey(byte[] keyData){
-        assert KEY_SIGNATURES != null; // just in case something goes badly
-
-        // Creates a default key, goes looking for the correct key, and makes
-        // sure you have a valid key.
-        JKeySignature key = null;
-        for (JKeySignature keySign : KEY_SIGNATURES) {
-            if (keySign.numberOfSharps == keyData[0] && keySign.numberOfFlats == keyData[1])
-                key = keySign;
-        }
+        return findKey(ByteBuffer.wrap(keyData));
+    }
+
+    // Same as above but reads the MIDI message data straight from the file (ex: a
+    // slice handed out by JMidiFileReader) without copying it. The first byte is
+    // the number of sharps (positive) or flats (negative), as a signed byte.
+    public static JKeySignature findKey(ByteBuffer keyData){
+        JKeySignature key = keyOf(keyData.get(0));
 
         assert key != null; // only breaks if key is not valid
 
         return key;
     }
 
-    // Static inner class that is used for the objects within KEY_SIGNATURES
+    // Reads the key signatures from the MIDI Key Signature text file.
+    private static JKeySignature[] readKeySignatures(){
+        JKeySignature[] keySignatures = new JKeySignature[KEY_COUNT];
+
+        // Goes through the file
+        for (String key : JMidiResources.readLines(FILE_NAME_FOR_KEY_SIGNATURES)) {
+            Scanner keyScan = new Scanner(key);
+
+            // Goes through the given key signature
+            while (keyScan.hasNextLine()) {
+                // Adds the information
+                int sharps = keyScan.nextInt();
+                int flats = keyScan.nextInt();
+                String major = keyScan.next();
+                keyScan.next();
+                String minor = keyScan.next();
+
+                // Creates the JKeySignature object for the given Key Signature and
+                // puts it in its slot
+                JKeySignature keySign = new JKeySignature(sharps, flats, major, minor);
+                keySignatures[sharps - flats + 7] = keySign;
+            }
+        }
+        return keySignatures;
+    }
+
+    // Static inner class that is used for the objects within the key table
     // (this is used since there are defined number of key signatures so
     // we only need information for those)
     public static class JKeySignature {
@@ -88,6 +98,22 @@ public class JMidiKeySign {
             minorName = minor;
         }
 
+        public int getNumberOfSharps(){
+            return numberOfSharps;
+        }
+
+        public int getNumberOfFlats(){
+            return numberOfFlats;
+        }
+
+        public String getMajorName(){
+            return majorName;
+        }
+
+        public String getMinorName(){
+            return minorName;
+        }
+
         // Prints it out in a human readable (though inefficient) manner,
         // will be changed to toDescriptiveString in version 0.2
         @Override
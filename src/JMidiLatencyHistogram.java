@@ -0,0 +1,104 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Class that counts latencies (in nanoseconds) in log-linear buckets so
+   percentiles such as the p99 can be read at any time without keeping every
+   value. Values below 64 ns get a bucket each; above that every power of two
+   is split into 32 buckets, so a reported value is at most ~3% above the real
+   one. Recording is a couple of shifts and one array write, no allocation.
+
+   One thread records (ex: the analysis thread of JMidiLiveAnalyzer) while any
+   number of threads read; readers may be a few values behind the recorder.
+ */
+public class JMidiLatencyHistogram {
+
+    // Each power of two above LINEAR_LIMIT is split into SUB_BUCKETS buckets.
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private volatile long count;
+    private volatile long sum;
+    private volatile long max;
+
+    // Records one latency (negative values count as 0). Only one thread may record.
+    public void record(long nanoseconds){
+        if(nanoseconds < 0)
+            nanoseconds = 0;
+        int bucket = bucketOf(nanoseconds);
+        counts.lazySet(bucket, counts.get(bucket) + 1);
+        sum += nanoseconds;
+        if(nanoseconds > max)
+            max = nanoseconds;
+        count++;
+    }
+
+    // Number of latencies recorded.
+    public long getCount(){
+        return count;
+    }
+
+    public long getMax(){
+        return max;
+    }
+
+    public double getMean(){
+        long count = this.count;
+        return count == 0 ? 0 : sum / (double) count;
+    }
+
+    // Smallest bucket value that at least percentile % of the latencies are at or
+    // below (ex: 99 for the p99), in nanoseconds. 0 if nothing was recorded.
+    public long getValueAtPercentile(double percentile){
+        if(percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percentile);
+        long total = 0;
+        long[] snapshot = new long[BUCKET_COUNT];
+        for(int i = 0; i < BUCKET_COUNT; i++){
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if(total == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++){
+            seen += snapshot[i];
+            if(seen >= target)
+                return Math.min(highestValueOf(i), max);
+        }
+        return max;
+    }
+
+    // Bucket of a value: the value itself below LINEAR_LIMIT, then SUB_BUCKETS per power of two.
+    private static int bucketOf(long value){
+        if(value < LINEAR_LIMIT)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    // Largest value that falls in a bucket.
+    private static long highestValueOf(int bucket){
+        if(bucket < LINEAR_LIMIT)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    // Summary in microseconds, ex: "n=1000 mean=12.3 p50=10.2 p90=... p99=... p99.9=... max=... (us)"
+    @Override
+    public String toString(){
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append("n=").append(getCount());
+        stringBuilder.append(String.format(" mean=%.1f", getMean() / 1000));
+        for(double percentile : new double[]{50, 90, 99, 99.9})
+            stringBuilder.append(String.format(" p%s=%.1f", percentile == (int) percentile ? "" + (int) percentile : "" + percentile,
+                    getValueAtPercentile(percentile) / 1000.0));
+        stringBuilder.append(String.format(" max=%.1f (us)", getMax() / 1000.0));
+        return stringBuilder.toString();
+    }
+}
@@ -0,0 +1,449 @@
+import javax.sound.midi.MetaEventListener;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.ShortMessage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/* Class that analyzes MIDI messages live, as they are played. Plug it into
+   any Transmitter (a hardware port, or a Sequencer playing a file) and, for
+   a Sequencer, add it as a MetaEventListener too, since sequencers hand meta
+   messages to listeners rather than to transmitters:
+
+   sequencer.getTransmitter().setReceiver(analyzer);
+   sequencer.addMetaEventListener(analyzer);
+
+   The threads that deliver messages never block: send() and meta() copy the
+   message into a fixed ring buffer (claiming a slot with one compare-and-set)
+   and return. A single analysis thread drains the ring, pairs notes (with a
+   JMidiNotePairer), groups notes into JMidiNoteClusters, keeps track of the
+   current tempo, key and time signature and notifies the listeners. If the
+   ring is full the message is dropped and counted, never waited on.
+
+   Times are in microseconds: the device timestamp when the transmitter
+   supplies one, otherwise the time the message was received since the
+   analyzer was created. Notes that start within the chord window of the first
+   note of a cluster join that cluster; a cluster is completed once all its
+   notes have been released and the window has passed. Since there are no
+   ticks, the "PPQ" of the clusters' notes is the tempo (microseconds per
+   quarter note) in effect when the note was released.
+
+   Every message's latency, from the moment it was received until the
+   listeners have been notified, goes into a JMidiLatencyHistogram.
+
+   Run it with a MIDI file to play that file through a Sequencer (no sound),
+   or without one to feed it synthetic messages at a steady rate:
+   java JMidiLiveAnalyzer [<MIDI file> [tempo factor]]
+   java JMidiLiveAnalyzer --rate <messages per second> <seconds>
+ */
+public class JMidiLiveAnalyzer implements Receiver, MetaEventListener {
+
+    // Default size of the ring buffer (messages) and chord window (microseconds).
+    public static final int DEFAULT_CAPACITY = 1 << 14;
+    public static final long DEFAULT_CHORD_WINDOW = 20_000;
+
+    // Longest the analysis thread sleeps when there is nothing to do, in nanoseconds.
+    private static final long MAX_PARK = 1_000_000;
+
+    // Things the analyzer tells its listeners about (every method does nothing by default).
+    public interface Listener {
+        default void noteOn(long time, int channel, int key, int velocity){}
+        default void notePaired(long timeStart, long timeStop, int channel, int key, int velocity){}
+        default void clusterCompleted(JMidiNoteCluster cluster){}
+        // Every channel message other than NOTE ON/NOTE OFF
+        default void shortMessage(long time, int status, int data1, int data2){}
+        default void tempoChanged(long time, int microsecondsPerQuarter){}
+        default void keySignatureChanged(long time, JMidiKeySign.JKeySignature keySignature){}
+        default void timeSignatureChanged(long time, JMidiTimeSign timeSignature){}
+    }
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final long chordWindow;
+    private final long startNanos = System.nanoTime();
+
+    // Ring buffer: a slot can be written when sequences[slot] == position and read when
+    // sequences[slot] == position + 1. Producers claim positions from tail; only the
+    // analysis thread moves head.
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+    private final long[] receivedNanos;
+    private final long[] times;
+    private final int[] messages; // status | data1 << 8 | data2 << 16 (data1 is the type of a meta message)
+    private final byte[][] payloads; // data of meta messages
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final JMidiLatencyHistogram latencies = new JMidiLatencyHistogram();
+    private final Thread worker;
+    private volatile boolean parked;
+    private volatile boolean closed;
+
+    // State of the analysis; written by the analysis thread only.
+    private final JMidiNotePairer pairer;
+    private final ArrayDeque<PendingCluster> clusters = new ArrayDeque<>();
+    private volatile int microsecondsPerQuarter = JMidiTempoMap.DEFAULT_MICROSECONDS_PER_QUARTER;
+    private volatile JMidiKeySign.JKeySignature keySignature;
+    private volatile JMidiTimeSign timeSignature;
+    private volatile int openNotes;
+    private volatile long processed;
+
+    // Time of the latest message and when it was received, so the analysis thread can
+    // tell the time (in the messages' clock) while it waits.
+    private long latestTime;
+    private long latestReceived = startNanos;
+
+    public JMidiLiveAnalyzer(){
+        this(DEFAULT_CAPACITY, DEFAULT_CHORD_WINDOW);
+    }
+
+    // capacity is rounded up to a power of two; chordWindow is in microseconds.
+    public JMidiLiveAnalyzer(int capacity, long chordWindow){
+        if(capacity < 2 || capacity > 1 << 30)
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        if(chordWindow < 0)
+            throw new IllegalArgumentException("Chord window cannot be negative.");
+        this.chordWindow = chordWindow;
+
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++)
+            sequences.set(i, i);
+        receivedNanos = new long[size];
+        times = new long[size];
+        messages = new int[size];
+        payloads = new byte[size][];
+
+        // The lookup tables are loaded now so the first messages do not pay for it
+        JMidiNote.setUpChannelLookup();
+        JMidiKeySign.initList();
+
+        pairer = new JMidiNotePairer(this::notePaired);
+        worker = new Thread(this::run, "JMidi live analyzer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public static void main(String[] args) throws Exception {
+        JMidiLiveAnalyzer analyzer = new JMidiLiveAnalyzer();
+        if(args.length >= 1 && !args[0].equals("--rate")){
+            analyzer.addListener(new Listener() {
+                @Override
+                public void clusterCompleted(JMidiNoteCluster cluster){
+                    System.out.println(cluster.startingTick + " us: " + cluster.cluster);
+                }
+            });
+            play(analyzer, new File(args[0]), args.length >= 2 ? Float.parseFloat(args[1]) : 1);
+        }
+        else{
+            int rate = args.length >= 2 ? Integer.parseInt(args[1]) : 10_000;
+            int seconds = args.length >= 3 ? Integer.parseInt(args[2]) : 5;
+            feed(analyzer, rate, seconds);
+        }
+        analyzer.close();
+
+        System.out.println("Messages: " + analyzer.getProcessedMessages() + " (" + analyzer.getDroppedMessages() + " dropped)");
+        System.out.println("Latency: " + analyzer.getLatencies());
+    }
+
+    // Plays a MIDI file through a Sequencer that is not connected to a synthesizer.
+    private static void play(JMidiLiveAnalyzer analyzer, File file, float tempoFactor) throws Exception {
+        try (Sequencer sequencer = MidiSystem.getSequencer(false)) {
+            sequencer.open();
+            sequencer.setSequence(MidiSystem.getSequence(file));
+            sequencer.setTempoFactor(tempoFactor);
+            sequencer.getTransmitter().setReceiver(analyzer);
+            sequencer.addMetaEventListener(analyzer);
+            sequencer.start();
+            while(sequencer.isRunning())
+                Thread.sleep(100);
+        }
+    }
+
+    // Sends chords of three notes (on, then off) at a steady number of messages per second.
+    private static void feed(JMidiLiveAnalyzer analyzer, int rate, int seconds) throws Exception {
+        ShortMessage[] pattern = new ShortMessage[6];
+        for(int i = 0; i < 3; i++){
+            pattern[i] = new ShortMessage(ShortMessage.NOTE_ON, 0, 60 + 4 * i, 80);
+            pattern[i + 3] = new ShortMessage(ShortMessage.NOTE_OFF, 0, 60 + 4 * i, 0);
+        }
+
+        long interval = 1_000_000_000L / rate;
+        long total = (long) rate * seconds;
+        long next = System.nanoTime();
+        for(long i = 0; i < total; i++){
+            while(System.nanoTime() < next)
+                Thread.yield();
+            analyzer.send(pattern[(int) (i % pattern.length)], -1);
+            next += interval;
+        }
+    }
+
+    public void addListener(Listener listener){
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener){
+        listeners.remove(listener);
+    }
+
+    // Called by the Transmitter. Never blocks; timeStamp is in microseconds, -1 if unknown.
+    @Override
+    public void send(MidiMessage message, long timeStamp){
+        long received = System.nanoTime();
+        if(message instanceof ShortMessage){
+            ShortMessage shortMessage = (ShortMessage) message;
+            offer(received, timeStamp, shortMessage.getStatus() | shortMessage.getData1() << 8
+                    | shortMessage.getData2() << 16, null);
+        }
+        else if(message instanceof MetaMessage)
+            meta((MetaMessage) message, received, timeStamp);
+    }
+
+    // Called by a Sequencer for every meta message. Never blocks.
+    @Override
+    public void meta(MetaMessage message){
+        meta(message, System.nanoTime(), -1);
+    }
+
+    private void meta(MetaMessage message, long received, long timeStamp){
+        int type = message.getType();
+        if(type == JMidiTranscriber.SET_TEMPO || type == JMidiTranscriber.KEY_SIGNATURE
+                || type == JMidiTranscriber.TIME_SIGNATURE)
+            offer(received, timeStamp, JMidiFileReader.META | type << 8, message.getData());
+    }
+
+    // Stops the analysis thread once every message already received has been analyzed.
+    // Clusters with notes that are still sounding are never completed.
+    @Override
+    public void close(){
+        closed = true;
+        LockSupport.unpark(worker);
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Latencies of the messages analyzed so far.
+    public JMidiLatencyHistogram getLatencies(){
+        return latencies;
+    }
+
+    public long getDroppedMessages(){
+        return dropped.get();
+    }
+
+    public long getProcessedMessages(){
+        return processed;
+    }
+
+    // Current state of the music (null key/time signature until one has been seen).
+    public int getMicrosecondsPerQuarter(){
+        return microsecondsPerQuarter;
+    }
+
+    public JMidiKeySign.JKeySignature getKeySignature(){
+        return keySignature;
+    }
+
+    public JMidiTimeSign getTimeSignature(){
+        return timeSignature;
+    }
+
+    public int getOpenNotes(){
+        return openNotes;
+    }
+
+    // Copies a message into the ring, or drops it if the ring is full.
+    private void offer(long received, long timeStamp, int message, byte[] payload){
+        if(closed)
+            return;
+        long position = tail.get();
+        int slot;
+        while(true){
+            slot = (int) position & mask;
+            long difference = sequences.get(slot) - position;
+            if(difference == 0){
+                if(tail.compareAndSet(position, position + 1))
+                    break;
+                position = tail.get();
+            }
+            else if(difference < 0){
+                dropped.incrementAndGet(); // full: the analysis thread is a whole ring behind
+                return;
+            }
+            else
+                position = tail.get(); // another producer took this slot
+        }
+
+        receivedNanos[slot] = received;
+        times[slot] = timeStamp >= 0 ? timeStamp : (received - startNanos) / 1000;
+        messages[slot] = message;
+        payloads[slot] = payload;
+        // A full volatile store: it must not be reordered with the read of parked, or the
+        // analysis thread could park on the old sequence while this sees parked == false
+        sequences.set(slot, position + 1);
+        if(parked)
+            LockSupport.unpark(worker);
+    }
+
+    // The analysis thread: drains the ring, then sleeps until a message arrives (or the
+    // chord window of a cluster may have passed).
+    private void run(){
+        while(true){
+            int slot = (int) head & mask;
+            if(sequences.get(slot) == head + 1){
+                long received = receivedNanos[slot];
+                long time = times[slot];
+                int message = messages[slot];
+                byte[] payload = payloads[slot];
+                payloads[slot] = null;
+                sequences.lazySet(slot, head + mask + 1);
+                head++;
+
+                latestTime = time;
+                latestReceived = received;
+                analyze(time, message, payload);
+                completeClusters(time);
+                processed++;
+                latencies.record(System.nanoTime() - received);
+                continue;
+            }
+
+            completeClusters(latestTime + (System.nanoTime() - latestReceived) / 1000);
+            if(closed && tail.get() == head)
+                return;
+            parked = true;
+            if(sequences.get((int) head & mask) != head + 1 && !closed)
+                LockSupport.parkNanos(this, Math.min(MAX_PARK, chordWindow * 1000 + 1));
+            parked = false;
+        }
+    }
+
+    private void analyze(long time, int message, byte[] payload){
+        int status = message & 0xFF;
+        int data1 = (message >>> 8) & 0xFF;
+        int data2 = (message >>> 16) & 0xFF;
+
+        if(status == JMidiFileReader.META){
+            meta(time, data1, payload);
+            return;
+        }
+
+        if((status & 0xF0) == JMidiNotePairer.NOTE_ON && data2 != 0){
+            startNote(time);
+            for(Listener listener : listeners)
+                listener.noteOn(time, status & 0x0F, data1, data2);
+        }
+        if(pairer.onShortMessage(time, status, data1, data2))
+            openNotes = pairer.getOpenNotes();
+        else{
+            for(Listener listener : listeners)
+                listener.shortMessage(time, status, data1, data2);
+        }
+    }
+
+    private void meta(long time, int type, byte[] data){
+        if(type == JMidiTranscriber.SET_TEMPO && data.length >= 3){
+            int tempo = JMidiTempo.microsecondsPerQuarterOf(ByteBuffer.wrap(data));
+            if(tempo > 0){
+                microsecondsPerQuarter = tempo;
+                for(Listener listener : listeners)
+                    listener.tempoChanged(time, tempo);
+            }
+        }
+        else if(type == JMidiTranscriber.KEY_SIGNATURE && data.length >= 2){
+            JMidiKeySign.JKeySignature key = JMidiKeySign.keyOf(data[0]);
+            if(key != null){
+                keySignature = key;
+                for(Listener listener : listeners)
+                    listener.keySignatureChanged(time, key);
+            }
+        }
+        else if(type == JMidiTranscriber.TIME_SIGNATURE && data.length == 4){
+            JMidiTimeSign timeSign = new JMidiTimeSign(data);
+            timeSignature = timeSign;
+            for(Listener listener : listeners)
+                listener.timeSignatureChanged(time, timeSign);
+        }
+    }
+
+    // A note starts: it joins the newest cluster if that one started within the chord window.
+    private void startNote(long time){
+        PendingCluster newest = clusters.peekLast();
+        if(newest == null || time - newest.start > chordWindow){
+            newest = new PendingCluster(time);
+            clusters.addLast(newest);
+        }
+        newest.open++;
+    }
+
+    // Called by the pairer: the note goes to the cluster it started in.
+    private void notePaired(long timeStart, long timeStop, int channel, int key, int velocity){
+        for(Listener listener : listeners)
+            listener.notePaired(timeStart, timeStop, channel, key, velocity);
+
+        Iterator<PendingCluster> newestFirst = clusters.descendingIterator();
+        while(newestFirst.hasNext()){
+            PendingCluster cluster = newestFirst.next();
+            if(cluster.start <= timeStart){
+                try {
+                    JMidiNote note = new JMidiNote(timeStart, channel, velocity, key, microsecondsPerQuarter);
+                    note.setTickStop(timeStop);
+                    note.setUpNoteLength();
+                    cluster.notes.add(note);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                cluster.open--;
+                break;
+            }
+        }
+    }
+
+    // Hands every cluster whose notes have all been released and whose window has passed
+    // to the listeners.
+    private void completeClusters(long now){
+        Iterator<PendingCluster> oldestFirst = clusters.iterator();
+        while(oldestFirst.hasNext()){
+            PendingCluster cluster = oldestFirst.next();
+            if(cluster.open > 0 || now - cluster.start <= chordWindow)
+                continue;
+            oldestFirst.remove();
+            if(cluster.notes.isEmpty())
+                continue;
+
+            JMidiNoteCluster completed = new JMidiNoteCluster(cluster.start, cluster.notes.get(0));
+            completed.cluster.addAll(cluster.notes.subList(1, cluster.notes.size()));
+            for(Listener listener : listeners)
+                listener.clusterCompleted(completed);
+        }
+    }
+
+    // A cluster that may still get notes or is waiting for some of its notes to be released.
+    private static class PendingCluster {
+        private final long start;
+        private int open;
+        private final ArrayList<JMidiNote> notes = new ArrayList<>();
+
+        private PendingCluster(long start){
+            this.start = start;
+        }
+    }
+}
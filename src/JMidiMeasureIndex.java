@@ -0,0 +1,287 @@
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* Class that maps ticks to measures (bars) and beats. It is built once from
+   every time signature change of a file plus the PPQ, and each change starts
+   a new segment of identical measures. Finding the measure of a tick is a
+   binary search over the segments plus one division; the bulk methods sweep
+   forward through sorted ticks instead, so every note of a file can be
+   annotated in one pass.
+
+   Measures and beats are counted from 1 like musicians do; the tick inside a
+   beat is counted from 0. Until the first time signature the MIDI default of
+   4/4 is used. A time signature that changes in the middle of a measure cuts
+   that measure short and starts a new one.
+
+   All the arithmetic is done in ticks * denominator, so odd combinations of
+   PPQ and denominator (ex: PPQ 96 in 7/64) never round.
+ */
+public class JMidiMeasureIndex {
+
+    private final int PPQ;
+
+    // One entry per segment: the tick it starts at, the number of its first
+    // measure and its time signature.
+    private final long[] startTicks;
+    private final int[] startMeasures;
+    private final int[] numerators;
+    private final int[] denominators;
+
+    // Position of a tick inside the measures, filled in by locate() so the same object
+    // can be reused for every query.
+    public static class Position {
+        public int measure;
+        public int beat;
+        public long tickInBeat;
+
+        @Override
+        public String toString(){
+            return "Measure " + measure + ", beat " + beat + " (+" + tickInBeat + " ticks)";
+        }
+    }
+
+    // Builds the index from count time signature changes (tick, numerator, denominator)
+    // in any order. When several changes share a tick, the last one wins.
+    public JMidiMeasureIndex(int ppq, long[] changeTicks, int[] changeNumerators, int[] changeDenominators, int count){
+        if(ppq <= 0 || (ppq & 0x8000) != 0)
+            throw new IllegalArgumentException("JMidiMeasureIndex needs a PPQ based division, not " + ppq);
+        PPQ = ppq;
+
+        // Sorts the changes by tick, keeping the order of changes that share a tick
+        Integer[] order = new Integer[count];
+        for(int i = 0; i < count; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(changeTicks[a], changeTicks[b]));
+
+        long[] ticks = new long[count + 1];
+        int[] numerators = new int[count + 1];
+        int[] denominators = new int[count + 1];
+        ticks[0] = 0;
+        numerators[0] = 4;
+        denominators[0] = 4;
+        int size = 1;
+        for(int i = 0; i < count; i++){
+            long tick = changeTicks[order[i]];
+            int numerator = changeNumerators[order[i]];
+            int denominator = changeDenominators[order[i]];
+            if(numerator <= 0 || denominator <= 0)
+                throw new IllegalArgumentException("Invalid time signature: " + numerator + "/" + denominator);
+
+            if(tick != ticks[size - 1])
+                size++;
+            ticks[size - 1] = tick; // same tick: the later change wins
+            numerators[size - 1] = numerator;
+            denominators[size - 1] = denominator;
+        }
+
+        startTicks = Arrays.copyOf(ticks, size);
+        this.numerators = Arrays.copyOf(numerators, size);
+        this.denominators = Arrays.copyOf(denominators, size);
+        startMeasures = new int[size];
+        startMeasures[0] = 1;
+        for(int i = 1; i < size; i++){
+            // Measures of the previous segment, counting a cut short one as a whole measure
+            long scaledLength = (startTicks[i] - startTicks[i - 1]) * this.denominators[i - 1];
+            long measureLength = scaledMeasureLength(i - 1);
+            startMeasures[i] = startMeasures[i - 1] + (int) ((scaledLength + measureLength - 1) / measureLength);
+        }
+    }
+
+    // Reads every time signature message of a MIDI file into a measure index.
+    public static JMidiMeasureIndex read(JMidiFileReader reader, File file) throws IOException, InvalidMidiDataException {
+        Collector collector = new Collector();
+        reader.read(file, collector);
+        return collector.toMeasureIndex();
+    }
+
+    public int getPPQ(){
+        return PPQ;
+    }
+
+    // Number of time signatures in the index (including the default 4/4 if the file has
+    // no time signature at tick 0), and each one's starting tick and time signature.
+    public int size(){
+        return startTicks.length;
+    }
+
+    public long getTick(int index){
+        return startTicks[index];
+    }
+
+    public int getNumerator(int index){
+        return numerators[index];
+    }
+
+    public int getDenominator(int index){
+        return denominators[index];
+    }
+
+    // Number of the measure (from 1) a tick falls in.
+    public int measureOf(long tick){
+        return measureOf(tick, segmentOfTick(tick));
+    }
+
+    // Fills in the measure, beat and tick inside the beat of a tick. Returns position.
+    public Position locate(long tick, Position position){
+        int segment = segmentOfTick(tick);
+        long scaled = (tick - startTicks[segment]) * denominators[segment];
+        long inMeasure = scaled % scaledMeasureLength(segment);
+        long beatLength = 4L * PPQ;
+
+        position.measure = startMeasures[segment] + (int) (scaled / scaledMeasureLength(segment));
+        position.beat = (int) (inMeasure / beatLength) + 1;
+        position.tickInBeat = (inMeasure % beatLength) / denominators[segment];
+        return position;
+    }
+
+    // First tick of a measure (measures start at 1).
+    public long measureStartTick(int measure){
+        if(measure < 1)
+            throw new IllegalArgumentException("Measures are counted from 1.");
+        int segment = segmentOfMeasure(measure);
+        long scaled = (measure - startMeasures[segment]) * scaledMeasureLength(segment);
+        return startTicks[segment] + ceilDivide(scaled, denominators[segment]);
+    }
+
+    // First tick after a measure (its last tick + 1). A measure cut short by a time
+    // signature change ends at that change.
+    public long measureEndTick(int measure){
+        long next = measureStartTick(measure + 1);
+        int segment = segmentOfMeasure(measure);
+        if(segment + 1 < startTicks.length && next > startTicks[segment + 1])
+            return startTicks[segment + 1];
+        return next;
+    }
+
+    // Numerator/denominator of the time signature in effect at a tick.
+    public int getNumeratorAt(long tick){
+        return numerators[segmentOfTick(tick)];
+    }
+
+    public int getDenominatorAt(long tick){
+        return denominators[segmentOfTick(tick)];
+    }
+
+    // Finds the measure of count ticks (from ticks[from]) in one sweep: while the
+    // ticks go up the current segment is found by walking forward, and a binary search
+    // is only done when a tick goes back. measures[to + i] gets the measure of tick i.
+    public void measuresOf(long[] ticks, int from, int count, int[] measures, int to){
+        int segment = 0;
+        long previous = Long.MIN_VALUE;
+        for(int i = 0; i < count; i++){
+            long tick = ticks[from + i];
+            segment = nextSegment(tick, previous, segment);
+            measures[to + i] = measureOf(tick, segment);
+            previous = tick;
+        }
+    }
+
+    // Measure and beat of every note of a table (by starting tick) in one sweep.
+    // Fastest when the table is sorted by starting tick. Either array may be null.
+    public void annotate(JMidiNoteTable notes, int[] measures, int[] beats){
+        int segment = 0;
+        long previous = Long.MIN_VALUE;
+        for(int i = 0; i < notes.size(); i++){
+            long tick = notes.getTickStart(i);
+            segment = nextSegment(tick, previous, segment);
+            if(measures != null)
+                measures[i] = measureOf(tick, segment);
+            if(beats != null){
+                long scaled = (tick - startTicks[segment]) * denominators[segment];
+                beats[i] = (int) ((scaled % scaledMeasureLength(segment)) / (4L * PPQ)) + 1;
+            }
+            previous = tick;
+        }
+    }
+
+    // Segment of a tick during a sweep, starting from the segment of the previous tick.
+    private int nextSegment(long tick, long previous, int segment){
+        if(tick < previous)
+            return segmentOfTick(tick);
+        while(segment + 1 < startTicks.length && startTicks[segment + 1] <= tick)
+            segment++;
+        return segment;
+    }
+
+    private int measureOf(long tick, int segment){
+        long scaled = (tick - startTicks[segment]) * denominators[segment];
+        return startMeasures[segment] + (int) (scaled / scaledMeasureLength(segment));
+    }
+
+    // Length of one measure of a segment in ticks * denominator.
+    private long scaledMeasureLength(int segment){
+        return 4L * PPQ * numerators[segment];
+    }
+
+    // Last segment starting at or before a tick (binary search).
+    private int segmentOfTick(long tick){
+        int low = 0;
+        int high = startTicks.length - 1;
+        while(low < high){
+            int middle = (low + high + 1) >>> 1;
+            if(startTicks[middle] <= tick)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        return low;
+    }
+
+    // Last segment starting at or before a measure (binary search).
+    private int segmentOfMeasure(int measure){
+        int low = 0;
+        int high = startMeasures.length - 1;
+        while(low < high){
+            int middle = (low + high + 1) >>> 1;
+            if(startMeasures[middle] <= measure)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        return low;
+    }
+
+    private static long ceilDivide(long value, long divisor){
+        return (value + divisor - 1) / divisor;
+    }
+
+    // Handler that collects the time signature messages of every track of a file.
+    public static class Collector implements JMidiEventHandler {
+        private int ppq;
+        private long[] ticks = new long[16];
+        private int[] numerators = new int[16];
+        private int[] denominators = new int[16];
+        private int count;
+
+        @Override
+        public void header(int format, int numberOfTracks, int division){
+            ppq = division;
+        }
+
+        @Override
+        public void metaMessage(long tick, int type, ByteBuffer data){
+            if(type != JMidiTranscriber.TIME_SIGNATURE || data.limit() != 4)
+                return;
+            JMidiTimeSign timeSign = new JMidiTimeSign(data);
+            if(timeSign.getNumerator() <= 0 || timeSign.getDenominator() <= 0)
+                return; // broken message, the previous time signature stays in effect
+
+            if(count == ticks.length){
+                ticks = Arrays.copyOf(ticks, count * 2);
+                numerators = Arrays.copyOf(numerators, count * 2);
+                denominators = Arrays.copyOf(denominators, count * 2);
+            }
+            ticks[count] = tick;
+            numerators[count] = timeSign.getNumerator();
+            denominators[count] = timeSign.getDenominator();
+            count++;
+        }
+
+        public JMidiMeasureIndex toMeasureIndex(){
+            return new JMidiMeasureIndex(ppq, ticks, numerators, denominators, count);
+        }
+    }
+}
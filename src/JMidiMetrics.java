@@ -0,0 +1,317 @@
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/* Class that counts and times what the library does, to see where the time of
+   a run goes: a timer per stage (reading the file, decoding it, clustering the
+   notes and writing them out), the number of messages decoded of each kind,
+   and how note pairing went (most notes open at once, NOTE OFFs that matched
+   nothing, notes never turned off).
+
+   It is off unless the JVM is started with -Djmidi.metrics=true. ENABLED is a
+   static final, so the JIT treats it as a constant and every
+   if(JMidiMetrics.ENABLED) block in the hot loops is compiled away when it is
+   off. When it is on, the counters are registered as MBeans (see
+   JMidiMetricsMBean) and report() gives them as name=value lines, one per
+   line, for scripts to read after a run (jmx.registered=0 there, and
+   isRegistered(), tell when the MBeans could not be registered).
+
+   Every method is thread-safe (ex: tracks decoded in parallel). Hot loops
+   should count in a local array and add it with addMessages once they are
+   done, rather than calling in for every message.
+ */
+public class JMidiMetrics implements JMidiMetricsMBean {
+
+    public static final boolean ENABLED = Boolean.getBoolean("jmidi.metrics");
+    public static final String OBJECT_NAME = "jmidi:type=Metrics";
+
+    // Kinds of messages counted: the channel messages by (command >> 4) - 8, then meta and SysEx
+    // messages. MESSAGE_KINDS is the size of the arrays given to addMessages.
+    public static final int NOTE_OFF = 0;
+    public static final int NOTE_ON = 1;
+    public static final int POLYPHONIC_PRESSURE = 2;
+    public static final int CONTROL_CHANGE = 3;
+    public static final int PROGRAM_CHANGE = 4;
+    public static final int CHANNEL_PRESSURE = 5;
+    public static final int PITCH_BEND = 6;
+    public static final int META = 7;
+    public static final int SYSEX = 8;
+    public static final int MESSAGE_KINDS = 9;
+    private static final String[] MESSAGE_NAMES = {"noteOff", "noteOn", "polyphonicPressure", "controlChange",
+            "programChange", "channelPressure", "pitchBend", "meta", "sysex"};
+
+    // Stages: opening (and reading or mapping) a file, decoding a track (the handler's work on
+    // every event included, so pairing and printing events are in there), sorting and merging
+    // note tables, and writing the clusters out.
+    public static final Timer READ = new Timer("read");
+    public static final Timer DECODE = new Timer("decode");
+    public static final Timer CLUSTERING = new Timer("clustering");
+    public static final Timer OUTPUT = new Timer("output");
+    private static final Timer[] TIMERS = {READ, DECODE, CLUSTERING, OUTPUT};
+
+    private static final JMidiMetrics INSTANCE = new JMidiMetrics();
+
+    private final LongAdder filesRead = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder[] messages = new LongAdder[MESSAGE_KINDS];
+    private final AtomicLong openNotesHighWaterMark = new AtomicLong();
+    private final LongAdder unmatchedNoteOffs = new LongAdder();
+    private final LongAdder unterminatedNotes = new LongAdder();
+
+    // Whether the MBeans could be registered (ex: not if another class loader already did)
+    private static final boolean REGISTERED = ENABLED && register();
+
+    private JMidiMetrics(){
+        for(int i = 0; i < MESSAGE_KINDS; i++)
+            messages[i] = new LongAdder();
+    }
+
+    // The one set of metrics of the JVM (the MBean registered under OBJECT_NAME).
+    public static JMidiMetrics get(){
+        return INSTANCE;
+    }
+
+    // Kind of a channel message (NOTE OFF for a NOTE ON with a velocity of 0).
+    public static int kindOf(int status, int data2){
+        int kind = ((status & 0xF0) >> 4) - 8;
+        return kind == NOTE_ON && data2 == 0 ? NOTE_OFF : kind;
+    }
+
+    // Were the metrics registered with the platform MBean server? false when they are off, or
+    // when the registration failed (ex: OBJECT_NAME is taken by another copy of the library).
+    public static boolean isRegistered(){
+        return REGISTERED;
+    }
+
+    // Counts a file that was opened.
+    public static void fileRead(long bytes){
+        INSTANCE.filesRead.increment();
+        INSTANCE.bytesRead.add(bytes);
+    }
+
+    // Adds the messages counted by kind (an array of MESSAGE_KINDS counts).
+    public static void addMessages(long[] counts){
+        for(int i = 0; i < MESSAGE_KINDS; i++){
+            if(counts[i] != 0)
+                INSTANCE.messages[i].add(counts[i]);
+        }
+    }
+
+    // Reports that a pairer had this many notes open at once.
+    public static void openNotes(long count){
+        INSTANCE.openNotesHighWaterMark.accumulateAndGet(count, Math::max);
+    }
+
+    public static void unmatchedNoteOff(){
+        INSTANCE.unmatchedNoteOffs.increment();
+    }
+
+    public static void unterminatedNotes(long count){
+        INSTANCE.unterminatedNotes.add(count);
+    }
+
+    // Every counter and timer as name=value lines, ex: "messages.noteOn=1040" or
+    // "stage.decode.totalNanos=2203117".
+    public static String report(){
+        StringBuilder stringBuilder = new StringBuilder();
+        line(stringBuilder, "jmx.registered", REGISTERED ? 1 : 0);
+        line(stringBuilder, "files", INSTANCE.getFilesRead());
+        line(stringBuilder, "bytes", INSTANCE.getBytesRead());
+        for(int i = 0; i < MESSAGE_KINDS; i++)
+            line(stringBuilder, "messages." + MESSAGE_NAMES[i], INSTANCE.messages[i].sum());
+        line(stringBuilder, "pairing.openNotesHighWaterMark", INSTANCE.getOpenNotesHighWaterMark());
+        line(stringBuilder, "pairing.unmatchedNoteOffs", INSTANCE.getUnmatchedNoteOffs());
+        line(stringBuilder, "pairing.unterminatedNotes", INSTANCE.getUnterminatedNotes());
+        for(Timer timer : TIMERS){
+            String prefix = "stage." + timer.name + ".";
+            line(stringBuilder, prefix + "count", timer.getCount());
+            line(stringBuilder, prefix + "totalNanos", timer.getTotalNanos());
+            line(stringBuilder, prefix + "maxNanos", timer.getMaxNanos());
+        }
+        return stringBuilder.toString();
+    }
+
+    // Writes report() to a file (ex: at the end of a run).
+    public static void writeReport(Path file) throws IOException {
+        Files.write(file, report().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Registers the metrics and the stage timers with the platform MBean server. A failure
+    // only shows in isRegistered() and report(), the library works the same without JMX.
+    private static boolean register(){
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+            for(Timer timer : TIMERS)
+                server.registerMBean(timer, new ObjectName(OBJECT_NAME + ",stage=" + timer.name));
+            return true;
+        } catch (JMException e) {
+            return false;
+        }
+    }
+
+    private static void line(StringBuilder stringBuilder, String name, long value){
+        stringBuilder.append(name).append('=').append(value).append('\n');
+    }
+
+    @Override
+    public long getFilesRead(){
+        return filesRead.sum();
+    }
+
+    @Override
+    public long getBytesRead(){
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getNoteOnMessages(){
+        return messages[NOTE_ON].sum();
+    }
+
+    @Override
+    public long getNoteOffMessages(){
+        return messages[NOTE_OFF].sum();
+    }
+
+    @Override
+    public long getPolyphonicPressureMessages(){
+        return messages[POLYPHONIC_PRESSURE].sum();
+    }
+
+    @Override
+    public long getControlChangeMessages(){
+        return messages[CONTROL_CHANGE].sum();
+    }
+
+    @Override
+    public long getProgramChangeMessages(){
+        return messages[PROGRAM_CHANGE].sum();
+    }
+
+    @Override
+    public long getChannelPressureMessages(){
+        return messages[CHANNEL_PRESSURE].sum();
+    }
+
+    @Override
+    public long getPitchBendMessages(){
+        return messages[PITCH_BEND].sum();
+    }
+
+    @Override
+    public long getMetaMessages(){
+        return messages[META].sum();
+    }
+
+    @Override
+    public long getSysexMessages(){
+        return messages[SYSEX].sum();
+    }
+
+    @Override
+    public long getOpenNotesHighWaterMark(){
+        return openNotesHighWaterMark.get();
+    }
+
+    @Override
+    public long getUnmatchedNoteOffs(){
+        return unmatchedNoteOffs.sum();
+    }
+
+    @Override
+    public long getUnterminatedNotes(){
+        return unterminatedNotes.sum();
+    }
+
+    @Override
+    public String getReport(){
+        return report();
+    }
+
+    @Override
+    public void reset(){
+        filesRead.reset();
+        bytesRead.reset();
+        for(LongAdder counter : messages)
+            counter.reset();
+        openNotesHighWaterMark.set(0);
+        unmatchedNoteOffs.reset();
+        unterminatedNotes.reset();
+        for(Timer timer : TIMERS)
+            timer.reset();
+    }
+
+    // What a stage timer shows through JMX.
+    public interface TimerMBean {
+        long getCount();
+
+        long getTotalNanos();
+
+        long getMaxNanos();
+
+        double getMeanMillis();
+    }
+
+    // Times one stage: how many times it ran, for how long in total and at most. Use as
+    // long start = JMidiMetrics.ENABLED ? System.nanoTime() : 0;
+    // ... the stage ...
+    // if(JMidiMetrics.ENABLED) JMidiMetrics.DECODE.record(start);
+    public static class Timer implements TimerMBean {
+        private final String name;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private Timer(String name){
+            this.name = name;
+        }
+
+        // Records one run of the stage that started at startNanos (a System.nanoTime()).
+        public void record(long startNanos){
+            long nanos = System.nanoTime() - startNanos;
+            count.increment();
+            totalNanos.add(nanos);
+            if(nanos > maxNanos.get())
+                maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        public String getName(){
+            return name;
+        }
+
+        @Override
+        public long getCount(){
+            return count.sum();
+        }
+
+        @Override
+        public long getTotalNanos(){
+            return totalNanos.sum();
+        }
+
+        @Override
+        public long getMaxNanos(){
+            return maxNanos.get();
+        }
+
+        @Override
+        public double getMeanMillis(){
+            long count = this.count.sum();
+            return count == 0 ? 0 : totalNanos.sum() / 1e6 / count;
+        }
+
+        private void reset(){
+            count.reset();
+            totalNanos.reset();
+            maxNanos.set(0);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/* What JMidiMetrics shows through JMX (ex: in JConsole or VisualVM, under
+   jmidi:type=Metrics). The stage timers are beans of their own, under
+   jmidi:type=Metrics,stage=<name of the stage>.
+ */
+public interface JMidiMetricsMBean {
+
+    // Files opened and their bytes
+    long getFilesRead();
+
+    long getBytesRead();
+
+    // Messages decoded, by kind (a NOTE ON with a velocity of 0 counts as a NOTE OFF)
+    long getNoteOnMessages();
+
+    long getNoteOffMessages();
+
+    long getPolyphonicPressureMessages();
+
+    long getControlChangeMessages();
+
+    long getProgramChangeMessages();
+
+    long getChannelPressureMessages();
+
+    long getPitchBendMessages();
+
+    long getMetaMessages();
+
+    long getSysexMessages();
+
+    // Note pairing: most notes open at once in one track, NOTE OFFs that matched no
+    // note, and notes still open when their track ended
+    long getOpenNotesHighWaterMark();
+
+    long getUnmatchedNoteOffs();
+
+    long getUnterminatedNotes();
+
+    // Everything above as name=value lines (see JMidiMetrics.report()).
+    String getReport();
+
+    // Sets every counter and timer back to 0.
+    void reset();
+}
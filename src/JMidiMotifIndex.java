@@ -0,0 +1,930 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/* Class that indexes the melodies of a corpus so a motif (ex: the opening of
+   Fur Elise) is found in every file that has it, transposed or at another
+   tempo, without going through the notes of every file.
+
+   The melody of a track is its highest note at each tick a note starts
+   (notes of the percussion channel left out). Every GRAM_NOTES notes in a row
+   of a melody make an n-gram: the intervals between the notes (in semitones,
+   so any transposition gives the same n-gram) and how each time between two
+   notes compares to the one before (the ratio rounded to half a power of 2,
+   so any tempo gives the same n-gram), packed in a long. The index keeps, for
+   every n-gram, where it is: the file, the track, the tick and the number of
+   the n-gram's first note in the melody.
+
+   A motif is looked up by its own n-grams. Each place one of them is found
+   counts for the place the motif would start there (the note number minus
+   the n-gram's place in the motif), and places are ranked by how many of the
+   motif's n-grams they have.
+
+   The index is a directory of segments, files that are never changed once
+   written. Adding files writes a new segment (see Batch), so nothing is
+   rebuilt; a file added again is found in its newest segment only. compact()
+   merges every segment into one. A segment is:
+   "JMMI", version (int), GRAM_NOTES (int), the number of files (int), then
+   each file's name (short length, UTF-8) and last modified time (long); the
+   posting lists; the table of n-grams, sorted, in blocks of TABLE_BLOCK (3
+   varints an n-gram: the difference to the n-gram before it in the block,
+   its number of places and the length of its posting list); the first n-gram
+   of every block (long), where the block starts (int) and where its first
+   posting list starts (int); then where those start (int), the number of
+   blocks (int), the number of n-grams (int) and "JMMI" again.
+   A posting list is 4 varints a place: the file, the track, the tick and the
+   note number, each the difference to the place before when the ones before
+   it are the same (places are sorted by file, track, then note number).
+
+   Usage: java JMidiMotifIndex <index directory> add <MIDI files or directories>...
+          java JMidiMotifIndex <index directory> find <MIDI file> <track> [from tick] [to tick]
+          java JMidiMotifIndex <index directory> compact
+ */
+public class JMidiMotifIndex {
+
+    // "JMMI" and the current version of the format
+    public static final int MAGIC = 0x4A4D4D49;
+    public static final int VERSION = 1;
+
+    // Notes in an n-gram
+    public static final int GRAM_NOTES = 5;
+
+    // Most places a segment gets from a batch before it is written out (a batch of more
+    // writes several segments)
+    public static final int SEGMENT_POSTINGS = 1 << 22;
+
+    // N-grams in a block of a segment's table
+    private static final int TABLE_BLOCK = 64;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_EXTENSION = ".jmmi";
+
+    // Widest interval kept (wider ones count as this wide) and most halves of a power of 2
+    // a time between notes can grow or shrink by
+    private static final int MAX_INTERVAL = 24;
+    private static final int MAX_RATIO = 4;
+
+    private static final int PERCUSSION_CHANNEL = 9;
+
+    private final Path directory;
+    private final List<Segment> segments = new ArrayList<>();
+
+    // Newest segment with each file name, and where the file is in it
+    private final Map<String, int[]> liveFiles = new HashMap<>();
+
+    private JMidiMotifIndex(Path directory){
+        this.directory = directory;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2){
+            System.out.println("Usage: java JMidiMotifIndex <index directory> add <MIDI files or directories>...\n"
+                    + "       java JMidiMotifIndex <index directory> find <MIDI file> <track> [from tick] [to tick]\n"
+                    + "       java JMidiMotifIndex <index directory> compact");
+            return;
+        }
+
+        JMidiMotifIndex index = open(Paths.get(args[0]));
+        long start = System.nanoTime();
+        switch (args[1]) {
+            case "add": {
+                // Files already in the index (not modified since) are skipped
+                JMidiFileReader reader = new JMidiFileReader();
+                int added = 0;
+                try (Batch batch = index.batch()) {
+                    for(int i = 2; i < args.length; i++){
+                        for(Path input : JMidiFileReader.findMidiFiles(Paths.get(args[i]))){
+                            File file = input.toFile();
+                            if(index.contains(input.toString(), file.lastModified()))
+                                continue;
+                            try {
+                                batch.add(input.toString(), file.lastModified(), JMidiAnalysis.read(reader, file).getNotes());
+                                added++;
+                            } catch (Exception e) {
+                                System.out.println("FAILED: " + input + ": " + e);
+                            }
+                        }
+                    }
+                }
+                System.out.println("Added " + added + " files in " + (System.nanoTime() - start) / 1_000_000 + " ms ("
+                        + index.getFileCount() + " files in " + index.getSegmentCount() + " segments)");
+                break;
+            }
+            case "find": {
+                // The motif: the notes of a track of a file, from a tick up to another
+                JMidiNoteTable notes = JMidiAnalysis.read(new JMidiFileReader(), new File(args[2])).getNotes();
+                int track = Integer.parseInt(args[3]);
+                long from = args.length > 4 ? Long.parseLong(args[4]) : 0;
+                long to = args.length > 5 ? Long.parseLong(args[5]) : Long.MAX_VALUE;
+                JMidiNoteTable motif = new JMidiNoteTable(notes.getPPQ());
+                for(int i = 0; i < notes.size(); i++){
+                    if(notes.getTrack(i) == track && notes.getTickStart(i) >= from && notes.getTickStart(i) < to)
+                        motif.add(notes.getTickStart(i), notes.getTickStop(i), notes.getChannel(i), notes.getKey(i),
+                                notes.getVelocity(i), track);
+                }
+                start = System.nanoTime();
+                List<Hit> hits = index.find(motif, 20);
+                System.out.println(hits.size() + " hits in " + (System.nanoTime() - start) / 1_000 + " us");
+                for(Hit hit : hits)
+                    System.out.println(hit);
+                break;
+            }
+            case "compact":
+                index.compact();
+                System.out.println("Compacted " + index.getFileCount() + " files in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+                break;
+            default:
+                System.out.println("Unknown command: " + args[1]);
+        }
+    }
+
+    // Opens the index in a directory (made if it is not there).
+    public static JMidiMotifIndex open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        JMidiMotifIndex index = new JMidiMotifIndex(directory);
+        index.load();
+        return index;
+    }
+
+    // Number of files in the index (each name counted once).
+    public int getFileCount(){
+        return liveFiles.size();
+    }
+
+    public int getSegmentCount(){
+        return segments.size();
+    }
+
+    // Whether a file is in the index, as it was when it was last modified at lastModified.
+    public boolean contains(String name, long lastModified){
+        int[] live = liveFiles.get(name);
+        return live != null && segments.get(live[0]).lastModified[live[1]] == lastModified;
+    }
+
+    // Starts adding files: they are in the index (in a new segment) once the batch is closed.
+    public Batch batch(){
+        return new Batch();
+    }
+
+    // The places a motif is found (the highest note at each tick of the table, every track
+    // together), best first: the ones with the most n-grams of the motif, then by file name,
+    // track and tick. At most maxHits of them.
+    public List<Hit> find(JMidiNoteTable motif, int maxHits){
+        List<Long> grams = new ArrayList<>();
+        extract(sortedByTickStart(motif), true, (gram, track, tick, note) -> grams.add(gram));
+        return find(grams.stream().mapToLong(Long::longValue).toArray(), maxHits);
+    }
+
+    // Same as above, for the n-grams of a motif (in the order they are in it).
+    public List<Hit> find(long[] motifGrams, int maxHits){
+        if(motifGrams.length == 0)
+            throw new IllegalArgumentException("A motif needs at least " + GRAM_NOTES + " notes.");
+
+        Map<Hit, Hit> found = new HashMap<>();
+        Posting posting = new Posting();
+        for(int s = 0; s < segments.size(); s++){
+            Segment segment = segments.get(s);
+            Entry entry = new Entry(s);
+            for(int q = 0; q < motifGrams.length; q++){
+                if(!segment.find(motifGrams[q], entry))
+                    continue;
+                ByteBuffer in = segment.postings(entry);
+                posting.reset();
+                for(int count = entry.count; count > 0; count--){
+                    posting.read(in);
+                    if(!segment.live[posting.file])
+                        continue;
+                    Hit key = new Hit(segment.names[posting.file], posting.track, posting.note - q, motifGrams.length);
+                    Hit hit = found.computeIfAbsent(key, k -> k);
+                    hit.matchedGrams++;
+                    if(q < hit.firstGram){
+                        hit.firstGram = q;
+                        hit.tick = posting.tick;
+                    }
+                }
+            }
+        }
+
+        List<Hit> hits = new ArrayList<>(found.keySet());
+        hits.sort((a, b) -> a.matchedGrams != b.matchedGrams ? Integer.compare(b.matchedGrams, a.matchedGrams)
+                : !a.fileName.equals(b.fileName) ? a.fileName.compareTo(b.fileName)
+                : a.track != b.track ? Integer.compare(a.track, b.track) : Long.compare(a.tick, b.tick));
+        return hits.size() > maxHits ? new ArrayList<>(hits.subList(0, maxHits)) : hits;
+    }
+
+    // Merges every segment into one (files added again only as they were added last).
+    public void compact() throws IOException {
+        if(segments.size() <= 1 && liveFiles.size() == (segments.isEmpty() ? 0 : segments.get(0).names.length))
+            return;
+
+        // New number of every live file: the files of each segment, in order
+        List<String> names = new ArrayList<>();
+        List<Long> lastModified = new ArrayList<>();
+        int[][] renumbered = new int[segments.size()][];
+        for(int s = 0; s < segments.size(); s++){
+            Segment segment = segments.get(s);
+            renumbered[s] = new int[segment.names.length];
+            for(int file = 0; file < segment.names.length; file++){
+                renumbered[s][file] = segment.live[file] ? names.size() : -1;
+                if(segment.live[file]){
+                    names.add(segment.names[file]);
+                    lastModified.add(segment.lastModified[file]);
+                }
+            }
+        }
+
+        // Every n-gram of every segment, in order: the posting lists of an n-gram one segment
+        // after the other are sorted by the new file numbers
+        PriorityQueue<Entry> next = new PriorityQueue<>((a, b) -> a.gram != b.gram ? Long.compare(a.gram, b.gram)
+                : Integer.compare(a.segment, b.segment));
+        for(int s = 0; s < segments.size(); s++){
+            Entry entry = new Entry(s);
+            if(segments.get(s).first(entry))
+                next.add(entry);
+        }
+        Path merged = nextSegmentPath();
+        try (SegmentWriter writer = new SegmentWriter(merged, names, lastModified)) {
+            Posting posting = new Posting();
+            while(!next.isEmpty()){
+                long gram = next.peek().gram;
+                writer.startGram(gram);
+                while(!next.isEmpty() && next.peek().gram == gram){
+                    Entry entry = next.poll();
+                    Segment segment = segments.get(entry.segment);
+                    ByteBuffer in = segment.postings(entry);
+                    posting.reset();
+                    for(int count = entry.count; count > 0; count--){
+                        posting.read(in);
+                        if(segment.live[posting.file])
+                            writer.add(renumbered[entry.segment][posting.file], posting.track, posting.tick, posting.note);
+                    }
+                    if(segment.next(entry))
+                        next.add(entry);
+                }
+            }
+        }
+
+        for(Segment segment : segments){
+            if(!segment.path.equals(merged))
+                Files.deleteIfExists(segment.path);
+        }
+        load();
+    }
+
+    // Reads the segments of the directory, oldest first, and which file is live in which.
+    private void load() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_EXTENSION)) {
+            for(Path path : stream)
+                paths.add(path);
+        }
+        paths.sort(null);
+
+        segments.clear();
+        liveFiles.clear();
+        for(Path path : paths)
+            segments.add(new Segment(path));
+        for(int s = segments.size() - 1; s >= 0; s--){
+            Segment segment = segments.get(s);
+            for(int file = 0; file < segment.names.length; file++)
+                segment.live[file] = liveFiles.putIfAbsent(segment.names[file], new int[]{s, file}) == null;
+        }
+    }
+
+    // Path for a new segment, numbered after the last one.
+    private Path nextSegmentPath(){
+        int number = 0;
+        if(!segments.isEmpty()){
+            String name = segments.get(segments.size() - 1).path.getFileName().toString();
+            number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXTENSION.length())) + 1;
+        }
+        return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_EXTENSION));
+    }
+
+    // Hands every n-gram of the melody of each track (or of every track together) to sink,
+    // track by track, each in order. The table must be sorted by starting tick.
+    static void extract(JMidiNoteTable notes, boolean oneMelody, GramSink sink){
+        Map<Integer, Melody> melodies = new TreeMap<>();
+        for(int i = 0; i < notes.size(); i++){
+            if(notes.getChannel(i) == PERCUSSION_CHANNEL)
+                continue;
+            int track = oneMelody ? 0 : notes.getTrack(i);
+            melodies.computeIfAbsent(track, Melody::new).note(notes.getTickStart(i), notes.getKey(i));
+        }
+        for(Melody melody : melodies.values()){
+            melody.end();
+            for(int i = 0; i < melody.gramCount; i++)
+                sink.gram(melody.grams[i], melody.track, melody.gramTicks[i], i);
+        }
+    }
+
+    // Packs an n-gram: the intervals in 6 bits each, then the time ratios in 4 bits each.
+    static long gramOf(int[] keys, long[] ticks){
+        long gram = 0;
+        for(int i = 1; i < GRAM_NOTES; i++){
+            int interval = Math.max(-MAX_INTERVAL, Math.min(MAX_INTERVAL, keys[i] - keys[i - 1]));
+            gram = gram << 6 | (interval + MAX_INTERVAL);
+        }
+        for(int i = 2; i < GRAM_NOTES; i++){
+            double ratio = (ticks[i] - ticks[i - 1]) / (double) (ticks[i - 1] - ticks[i - 2]);
+            int halves = (int) Math.round(2 * Math.log(ratio) / Math.log(2));
+            gram = gram << 4 | (Math.max(-MAX_RATIO, Math.min(MAX_RATIO, halves)) + MAX_RATIO);
+        }
+        return gram;
+    }
+
+    private static JMidiNoteTable sortedByTickStart(JMidiNoteTable notes){
+        if(notes.isSortedByTickStart())
+            return notes;
+        JMidiNoteTable sorted = new JMidiNoteTable(notes.getPPQ(), notes.size());
+        sorted.addAll(notes);
+        sorted.sortByTickStart();
+        return sorted;
+    }
+
+    private static void putVarint(ByteBuffer out, long value){
+        while((value & ~0x7FL) != 0){
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static long getVarint(ByteBuffer in){
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do{
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while(b < 0);
+        return value;
+    }
+
+    // Gets the n-grams of a melody: the n-gram, its track, and the tick and number of its first note.
+    interface GramSink {
+        void gram(long gram, int track, long tick, int note);
+    }
+
+    // The melody of one track as its notes come in (by starting tick), and its n-grams (the
+    // n-gram starting on the i-th note at i). The highest key of the notes starting on a tick
+    // is only known once a later tick comes.
+    private static class Melody {
+        private final int track;
+        private final int[] keys = new int[GRAM_NOTES];
+        private final long[] ticks = new long[GRAM_NOTES];
+        private int notes;
+        private long tick = -1;
+        private int key;
+        private long[] grams = new long[16];
+        private long[] gramTicks = new long[16];
+        private int gramCount;
+
+        Melody(int track){
+            this.track = track;
+        }
+
+        void note(long tickStart, int key){
+            if(tickStart != tick){
+                end();
+                tick = tickStart;
+                this.key = key;
+            }
+            else
+                this.key = Math.max(this.key, key);
+        }
+
+        // The note on the current tick is done: it ends the n-gram of the notes before it.
+        void end(){
+            if(tick < 0)
+                return;
+            System.arraycopy(keys, 1, keys, 0, GRAM_NOTES - 1);
+            System.arraycopy(ticks, 1, ticks, 0, GRAM_NOTES - 1);
+            keys[GRAM_NOTES - 1] = key;
+            ticks[GRAM_NOTES - 1] = tick;
+            tick = -1;
+            if(++notes < GRAM_NOTES)
+                return;
+            if(gramCount == grams.length){
+                grams = Arrays.copyOf(grams, gramCount * 2);
+                gramTicks = Arrays.copyOf(gramTicks, gramCount * 2);
+            }
+            grams[gramCount] = gramOf(keys, ticks);
+            gramTicks[gramCount] = ticks[0];
+            gramCount++;
+        }
+    }
+
+    // A place a motif is found: the file, the track, the tick where the match starts (of its
+    // first n-gram found) and how many of the motif's n-grams are there.
+    public static class Hit {
+        private final String fileName;
+        private final int track;
+        private final int firstNote;
+        private final int motifGrams;
+        private long tick;
+        private int firstGram = Integer.MAX_VALUE;
+        private int matchedGrams;
+
+        private Hit(String fileName, int track, int firstNote, int motifGrams){
+            this.fileName = fileName;
+            this.track = track;
+            this.firstNote = firstNote;
+            this.motifGrams = motifGrams;
+        }
+
+        public String getFileName(){
+            return fileName;
+        }
+
+        public int getTrack(){
+            return track;
+        }
+
+        public long getTick(){
+            return tick;
+        }
+
+        public int getMatchedGrams(){
+            return matchedGrams;
+        }
+
+        // Part of the motif's n-grams found, 1 for the whole motif
+        public double getScore(){
+            return matchedGrams / (double) motifGrams;
+        }
+
+        // Same place: same file, track and first note of the melody
+        @Override
+        public boolean equals(Object other){
+            if(!(other instanceof Hit))
+                return false;
+            Hit hit = (Hit) other;
+            return track == hit.track && firstNote == hit.firstNote && fileName.equals(hit.fileName);
+        }
+
+        @Override
+        public int hashCode(){
+            return Objects.hash(fileName, track, firstNote);
+        }
+
+        @Override
+        public String toString(){
+            return String.format("%.2f %s track %d tick %d", getScore(), fileName, track, tick);
+        }
+    }
+
+    // One place of a posting list, read one after the other.
+    private static class Posting {
+        private int file;
+        private int track;
+        private long tick;
+        private int note;
+
+        void reset(){
+            file = 0;
+            track = 0;
+            tick = 0;
+            note = 0;
+        }
+
+        void read(ByteBuffer in){
+            int fileDelta = (int) getVarint(in);
+            int trackValue = (int) getVarint(in);
+            long tickValue = getVarint(in);
+            int noteValue = (int) getVarint(in);
+            if(fileDelta != 0){
+                file += fileDelta;
+                track = trackValue;
+                tick = tickValue;
+                note = noteValue;
+            }
+            else if(trackValue != 0){
+                track += trackValue;
+                tick = tickValue;
+                note = noteValue;
+            }
+            else{
+                tick += tickValue;
+                note += noteValue;
+            }
+        }
+    }
+
+    // An entry of a segment's n-gram table as it is read: the n-gram, its number of places,
+    // where its posting list starts and its length, and where the entry is in the table.
+    private static class Entry {
+        private final int segment;
+        private long gram;
+        private int count;
+        private int postings;
+        private int length;
+        private int block;
+        private int index;
+        private ByteBuffer in;
+
+        Entry(int segment){
+            this.segment = segment;
+        }
+    }
+
+    // A segment file, memory-mapped. The first n-gram of every block of the table is read
+    // up front, to find the block an n-gram would be in.
+    private static class Segment {
+        private final Path path;
+        private final ByteBuffer data;
+        private final String[] names;
+        private final long[] lastModified;
+        private final boolean[] live;
+        private final int gramCount;
+        private final long[] blockGrams;
+        private final int[] blockOffsets;
+        private final int[] blockPostings;
+
+        Segment(Path path) throws IOException {
+            this.path = path;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                if(channel.size() > Integer.MAX_VALUE)
+                    throw new IOException("Motif index segment is too large to map: " + path);
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            try {
+                int limit = data.limit();
+                if(limit < 32 || data.getInt(0) != MAGIC || data.getInt(limit - 4) != MAGIC)
+                    throw new IOException("Not a motif index segment: " + path);
+                if(data.getInt(4) != VERSION || data.getInt(8) != GRAM_NOTES)
+                    throw new IOException("Unsupported motif index segment: " + path);
+                ByteBuffer in = data.duplicate();
+                in.position(12);
+                int fileCount = in.getInt();
+                if(fileCount < 0 || fileCount > limit)
+                    throw new IOException("Corrupt motif index segment: " + path);
+                names = new String[fileCount];
+                lastModified = new long[fileCount];
+                live = new boolean[fileCount];
+                for(int file = 0; file < fileCount; file++){
+                    byte[] name = new byte[in.getShort() & 0xFFFF];
+                    in.get(name);
+                    names[file] = new String(name, StandardCharsets.UTF_8);
+                    lastModified[file] = in.getLong();
+                }
+
+                int blocks = data.getInt(limit - 16);
+                int blockCount = data.getInt(limit - 12);
+                gramCount = data.getInt(limit - 8);
+                if(blocks < in.position() || gramCount < 0 || blockCount != (gramCount + TABLE_BLOCK - 1) / TABLE_BLOCK
+                        || (long) blocks + blockCount * 16L != limit - 16)
+                    throw new IOException("Corrupt motif index segment: " + path);
+                blockGrams = new long[blockCount];
+                blockOffsets = new int[blockCount];
+                blockPostings = new int[blockCount];
+                in.position(blocks);
+                for(int block = 0; block < blockCount; block++){
+                    blockGrams[block] = in.getLong();
+                    blockOffsets[block] = in.getInt();
+                    blockPostings[block] = in.getInt();
+                }
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IOException("Corrupt motif index segment: " + path, e);
+            }
+        }
+
+        // Moves entry to an n-gram, if it is in this segment.
+        boolean find(long gram, Entry entry){
+            int low = 0;
+            int high = blockGrams.length - 1;
+            while(low <= high){
+                int middle = (low + high) >>> 1;
+                if(blockGrams[middle] <= gram)
+                    low = middle + 1;
+                else
+                    high = middle - 1;
+            }
+            if(high < 0)
+                return false;
+            start(high, entry);
+            while(entry.gram < gram){
+                if(!nextInBlock(entry))
+                    return false;
+            }
+            return entry.gram == gram;
+        }
+
+        // Moves entry to the first n-gram, or to the one after it; false if there is none.
+        boolean first(Entry entry){
+            if(gramCount == 0)
+                return false;
+            start(0, entry);
+            return true;
+        }
+
+        boolean next(Entry entry){
+            if(nextInBlock(entry))
+                return true;
+            if(entry.block + 1 >= blockGrams.length)
+                return false;
+            start(entry.block + 1, entry);
+            return true;
+        }
+
+        // The posting list of an entry, to read from its start.
+        ByteBuffer postings(Entry entry){
+            ByteBuffer in = data.duplicate();
+            in.position(entry.postings);
+            return in;
+        }
+
+        private void start(int block, Entry entry){
+            entry.block = block;
+            entry.index = 0;
+            entry.in = data.duplicate();
+            entry.in.position(blockOffsets[block]);
+            entry.gram = blockGrams[block];
+            entry.postings = blockPostings[block];
+            entry.length = 0;
+            readEntry(entry);
+        }
+
+        private boolean nextInBlock(Entry entry){
+            int gramsInBlock = entry.block < blockGrams.length - 1 ? TABLE_BLOCK : gramCount - entry.block * TABLE_BLOCK;
+            if(entry.index + 1 >= gramsInBlock)
+                return false;
+            entry.index++;
+            entry.postings += entry.length;
+            readEntry(entry);
+            return true;
+        }
+
+        private static void readEntry(Entry entry){
+            entry.gram += getVarint(entry.in);
+            entry.count = (int) getVarint(entry.in);
+            entry.length = (int) getVarint(entry.in);
+        }
+    }
+
+    // Writes a segment: the file table up front, then the posting lists of the n-grams (in
+    // increasing order, each place in order), and the n-gram table on close. Written to a
+    // temporary file, moved in place on close.
+    private static class SegmentWriter implements Closeable {
+        private final Path path;
+        private final Path temporary;
+        private final FileChannel out;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        private long position;
+
+        // The n-gram table, and the first n-gram of every block of it
+        private ByteBuffer table = ByteBuffer.allocate(1 << 12);
+        private long[] blockGrams = new long[16];
+        private int[] blockOffsets = new int[16];
+        private int[] blockPostings = new int[16];
+        private int blockCount;
+        private int gramCount;
+        private long previousGram;
+
+        // The n-gram being written and its last place
+        private long gram;
+        private int gramStart;
+        private int postingCount;
+        private int file;
+        private int track;
+        private long tick;
+        private int note;
+
+        SegmentWriter(Path path, List<String> names, List<Long> lastModified) throws IOException {
+            this.path = path;
+            temporary = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+            out = FileChannel.open(temporary, StandardOpenOption.WRITE);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(GRAM_NOTES).putInt(names.size());
+            for(int i = 0; i < names.size(); i++){
+                byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+                if(name.length > 0xFFFF)
+                    throw new IllegalArgumentException("File name is too long: " + names.get(i));
+                room(2 + name.length + 8);
+                buffer.putShort((short) name.length).put(name).putLong(lastModified.get(i));
+            }
+        }
+
+        // Starts the places of an n-gram (greater than the one before). An n-gram given no
+        // places is left out.
+        void startGram(long gram) throws IOException {
+            endGram();
+            this.gram = gram;
+            gramStart = offset();
+            file = 0;
+            track = 0;
+            tick = 0;
+            note = 0;
+        }
+
+        void add(int file, int track, long tick, int note) throws IOException {
+            room(40);
+            if(file != this.file){
+                putVarint(buffer, file - this.file);
+                putVarint(buffer, track);
+                putVarint(buffer, tick);
+                putVarint(buffer, note);
+            }
+            else if(track != this.track){
+                putVarint(buffer, 0);
+                putVarint(buffer, track - this.track);
+                putVarint(buffer, tick);
+                putVarint(buffer, note);
+            }
+            else{
+                putVarint(buffer, 0);
+                putVarint(buffer, 0);
+                putVarint(buffer, tick - this.tick);
+                putVarint(buffer, note - this.note);
+            }
+            this.file = file;
+            this.track = track;
+            this.tick = tick;
+            this.note = note;
+            postingCount++;
+        }
+
+        // Writes the n-gram table and the end, and moves the segment in place.
+        @Override
+        public void close() throws IOException {
+            try {
+                try {
+                    endGram();
+                    int tableOffset = offset();
+                    flush();
+                    table.flip();
+                    while(table.hasRemaining())
+                        position += out.write(table);
+                    int blocks = offset();
+                    for(int block = 0; block < blockCount; block++){
+                        room(16);
+                        buffer.putLong(blockGrams[block]).putInt(tableOffset + blockOffsets[block]).putInt(blockPostings[block]);
+                    }
+                    room(16);
+                    buffer.putInt(blocks).putInt(blockCount).putInt(gramCount).putInt(MAGIC);
+                    flush();
+                } finally {
+                    out.close();
+                }
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+
+        // The table entry of the n-gram just written: the difference to the n-gram before it in
+        // the block, its number of places and the length of its posting list
+        private void endGram() throws IOException {
+            if(postingCount == 0)
+                return;
+            if(gramCount % TABLE_BLOCK == 0){
+                if(blockCount == blockGrams.length){
+                    blockGrams = Arrays.copyOf(blockGrams, blockCount * 2);
+                    blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+                    blockPostings = Arrays.copyOf(blockPostings, blockCount * 2);
+                }
+                blockGrams[blockCount] = gram;
+                blockOffsets[blockCount] = table.position();
+                blockPostings[blockCount] = gramStart;
+                blockCount++;
+                previousGram = gram;
+            }
+            if(table.remaining() < 30){
+                ByteBuffer bigger = ByteBuffer.allocate(table.capacity() * 2);
+                table.flip();
+                table = bigger.put(table);
+            }
+            putVarint(table, gram - previousGram);
+            putVarint(table, postingCount);
+            putVarint(table, offset() - gramStart);
+            previousGram = gram;
+            gramCount++;
+            postingCount = 0;
+        }
+
+        private int offset() throws IOException {
+            long offset = position + buffer.position();
+            if(offset > Integer.MAX_VALUE)
+                throw new IOException("Motif index segment is too large: " + path);
+            return (int) offset;
+        }
+
+        private void room(int bytes) throws IOException {
+            if(buffer.remaining() < bytes)
+                flush();
+            if(buffer.remaining() < bytes)
+                throw new IllegalArgumentException("Entry is too large for a motif index segment.");
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while(buffer.hasRemaining())
+                position += out.write(buffer);
+            buffer.clear();
+        }
+    }
+
+    // Files added to the index: their n-grams are kept until close (or until there are
+    // SEGMENT_POSTINGS of them), then written as a new segment. Not thread-safe.
+    public class Batch implements Closeable {
+        private final List<String> names = new ArrayList<>();
+        private final List<Long> lastModified = new ArrayList<>();
+        private final Set<String> namesInBatch = new HashSet<>();
+        private long[] grams = new long[1 << 12];
+        private int[] files = new int[1 << 12];
+        private int[] tracks = new int[1 << 12];
+        private long[] ticks = new long[1 << 12];
+        private int[] notes = new int[1 << 12];
+        private int size;
+
+        private Batch(){
+        }
+
+        // Adds the notes of a file (its name should be unique in the index: a file added
+        // again replaces the one added before).
+        public void add(String name, long lastModified, JMidiNoteTable notes) throws IOException {
+            if(namesInBatch.contains(name))
+                write();
+            int file = names.size();
+            names.add(name);
+            this.lastModified.add(lastModified);
+            namesInBatch.add(name);
+            extract(sortedByTickStart(notes), false, (gram, track, tick, note) -> {
+                if(size == grams.length)
+                    grow();
+                grams[size] = gram;
+                files[size] = file;
+                tracks[size] = track;
+                ticks[size] = tick;
+                this.notes[size] = note;
+                size++;
+            });
+            if(size >= SEGMENT_POSTINGS)
+                write();
+        }
+
+        // Writes what was added as a segment and adds it to the index.
+        @Override
+        public void close() throws IOException {
+            write();
+        }
+
+        private void write() throws IOException {
+            if(names.isEmpty())
+                return;
+
+            // Sorted by n-gram, then in the order the places were added (by file, track and
+            // note number): the place is in the low bits
+            int placeBits = 32 - Integer.numberOfLeadingZeros(Math.max(1, size - 1));
+            if(placeBits + (GRAM_NOTES - 1) * 6 + (GRAM_NOTES - 2) * 4 > 63)
+                throw new IllegalStateException("Too many n-grams for one motif index segment: " + size);
+            long[] order = new long[size];
+            for(int i = 0; i < size; i++)
+                order[i] = grams[i] << placeBits | i;
+            Arrays.sort(order);
+
+            try (SegmentWriter writer = new SegmentWriter(nextSegmentPath(), names, lastModified)) {
+                long mask = (1L << placeBits) - 1;
+                for(int i = 0; i < size; i++){
+                    int place = (int) (order[i] & mask);
+                    if(i == 0 || grams[place] != grams[(int) (order[i - 1] & mask)])
+                        writer.startGram(grams[place]);
+                    writer.add(files[place], tracks[place], ticks[place], notes[place]);
+                }
+            }
+            names.clear();
+            lastModified.clear();
+            namesInBatch.clear();
+            size = 0;
+            load();
+        }
+
+        private void grow(){
+            grams = Arrays.copyOf(grams, size * 2);
+            files = Arrays.copyOf(files, size * 2);
+            tracks = Arrays.copyOf(tracks, size * 2);
+            ticks = Arrays.copyOf(ticks, size * 2);
+            notes = Arrays.copyOf(notes, size * 2);
+        }
+    }
+}
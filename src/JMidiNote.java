@@ -1,8 +1,5 @@
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Scanner;
-import java.util.TreeMap;
 
 // Arguable the most important class: this class represents
 // a MIDI note message and can be used to determine when and how
@@ -13,24 +10,19 @@ public class JMidiNote implements Comparable<JMidiNote>{
     // A LOT OF INSTANCE VARIABLES:
     // tickStart: the tick the note starts.
     // tickStop: the tick the note stops (aka the tick where the NOTE OFF message occurs).
-    // channelName: name of the channel the note is played on
-    // pitchNotation: aka the "name of the note" (ex: C4, E3, etc.)
-    // clef: this is the "suggested" clef as composers are weird and transpose music in different ways.
-    //       MIDI does not have accesses to these transpositions so we use TREBLE_SWITCH to signify the
-    //       the first note represented in treble clef. Currently, this only supports treble/bass clef.
-    // dynamic: how loud the note is; based on MIDI velocity
+    // key: the MIDI key of the note (0 to 127); its pitch notation (aka the "name of the note",
+    //      ex: C4, E3, etc.) and clef are looked up in PITCH_NOTATIONS and CLEFS when needed.
+    // dynamic: how loud the note is; based on MIDI velocity (index in DYNAMIC_NAMES)
     // isOn: used when determining tickStop; is the current note still "on"?
     // noteInTermsOfQuarter: the ratio of the note's length in terms of a quarter note.
     private long tickStart;
     private long tickStop;
-    private String channelName;
-    private String pitchNotation;
-    private String clef;
+    private int key;
     private int dynamic;
     public boolean isOn;
     private double noteInTermsOfQuarter;
 
-    // Used for toString
+    // Used for toString; its name is looked up in the channel table when needed
     public int channelNumber;
 
     // Pulses per quarter-note or ticks per quarter note, used to determine length of the MIDI note.
@@ -49,19 +41,50 @@ public class JMidiNote implements Comparable<JMidiNote>{
 
     private static final String[] DYNAMIC_NAMES = {"PPP", "PP", "P", "MP", "MF", "F", "FF", "FFF"};
 
+    // Index in DYNAMIC_NAMES of every velocity (0 to 127), -1 for velocity 0.
+    private static final byte[] DYNAMICS = new byte[128];
+
     // Note names
     public static final String[] NOTE_NAMES = {"C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"};
 
-    // MIDI CHANNEL map
-    public static TreeMap<Integer, String> CHANNEL_LOOKUP;
+    // Number of MIDI programs (channel modes), 0 to 127
+    public static final int CHANNEL_COUNT = 128;
+
+    // Number of MIDI keys, 0 to 127
+    public static final int KEY_COUNT = 128;
+
+    // clef delineator: the first note represented in treble clef (C4). Composers are weird and
+    // transpose music in different ways, and MIDI does not have access to these transpositions,
+    // so the clef is only a "suggestion". Currently, this only supports treble/bass clef.
+    private static final int TREBLE_SWITCH = 60;
+    private static final String BASS = "BASS";
+    private static final String TREBLE = "TREBLE";
+
+    // Pitch notation and clef of every key, built once so notes only need to keep the key.
+    private static final String[] PITCH_NOTATIONS = new String[KEY_COUNT];
+    private static final String[] CLEFS = new String[KEY_COUNT];
 
-    // clef delineator
-    private final String TREBLE_SWITCH = "C4";
+    static {
+        for(int velocity = 0; velocity < DYNAMICS.length; velocity++)
+            DYNAMICS[velocity] = (byte) bucketOf(velocity);
 
-    // DO NOT CHANGE UNLESS THE SPECIFIED FILE IS IN A NEW LOCATION.
-    // This file contains the MIDI Channel Codes in a specific format. If altered, this library
-    // will no longer work.
-    private static final String PATH_NAME_FOR_CHANNELS = ".\\req\\MIDI_Channels.txt";
+        for(int key = 0; key < KEY_COUNT; key++){
+            PITCH_NOTATIONS[key] = buildPitchNotation(key);
+            CLEFS[key] = key < TREBLE_SWITCH ? BASS : TREBLE;
+        }
+    }
+
+    // DO NOT CHANGE UNLESS THE SPECIFIED FILE IS RENAMED.
+    // This file (in req, see JMidiResources) contains the MIDI Channel Codes in a specific
+    // format. If altered, this library will no longer work.
+    private static final String FILE_NAME_FOR_CHANNELS = "MIDI_Channels.txt";
+
+    // MIDI CHANNEL table, indexed by program number. The holder class is only loaded (and
+    // the file only read) the first time a name is needed; the JVM makes sure that happens
+    // once and that every thread sees the finished array.
+    private static class ChannelLookup {
+        private static final String[] NAMES = readChannelNames();
+    }
 
     // Constructor for a note before tickStop is known, aka the "NOTE ON" constructor
     public JMidiNote (long TickStart, int channelNum, int velocity, int key, int ppq) throws IOException {
@@ -85,45 +108,12 @@ public class JMidiNote implements Comparable<JMidiNote>{
         // only start a Note at tick 0.
         this.tickStop = 0;
 
-        // Initialize the channels if necessary
-        if(CHANNEL_LOOKUP == null)
-            setUpChannelLookup();
-
-        // Assumes we have a valid key for the channel
-        if(CHANNEL_LOOKUP.containsKey(channelNum))
-         channelName = CHANNEL_LOOKUP.get(channelNum);
-        else
-            // No valid key...then tell me what it is.
-            channelName = "" + channelNum;
-
-        // Set up pitch notation
-        int octave = (key / 12) - 1; // number attached to key
-        int note = key % 12; // index of NOTE_NAMES
-        if(octave >= 0)
-            // got the pitch notation
-            pitchNotation = NOTE_NAMES[note] + octave;
-        else
-            // Because MIDI is WEIRD...(negative octaves)
-            pitchNotation = NOTE_NAMES[note] + octave + " (theoretical)";
-
-        // set up clef (only BASS and TREBLE)
-        if(octave < Integer.parseInt(TREBLE_SWITCH.charAt(1) + ""))
-            clef = "BASS"; // lower than C4
-        else if(octave > Integer.parseInt(TREBLE_SWITCH.charAt(1) + ""))
-            clef = "TREBLE"; // higher than C4
-        else{
-            if(NOTE_NAMES[note].compareTo(TREBLE_SWITCH.substring(0,1)) < 0)
-                clef = "BASS"; // in octave 4 but lower than C
-            else
-                clef = "TREBLE"; // in octave 4 but higher than C
-        }
-
-
-
+        // The pitch notation, clef and channel name all come from the key and channel number
+        this.key = key;
     }
 
     // Used for temporary JMidiNotes that are actually note-off
-    // messages...channelNum must be in CHANNEL_LOOKUP or the program will fail.
+    // messages...channelNum must be a valid program number or the program will fail.
     public JMidiNote(long tickStart, int channelNum, int key, int ppq) throws IOException{
         PPQ = ppq;
         this.tickStart = tickStart;
@@ -131,23 +121,12 @@ public class JMidiNote implements Comparable<JMidiNote>{
         // isOn is false since it represents a note-off message
         isOn = false;
 
-        // Set it up if you have to.
-        if(CHANNEL_LOOKUP == null)
-            setUpChannelLookup();
-
-        //
-        if(CHANNEL_LOOKUP.containsKey(channelNum))
-            channelName = CHANNEL_LOOKUP.get(channelNum);
-        else
+        if(channelNameOf(channelNum) == null)
             throw new IllegalStateException("Cannot make note-off of a non-existent channel.");
 
-        // Set up pitch notation... same as before
-        int octave = (key / 12) - 1;
-        int note = key % 12;
-        if(octave >= 0)
-            pitchNotation = NOTE_NAMES[note] + octave;
-        else
-            pitchNotation = NOTE_NAMES[note] + octave + " (theoretical)";
+        // Same key and channel as before
+        channelNumber = channelNum;
+        this.key = key;
     }
 
     // Calculates the note length in terms of a quarter note
@@ -159,8 +138,7 @@ public class JMidiNote implements Comparable<JMidiNote>{
             throw new IllegalStateException("Cannot calculate negative note length.");
 
         // actually has a note length
-        noteInTermsOfQuarter = deltaTicks / (double) PPQ;
-        noteInTermsOfQuarter = (double)Math.round(noteInTermsOfQuarter * 1000d) / 1000d; // rounds it to 3 decimal places
+        noteInTermsOfQuarter = quarterRatioOf(deltaTicks, PPQ);
     }
 
     // Checks whether the current JMidiNote (which must be created using the note-off constructor) is the
@@ -170,9 +148,8 @@ public class JMidiNote implements Comparable<JMidiNote>{
         if(isOn)
             throw new IllegalStateException("isEndNoteOfThisNote can only be called by a note-off JMidiNote.");
 
-        // must have same pitchNotation, same Channel, and same "Tempo" (represented by PPQ)
-        return (startNote.pitchNotation.equals(pitchNotation) && channelName.equals(startNote.channelName) &&
-                startNote.PPQ == PPQ);
+        // must have same key (pitch notation), same Channel, and same "Tempo" (represented by PPQ)
+        return (startNote.key == key && startNote.channelNumber == channelNumber && startNote.PPQ == PPQ);
     }
 
     // Self-explanatory method
@@ -182,59 +159,110 @@ public class JMidiNote implements Comparable<JMidiNote>{
 
     // Sets up the dynamic of the JMidiNote using its velocity.
     private void setDynamic(int velocity){
+        dynamic = dynamicOf(velocity);
+    }
+
+    // Turns a velocity into the index of its dynamic in DYNAMIC_NAMES.
+    // note-off (velocity 0) has dynamic = -1 so we don't accidentally assign it to a dynamic value
+    public static int dynamicOf(int velocity){
+        if(velocity >= 0 && velocity < DYNAMICS.length)
+            return DYNAMICS[velocity];
+        return bucketOf(velocity);
+    }
+
+    // Works out the dynamic of a velocity (used to build DYNAMICS).
+    private static int bucketOf(int velocity){
         if(velocity == 0)
-            dynamic = -1; // note-off has dynamic = -1 so we don't accidentally assign it to a dynamic value
-        else if(velocity <= PPP){
-            dynamic = 0; // PPP
-        }
-        else if(velocity <= PP){
-            dynamic = 1; // PP
-        }
-        else if(velocity <= P){
-            dynamic = 2; // P
-        }
+            return -1;
+        else if(velocity <= PPP)
+            return 0; // PPP
+        else if(velocity <= PP)
+            return 1; // PP
+        else if(velocity <= P)
+            return 2; // P
         else if(velocity <= MP)
-            dynamic = 3; // MP
+            return 3; // MP
         else if(velocity <= MF)
-           dynamic = 4; // MF
+            return 4; // MF
         else if(velocity <= F)
-            dynamic = 5; // F
+            return 5; // F
         else if(velocity <= FF)
-            dynamic = 6; // FF
-        else if(velocity <= FFF)
-           dynamic = 7; // FFF
+            return 6; // FF
+        else
+            return 7; // FFF
     }
 
+    // Name of a dynamic returned by dynamicOf (ex: "MF").
+    public static String dynamicName(int dynamic){
+        return DYNAMIC_NAMES[dynamic];
+    }
 
+    // Turns a MIDI key into its pitch notation (ex: 60 -> C4).
+    public static String pitchNotationOf(int key){
+        if(key >= 0 && key < KEY_COUNT)
+            return PITCH_NOTATIONS[key];
+        return buildPitchNotation(key);
+    }
 
-    // Method that sets up CHANNEL_LOOKUP using the
-    // Credit to Ansh Shah for coming up with a text file to store MIDI channel information.
-    public static void setUpChannelLookup() throws FileNotFoundException {
-        // Method only does stuff if we haven't set it up already.
-        if(CHANNEL_LOOKUP == null) {
-            // Creates the TreeMap and a Scanner so we can go through the file.
-            CHANNEL_LOOKUP = new TreeMap<>();
-            Scanner channelScan = new Scanner(new File(PATH_NAME_FOR_CHANNELS));
-
-            // While the file has information..
-            while (channelScan.hasNextLine()) {
-                // Go through each line using Scanner
-                String channelInfo = channelScan.nextLine();
-                Scanner infoScanner = new Scanner(channelInfo);
-
-                // While the current line has information..
-                while (infoScanner.hasNext()) {
-                    int channelNumber = infoScanner.nextInt() - 1; // got the channel number
-                    String channelName = infoScanner.next(); // channelName
-                    CHANNEL_LOOKUP.put(channelNumber, channelName); // add it to the TreeMap
-                }
+    // Suggested clef of a MIDI key: "BASS" below C4, "TREBLE" from C4 up.
+    public static String clefOf(int key){
+        return key < TREBLE_SWITCH ? BASS : TREBLE;
+    }
 
+    // Works out the pitch notation of a key (used to build PITCH_NOTATIONS).
+    private static String buildPitchNotation(int key){
+        int octave = (key / 12) - 1; // number attached to key
+        int note = key % 12; // index of NOTE_NAMES
+        if(octave >= 0)
+            // got the pitch notation
+            return NOTE_NAMES[note] + octave;
+        else
+            // Because MIDI is WEIRD...(negative octaves)
+            return NOTE_NAMES[note] + octave + " (theoretical)";
+    }
+
+    // Ratio of a length in ticks to a quarter note, rounded to 3 decimal places.
+    public static double quarterRatioOf(long deltaTicks, int ppq){
+        double ratio = deltaTicks / (double) ppq;
+        return (double)Math.round(ratio * 1000d) / 1000d;
+    }
+
+
+
+    // Name of a MIDI program (ex: 0 -> ACOUTSTIC_GRAND_PIANO), or null if there is no such program.
+    public static String channelNameOf(int channelNumber){
+        if(channelNumber < 0 || channelNumber >= CHANNEL_COUNT)
+            return null;
+        return ChannelLookup.NAMES[channelNumber];
+    }
+
+    // Loads the channel table now instead of on first use (ex: before handing work to
+    // other threads). Calling it again does nothing.
+    public static void setUpChannelLookup(){
+        channelNameOf(0);
+    }
+
+    // Reads the channel names from the file (one "number name" pair per line, numbered from 1).
+    // Credit to Ansh Shah for coming up with a text file to store MIDI channel information.
+    private static String[] readChannelNames(){
+        String[] names = new String[CHANNEL_COUNT];
+        for(String channelInfo : JMidiResources.readLines(FILE_NAME_FOR_CHANNELS)){
+            // Go through each line using Scanner
+            Scanner infoScanner = new Scanner(channelInfo);
+
+            // While the current line has information..
+            while (infoScanner.hasNext()) {
+                int channelNumber = infoScanner.nextInt() - 1; // got the channel number
+                String channelName = infoScanner.next(); // channelName
+                if(channelNumber >= 0 && channelNumber < CHANNEL_COUNT)
+                    names[channelNumber] = channelName;
             }
         }
+        return names;
     }
 
     public String toString(){
-        return pitchNotation;
+        return pitchNotationOf(key);
     }
 
     public String getDynamic(){
@@ -249,20 +277,19 @@ public class JMidiNote implements Comparable<JMidiNote>{
     // will be changed to toDescriptiveString in version 0.2
     public String toDescriptiveString() {
         StringBuilder stringBuilder = new StringBuilder();
-        String[] DYNAMIC_NAMES = new String[]{"PPP", "PP", "P", "MP", "MF", "F", "FF", "FFF"};
 
         stringBuilder.append("Starting Tick #: ");
         stringBuilder.append(tickStart);
         stringBuilder.append("\n");
 
         stringBuilder.append("Channel Name: ");
-        stringBuilder.append(channelName);
+        stringBuilder.append(getChannelName());
         stringBuilder.append("\n");
 
         stringBuilder.append("Note: ");
-        stringBuilder.append(pitchNotation);
+        stringBuilder.append(pitchNotationOf(key));
         stringBuilder.append(" (");
-        stringBuilder.append(clef);
+        stringBuilder.append(clefOf(key));
         stringBuilder.append(")");
         stringBuilder.append("\n");
 
@@ -281,8 +308,13 @@ public class JMidiNote implements Comparable<JMidiNote>{
         return stringBuilder.toString();
     }
 
+    // Name of the channel the note is played on (its number if it has no name).
     public String getChannelName(){
-        return channelName;
+        String channelName = channelNameOf(channelNumber);
+        if(channelName != null)
+            return channelName;
+        // No valid key...then tell me what it is.
+        return "" + channelNumber;
     }
 
     // Setter for TickStop so we can update notes as we find out when they stop.
@@ -290,6 +322,11 @@ public class JMidiNote implements Comparable<JMidiNote>{
         this.tickStop = tickStop;
     }
 
+    // Getter for the MIDI key of the note (0 to 127).
+    public int getKey() {
+        return key;
+    }
+
     // Getter for TickStart so we can check what their start times are.
     public long getTickStart() {
         return tickStart;
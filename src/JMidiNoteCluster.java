@@ -0,0 +1,25 @@
+import java.util.ArrayList;
+
+/* Class that represents a group of notes that all start on the same tick
+   (ex: a chord). Notes are kept in the order they were turned off.
+ */
+public class JMidiNoteCluster implements Comparable<JMidiNoteCluster> {
+    public long startingTick;
+    public ArrayList<JMidiNote> cluster;
+
+    public JMidiNoteCluster(long start, JMidiNote firstNote){
+        startingTick = start;
+        cluster = new ArrayList<>();
+        cluster.add(firstNote);
+    }
+
+    @Override
+    public int compareTo(JMidiNoteCluster o) {
+        if(this.startingTick < o.startingTick)
+            return -1;
+        else if(this.startingTick > o.startingTick)
+            return 1;
+        else
+            return 0;
+    }
+}
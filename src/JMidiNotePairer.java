@@ -0,0 +1,181 @@
+/* Class that pairs NOTE ON messages with their NOTE OFF messages.
+   Open notes are kept in a primitive table keyed by (channel, key) so
+   finding the note that a NOTE OFF ends is a single array lookup rather
+   than a scan through every note that is still sounding. Each slot holds
+   a small ring buffer so overlapping notes of the same pitch on the same
+   channel can be closed oldest-first (FIFO) or newest-first (LIFO).
+ */
+public class JMidiNotePairer {
+
+    // MIDI values for the two messages that can end a note. A NOTE ON message
+    // with 0 velocity is treated exactly like a NOTE OFF message.
+    public static final int NOTE_ON = 0x90;
+    public static final int NOTE_OFF = 0x80;
+
+    // MIDI has 16 channels with 128 keys each, so the table has 2048 slots.
+    private static final int CHANNELS = 16;
+    private static final int KEYS = 128;
+    private static final int SLOTS = CHANNELS * KEYS;
+
+    // Starting capacity of a slot the first time a note is played on it.
+    private static final int INITIAL_SLOT_CAPACITY = 4;
+
+    // Decides which note is ended when the same pitch is sounding more than
+    // once on the same channel. FIFO ends the oldest note (what MidiTester
+    // has always done), LIFO ends the most recent one.
+    public enum PairingOrder { FIFO, LIFO }
+
+    // Callback used whenever a note has been paired with its NOTE OFF.
+    public interface PairListener {
+        void notePaired(long tickStart, long tickStop, int channel, int key, int velocity);
+    }
+
+    private final PairingOrder order;
+    private final PairListener listener;
+
+    // Per slot ring buffers: starting ticks and velocities of the open notes,
+    // where the oldest note lives at heads[slot] and there are sizes[slot] of them.
+    private final long[][] startTicks = new long[SLOTS][];
+    private final byte[][] velocities = new byte[SLOTS][];
+    private final int[] heads = new int[SLOTS];
+    private final int[] sizes = new int[SLOTS];
+
+    // Bookkeeping so clients can see how much is still sounding / never matched.
+    private int openNotes;
+    private long unmatchedNoteOffs;
+
+    // Most notes open at once so far (only kept with JMidiMetrics on)
+    private int openNotesHighWaterMark;
+
+    // Constructor for a pairer that closes the oldest matching note first.
+    public JMidiNotePairer(PairListener listener){
+        this(PairingOrder.FIFO, listener);
+    }
+
+    // Constructor that lets the client pick how overlapping notes are closed.
+    public JMidiNotePairer(PairingOrder order, PairListener listener){
+        if(order == null || listener == null)
+            throw new IllegalArgumentException("JMidiNotePairer needs a pairing order and a listener.");
+        this.order = order;
+        this.listener = listener;
+    }
+
+    // Feeds a raw channel message to the pairer. Returns true if the message
+    // was a NOTE ON/NOTE OFF (and was therefore consumed by the pairer).
+    public boolean onShortMessage(long tick, int status, int data1, int data2){
+        int command = status & 0xF0;
+        if(command == NOTE_ON && data2 != 0){
+            noteOn(tick, status & 0x0F, data1, data2);
+            return true;
+        }
+        else if(command == NOTE_OFF || command == NOTE_ON){
+            noteOff(tick, status & 0x0F, data1);
+            return true;
+        }
+        return false;
+    }
+
+    // Records that a note started at the given tick.
+    public void noteOn(long tick, int channel, int key, int velocity){
+        int slot = slot(channel, key);
+        long[] ticks = startTicks[slot];
+        int size = sizes[slot];
+
+        // First note on this slot or the ring buffer is full
+        if(ticks == null || size == ticks.length)
+            ticks = grow(slot);
+
+        int index = (heads[slot] + size) & (ticks.length - 1);
+        ticks[index] = tick;
+        velocities[slot][index] = (byte) velocity;
+        sizes[slot] = size + 1;
+        openNotes++;
+        if(JMidiMetrics.ENABLED && openNotes > openNotesHighWaterMark){
+            openNotesHighWaterMark = openNotes;
+            JMidiMetrics.openNotes(openNotes);
+        }
+    }
+
+    // Ends a note at the given tick. Returns false if nothing was sounding on
+    // that channel/key (a stray NOTE OFF), in which case it is simply counted.
+    public boolean noteOff(long tick, int channel, int key){
+        int slot = slot(channel, key);
+        int size = sizes[slot];
+        if(size == 0){
+            unmatchedNoteOffs++;
+            if(JMidiMetrics.ENABLED)
+                JMidiMetrics.unmatchedNoteOff();
+            return false;
+        }
+
+        long[] ticks = startTicks[slot];
+        int mask = ticks.length - 1;
+        int index;
+        if(order == PairingOrder.FIFO){
+            index = heads[slot];
+            heads[slot] = (index + 1) & mask;
+        }
+        else
+            index = (heads[slot] + size - 1) & mask;
+
+        sizes[slot] = size - 1;
+        openNotes--;
+
+        listener.notePaired(ticks[index], tick, channel, key, velocities[slot][index] & 0x7F);
+        return true;
+    }
+
+    // Number of notes that have started but have not been ended yet.
+    public int getOpenNotes(){
+        return openNotes;
+    }
+
+    // Number of NOTE OFF messages that did not match any open note.
+    public long getUnmatchedNoteOffs(){
+        return unmatchedNoteOffs;
+    }
+
+    // Forgets every open note (ex: at the end of a track) without pairing them.
+    public void clear(){
+        if(JMidiMetrics.ENABLED && openNotes > 0)
+            JMidiMetrics.unterminatedNotes(openNotes);
+        for(int slot = 0; slot < SLOTS; slot++){
+            heads[slot] = 0;
+            sizes[slot] = 0;
+        }
+        openNotes = 0;
+    }
+
+    // Index of the (channel, key) slot in the table.
+    private static int slot(int channel, int key){
+        return ((channel & 0x0F) << 7) | (key & 0x7F);
+    }
+
+    // Doubles the ring buffer of a slot (capacity is always a power of two),
+    // unrolling it so the oldest note ends up at index 0.
+    private long[] grow(int slot){
+        long[] oldTicks = startTicks[slot];
+        if(oldTicks == null){
+            startTicks[slot] = new long[INITIAL_SLOT_CAPACITY];
+            velocities[slot] = new byte[INITIAL_SLOT_CAPACITY];
+            heads[slot] = 0;
+            return startTicks[slot];
+        }
+
+        byte[] oldVelocities = velocities[slot];
+        int capacity = oldTicks.length;
+        long[] newTicks = new long[capacity * 2];
+        byte[] newVelocities = new byte[capacity * 2];
+        int head = heads[slot];
+        for(int i = 0; i < capacity; i++){
+            int index = (head + i) & (capacity - 1);
+            newTicks[i] = oldTicks[index];
+            newVelocities[i] = oldVelocities[index];
+        }
+
+        startTicks[slot] = newTicks;
+        velocities[slot] = newVelocities;
+        heads[slot] = 0;
+        return newTicks;
+    }
+}
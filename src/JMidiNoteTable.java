@@ -0,0 +1,384 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/* Class that stores paired notes column by column (struct-of-arrays) instead
+   of as one JMidiNote object per note. Each note is one slot in a handful of
+   growable primitive arrays, so millions of notes take a fraction of the heap
+   and iterating over them walks memory in order.
+
+   A NoteView is a small reusable cursor over the table that answers the same
+   questions as a JMidiNote (getTickStart, getDynamic, getNoteInTermsOfQuarter,
+   toString...) for whichever note it currently points at.
+ */
+public class JMidiNoteTable {
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    // Pulses per quarter note of the file the notes came from.
+    private final int PPQ;
+
+    // The columns: one entry per note.
+    private long[] tickStarts;
+    private long[] tickStops;
+    private byte[] keys;
+    private byte[] channels;
+    private byte[] velocities;
+    private short[] tracks;
+    private int size;
+
+    public JMidiNoteTable(int ppq){
+        this(ppq, DEFAULT_CAPACITY);
+    }
+
+    public JMidiNoteTable(int ppq, int initialCapacity){
+        if(initialCapacity < 1)
+            initialCapacity = 1;
+        PPQ = ppq;
+        tickStarts = new long[initialCapacity];
+        tickStops = new long[initialCapacity];
+        keys = new byte[initialCapacity];
+        channels = new byte[initialCapacity];
+        velocities = new byte[initialCapacity];
+        tracks = new short[initialCapacity];
+    }
+
+    // Adds a paired note to the end of the table and returns its index.
+    public int add(long tickStart, long tickStop, int channel, int key, int velocity, int track){
+        if(size == tickStarts.length)
+            grow(size + 1);
+
+        tickStarts[size] = tickStart;
+        tickStops[size] = tickStop;
+        channels[size] = (byte) channel;
+        keys[size] = (byte) key;
+        velocities[size] = (byte) velocity;
+        tracks[size] = (short) track;
+        return size++;
+    }
+
+    // Size in bytes of the table once written with putColumns.
+    public int columnsSize(){
+        return 4 + size * (8 + 8 + 1 + 1 + 1 + 2);
+    }
+
+    // Writes the notes column by column (bulk copies, no per-note work): the number of
+    // notes, then every tick start, tick stop, key, channel, velocity and track.
+    public void putColumns(ByteBuffer out){
+        out.putInt(size);
+        out.asLongBuffer().put(tickStarts, 0, size);
+        out.position(out.position() + 8 * size);
+        out.asLongBuffer().put(tickStops, 0, size);
+        out.position(out.position() + 8 * size);
+        out.put(keys, 0, size);
+        out.put(channels, 0, size);
+        out.put(velocities, 0, size);
+        out.asShortBuffer().put(tracks, 0, size);
+        out.position(out.position() + 2 * size);
+    }
+
+    // Reads a table written by putColumns.
+    public static JMidiNoteTable getColumns(ByteBuffer in, int ppq){
+        int size = in.getInt();
+        if(size < 0 || (long) size * 21 > in.remaining())
+            throw new IllegalArgumentException("Not enough data for " + size + " notes.");
+        JMidiNoteTable table = new JMidiNoteTable(ppq, size);
+        in.asLongBuffer().get(table.tickStarts, 0, size);
+        in.position(in.position() + 8 * size);
+        in.asLongBuffer().get(table.tickStops, 0, size);
+        in.position(in.position() + 8 * size);
+        in.get(table.keys, 0, size);
+        in.get(table.channels, 0, size);
+        in.get(table.velocities, 0, size);
+        in.asShortBuffer().get(table.tracks, 0, size);
+        in.position(in.position() + 2 * size);
+        table.size = size;
+        return table;
+    }
+
+    // Adds every note of another table (in its order) to the end of this one.
+    public void addAll(JMidiNoteTable other){
+        if(size + other.size > tickStarts.length)
+            grow(size + other.size);
+
+        System.arraycopy(other.tickStarts, 0, tickStarts, size, other.size);
+        System.arraycopy(other.tickStops, 0, tickStops, size, other.size);
+        System.arraycopy(other.channels, 0, channels, size, other.size);
+        System.arraycopy(other.keys, 0, keys, size, other.size);
+        System.arraycopy(other.velocities, 0, velocities, size, other.size);
+        System.arraycopy(other.tracks, 0, tracks, size, other.size);
+        size += other.size;
+    }
+
+    // k-way merge of tables that are each sorted by starting tick (ex: one table per
+    // track) into one sorted table. Notes starting on the same tick come from the
+    // earlier table in the list first, so merging the per-track tables of a file gives
+    // exactly what sorting one table holding every track (in order) would.
+    public static JMidiNoteTable merge(List<JMidiNoteTable> tables, int ppq){
+        long start = JMidiMetrics.ENABLED ? System.nanoTime() : 0;
+        int total = 0;
+        for(JMidiNoteTable table : tables)
+            total += table.size;
+        JMidiNoteTable merged = new JMidiNoteTable(ppq, total);
+
+        // Binary heap of table numbers, ordered by (next starting tick, table number)
+        int[] heap = new int[tables.size()];
+        int[] positions = new int[tables.size()];
+        int heapSize = 0;
+        for(int t = 0; t < tables.size(); t++){
+            if(tables.get(t).size > 0){
+                heap[heapSize] = t;
+                siftUp(heap, heapSize++, tables, positions);
+            }
+        }
+
+        while(heapSize > 0){
+            int t = heap[0];
+            JMidiNoteTable table = tables.get(t);
+            int i = positions[t]++;
+            merged.add(table.tickStarts[i], table.tickStops[i], table.channels[i], table.keys[i],
+                    table.velocities[i], table.tracks[i]);
+
+            if(positions[t] == table.size)
+                heap[0] = heap[--heapSize]; // this table is done
+            siftDown(heap, heapSize, tables, positions);
+        }
+        if(JMidiMetrics.ENABLED)
+            JMidiMetrics.CLUSTERING.record(start);
+        return merged;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    // Empties the table (keeping its capacity) so it can be refilled.
+    public void clear(){
+        size = 0;
+    }
+
+    public int getPPQ(){
+        return PPQ;
+    }
+
+    // Column getters for the note at the given index.
+    public long getTickStart(int index){
+        return tickStarts[index];
+    }
+
+    public long getTickStop(int index){
+        return tickStops[index];
+    }
+
+    public int getKey(int index){
+        return keys[index];
+    }
+
+    public int getChannel(int index){
+        return channels[index];
+    }
+
+    public int getVelocity(int index){
+        return velocities[index];
+    }
+
+    public int getTrack(int index){
+        return tracks[index];
+    }
+
+    // Sorts the notes by starting tick. The sort is stable, so notes that start on
+    // the same tick keep the order they were added in (the order they were turned off).
+    public void sortByTickStart(){
+        if(isSortedByTickStart())
+            return;
+
+        long start = JMidiMetrics.ENABLED ? System.nanoTime() : 0;
+        int[] order = new int[size];
+        for(int i = 0; i < size; i++)
+            order[i] = i;
+        mergeSort(order, new int[size], 0, size);
+
+        long[] newTickStarts = new long[tickStarts.length];
+        long[] newTickStops = new long[tickStops.length];
+        byte[] newKeys = new byte[keys.length];
+        byte[] newChannels = new byte[channels.length];
+        byte[] newVelocities = new byte[velocities.length];
+        short[] newTracks = new short[tracks.length];
+        for(int i = 0; i < size; i++){
+            int from = order[i];
+            newTickStarts[i] = tickStarts[from];
+            newTickStops[i] = tickStops[from];
+            newKeys[i] = keys[from];
+            newChannels[i] = channels[from];
+            newVelocities[i] = velocities[from];
+            newTracks[i] = tracks[from];
+        }
+
+        tickStarts = newTickStarts;
+        tickStops = newTickStops;
+        keys = newKeys;
+        channels = newChannels;
+        velocities = newVelocities;
+        tracks = newTracks;
+        if(JMidiMetrics.ENABLED)
+            JMidiMetrics.CLUSTERING.record(start);
+    }
+
+    public boolean isSortedByTickStart(){
+        for(int i = 1; i < size; i++){
+            if(tickStarts[i] < tickStarts[i - 1])
+                return false;
+        }
+        return true;
+    }
+
+    // For a table sorted by starting tick: index just past the last note of the
+    // cluster (notes starting on the same tick) that begins at index start.
+    public int clusterEnd(int start){
+        long tick = tickStarts[start];
+        int end = start + 1;
+        while(end < size && tickStarts[end] == tick)
+            end++;
+        return end;
+    }
+
+    // Creates a cursor positioned just before the first note (call next() or moveTo()).
+    public NoteView view(){
+        return new NoteView();
+    }
+
+    // Doubles the capacity of every column (or more, if needed).
+    private void grow(int minCapacity){
+        int capacity = Math.max(tickStarts.length * 2, minCapacity);
+        tickStarts = Arrays.copyOf(tickStarts, capacity);
+        tickStops = Arrays.copyOf(tickStops, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        channels = Arrays.copyOf(channels, capacity);
+        velocities = Arrays.copyOf(velocities, capacity);
+        tracks = Arrays.copyOf(tracks, capacity);
+    }
+
+    // Stable merge sort of note indices by starting tick.
+    private void mergeSort(int[] order, int[] scratch, int from, int to){
+        if(to - from < 2)
+            return;
+        int middle = (from + to) >>> 1;
+        mergeSort(order, scratch, from, middle);
+        mergeSort(order, scratch, middle, to);
+        if(tickStarts[order[middle - 1]] <= tickStarts[order[middle]])
+            return; // already in order
+
+        System.arraycopy(order, from, scratch, from, to - from);
+        int left = from;
+        int right = middle;
+        for(int i = from; i < to; i++){
+            if(right >= to || (left < middle && tickStarts[scratch[left]] <= tickStarts[scratch[right]]))
+                order[i] = scratch[left++];
+            else
+                order[i] = scratch[right++];
+        }
+    }
+
+    // Heap helpers for merge: is table a's next note before table b's?
+    private static boolean before(int a, int b, List<JMidiNoteTable> tables, int[] positions){
+        long tickA = tables.get(a).tickStarts[positions[a]];
+        long tickB = tables.get(b).tickStarts[positions[b]];
+        return tickA < tickB || (tickA == tickB && a < b);
+    }
+
+    private static void siftUp(int[] heap, int index, List<JMidiNoteTable> tables, int[] positions){
+        while(index > 0){
+            int parent = (index - 1) >>> 1;
+            if(!before(heap[index], heap[parent], tables, positions))
+                return;
+            int swap = heap[index];
+            heap[index] = heap[parent];
+            heap[parent] = swap;
+            index = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, int heapSize, List<JMidiNoteTable> tables, int[] positions){
+        int index = 0;
+        while(true){
+            int smallest = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if(left < heapSize && before(heap[left], heap[smallest], tables, positions))
+                smallest = left;
+            if(right < heapSize && before(heap[right], heap[smallest], tables, positions))
+                smallest = right;
+            if(smallest == index)
+                return;
+            int swap = heap[index];
+            heap[index] = heap[smallest];
+            heap[smallest] = swap;
+            index = smallest;
+        }
+    }
+
+    // Lightweight cursor over the table: one object that can be moved from note to
+    // note, answering the same questions a JMidiNote would for the current note.
+    public class NoteView {
+        private int index = -1;
+
+        // Moves the cursor to the note at the given index.
+        public NoteView moveTo(int index){
+            this.index = index;
+            return this;
+        }
+
+        // Moves the cursor to the next note; returns false once it has passed the last one.
+        public boolean next(){
+            return ++index < size;
+        }
+
+        public int getIndex(){
+            return index;
+        }
+
+        public long getTickStart(){
+            return tickStarts[index];
+        }
+
+        public long getTickStop(){
+            return tickStops[index];
+        }
+
+        public int getKey(){
+            return keys[index];
+        }
+
+        public int getChannel(){
+            return channels[index];
+        }
+
+        public int getVelocity(){
+            return velocities[index];
+        }
+
+        public int getTrack(){
+            return tracks[index];
+        }
+
+        public String getChannelName(){
+            String name = JMidiNote.channelNameOf(getChannel());
+            if(name != null)
+                return name;
+            return "" + getChannel();
+        }
+
+        public String getDynamic(){
+            return JMidiNote.dynamicName(JMidiNote.dynamicOf(velocities[index]));
+        }
+
+        public String getNoteInTermsOfQuarter(){
+            return "" + JMidiNote.quarterRatioOf(tickStops[index] - tickStarts[index], PPQ);
+        }
+
+        @Override
+        public String toString(){
+            return JMidiNote.pitchNotationOf(keys[index]);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/* Class that renders paired notes as a piano roll: a matrix of frames (time)
+   by the 128 MIDI keys, for tools that want pitch x time arrays. Frames are a
+   fixed number of ticks, a fraction of a quarter note (through the PPQ) or a
+   fraction of a second (through a JMidiTempoMap). A note covers every frame
+   it sounds in; notes without duration are left out.
+
+   Each cell holds one byte per channel:
+   - VELOCITY: 1 channel, the velocity of the note (the loudest one, if
+     several notes of the same key overlap), 0 when the key is silent;
+   - ONSET_SUSTAIN: 2 channels, 1 in channel 0 on the frame a note starts and
+     1 in channel 1 on every frame it sounds (including that one).
+
+   The roll is rendered a block of frames at a time (see render), so a long
+   piece never needs the whole matrix on the heap: writeDense and writeSparse
+   stream blocks through one direct buffer, and mapDense renders straight into
+   a memory-mapped file. Files start with a 36 byte header (big-endian):
+
+   "JMPR"            magic (4 bytes)
+   version           1 byte (currently 1)
+   storage           1 byte: 0 dense, 1 sparse
+   layout            1 byte: 0 VELOCITY, 1 ONSET_SUSTAIN
+   time base         1 byte: 0 ticks, 1 beats, 2 seconds
+   keys              int (128)
+   channels          int
+   ppq               int
+   rate              double: ticks per frame, frames per quarter note or frames per second
+   frame count       long
+
+   Dense data follows as frame count * keys * channels bytes; the byte of
+   (frame, key, channel) is at 36 + (frame * keys + key) * channels + channel.
+   Sparse data is one record per cell that is not all zeros, in order of frame
+   then key: frame (int), key (1 byte), then one byte per channel; a frame of -1
+   ends the records.
+ */
+public class JMidiPianoRoll {
+
+    // "JMPR" and the current version of the format
+    public static final int MAGIC = 0x4A4D5052;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 36;
+    public static final int KEY_COUNT = 128;
+
+    public static final int TIME_TICKS = 0;
+    public static final int TIME_BEATS = 1;
+    public static final int TIME_SECONDS = 2;
+
+    // Frames rendered at a time when streaming.
+    private static final int BLOCK_FRAMES = 1024;
+
+    private static final byte[] ZEROS = new byte[4096];
+
+    // What a cell holds.
+    public enum Layout {
+        VELOCITY(1),
+        ONSET_SUSTAIN(2);
+
+        private final int channels;
+
+        Layout(int channels){
+            this.channels = channels;
+        }
+
+        public int getChannels(){
+            return channels;
+        }
+    }
+
+    private final JMidiIntervalIndex index;
+    private final JMidiTempoMap tempoMap;
+    private final Layout layout;
+    private final int timeBase;
+    private final double rate;
+    private final int PPQ;
+    private final long frameCount;
+
+    private JMidiPianoRoll(JMidiNoteTable notes, JMidiTempoMap tempoMap, Layout layout, int timeBase, double rate){
+        if(!(rate > 0))
+            throw new IllegalArgumentException("The frame rate must be positive: " + rate);
+        this.index = new JMidiIntervalIndex(notes);
+        this.tempoMap = tempoMap;
+        this.layout = layout;
+        this.timeBase = timeBase;
+        this.rate = rate;
+        PPQ = notes.getPPQ();
+
+        long lastFrame = -1;
+        for(int i = 0; i < notes.size(); i++){
+            if(notes.getTickStop(i) > notes.getTickStart(i))
+                lastFrame = Math.max(lastFrame, frameOf(notes.getTickStop(i) - 1));
+        }
+        frameCount = lastFrame + 1;
+    }
+
+    // A roll whose frames are ticksPerFrame ticks long.
+    public static JMidiPianoRoll inTicks(JMidiNoteTable notes, long ticksPerFrame, Layout layout){
+        return new JMidiPianoRoll(notes, null, layout, TIME_TICKS, ticksPerFrame);
+    }
+
+    // A roll with framesPerQuarter frames per quarter note.
+    public static JMidiPianoRoll inBeats(JMidiNoteTable notes, int framesPerQuarter, Layout layout){
+        return new JMidiPianoRoll(notes, null, layout, TIME_BEATS, framesPerQuarter);
+    }
+
+    // A roll with framesPerSecond frames per second of music, following the tempo changes.
+    public static JMidiPianoRoll inSeconds(JMidiNoteTable notes, JMidiTempoMap tempoMap, double framesPerSecond, Layout layout){
+        return new JMidiPianoRoll(notes, tempoMap, layout, TIME_SECONDS, framesPerSecond);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2){
+            System.out.println("Usage: java JMidiPianoRoll <MIDI file> <output file> [--ticks N | --beats N | --fps N]"
+                    + " [--onsets] [--sparse]");
+            return;
+        }
+
+        JMidiAnalysis analysis = JMidiAnalysis.read(new JMidiFileReader(), new File(args[0]));
+        Layout layout = Layout.VELOCITY;
+        boolean sparse = false;
+        int timeBase = TIME_SECONDS;
+        double rate = 100;
+        for(int i = 2; i < args.length; i++){
+            switch(args[i]){
+                case "--ticks": timeBase = TIME_TICKS; rate = Double.parseDouble(args[++i]); break;
+                case "--beats": timeBase = TIME_BEATS; rate = Double.parseDouble(args[++i]); break;
+                case "--fps": timeBase = TIME_SECONDS; rate = Double.parseDouble(args[++i]); break;
+                case "--onsets": layout = Layout.ONSET_SUSTAIN; break;
+                case "--sparse": sparse = true; break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        JMidiPianoRoll roll;
+        if(timeBase == TIME_TICKS)
+            roll = inTicks(analysis.getNotes(), (long) rate, layout);
+        else if(timeBase == TIME_BEATS)
+            roll = inBeats(analysis.getNotes(), (int) rate, layout);
+        else
+            roll = inSeconds(analysis.getNotes(), analysis.getTempoMap(), rate, layout);
+
+        long start = System.nanoTime();
+        Path output = Paths.get(args[1]);
+        if(sparse){
+            try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                roll.writeSparse(out);
+            }
+        }
+        else
+            roll.mapDense(output);
+        System.out.println("Frames: " + roll.getFrameCount() + ", " + output.toFile().length() + " bytes in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    public long getFrameCount(){
+        return frameCount;
+    }
+
+    public Layout getLayout(){
+        return layout;
+    }
+
+    // Bytes of one frame (every key, every channel).
+    public int getFrameSize(){
+        return KEY_COUNT * layout.channels;
+    }
+
+    // Frame a tick falls in.
+    public long frameOf(long tick){
+        switch(timeBase){
+            case TIME_TICKS: return (long) Math.floor(tick / rate);
+            case TIME_BEATS: return (long) Math.floor(tick * rate / PPQ);
+            default: return (long) Math.floor(tempoMap.tickToSeconds(tick) * rate);
+        }
+    }
+
+    // A tick at or before the start of a frame (the start of a query for it).
+    private long tickBeforeFrame(long frame){
+        switch(timeBase){
+            case TIME_TICKS: return (long) Math.floor(frame * rate) - 1;
+            case TIME_BEATS: return (long) Math.floor(frame * PPQ / rate) - 1;
+            default: return tempoMap.secondsToTick(frame / rate) - 1;
+        }
+    }
+
+    // Renders frames firstFrame to firstFrame + frames - 1 as dense rows (see the layout
+    // above) into out at its position, which is moved past them. Frames past the end are
+    // silent.
+    public void render(long firstFrame, int frames, ByteBuffer out){
+        int frameSize = getFrameSize();
+        if(frames < 0 || out.remaining() < (long) frames * frameSize)
+            throw new IllegalArgumentException("The buffer cannot hold " + frames + " frames.");
+        int base = out.position();
+        int length = frames * frameSize;
+        for(int cleared = 0; cleared < length; cleared += ZEROS.length)
+            out.put(ZEROS, 0, Math.min(ZEROS.length, length - cleared));
+
+        long endFrame = firstFrame + frames;
+        JMidiNoteTable notes = index.getNotes();
+        int channels = layout.channels;
+        index.forEachOverlapping(tickBeforeFrame(firstFrame), tickBeforeFrame(endFrame + 1) + 2, note -> {
+            long onsetFrame = frameOf(notes.getTickStart(note));
+            long from = Math.max(onsetFrame, firstFrame);
+            long to = Math.min(frameOf(notes.getTickStop(note) - 1) + 1, endFrame);
+            int offset = base + (int) (from - firstFrame) * frameSize + notes.getKey(note) * channels;
+            for(long frame = from; frame < to; frame++, offset += frameSize){
+                if(layout == Layout.VELOCITY){
+                    if(notes.getVelocity(note) > out.get(offset))
+                        out.put(offset, (byte) notes.getVelocity(note));
+                }
+                else{
+                    if(frame == onsetFrame)
+                        out.put(offset, (byte) 1);
+                    out.put(offset + 1, (byte) 1);
+                }
+            }
+        });
+    }
+
+    // Writes the header and every frame, dense.
+    public void writeDense(WritableByteChannel out) throws IOException {
+        write(out, (ByteBuffer) writeHeader(ByteBuffer.allocate(HEADER_SIZE), false).flip());
+
+        ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_FRAMES * getFrameSize());
+        for(long frame = 0; frame < frameCount; frame += BLOCK_FRAMES){
+            block.clear();
+            render(frame, (int) Math.min(BLOCK_FRAMES, frameCount - frame), block);
+            block.flip();
+            write(out, block);
+        }
+    }
+
+    // Writes the header and the cells that are not silent, as sparse records.
+    public void writeSparse(WritableByteChannel out) throws IOException {
+        int channels = layout.channels;
+        int frameSize = getFrameSize();
+        ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_FRAMES * frameSize);
+        ByteBuffer records = ByteBuffer.allocateDirect(1 << 16);
+        writeHeader(records, true);
+
+        for(long frame = 0; frame < frameCount; frame += BLOCK_FRAMES){
+            int frames = (int) Math.min(BLOCK_FRAMES, frameCount - frame);
+            block.clear();
+            render(frame, frames, block);
+            for(int offset = 0; offset < frames * frameSize; offset += channels){
+                boolean silent = true;
+                for(int channel = 0; channel < channels; channel++)
+                    silent &= block.get(offset + channel) == 0;
+                if(silent)
+                    continue;
+
+                if(records.remaining() < 5 + channels){
+                    records.flip();
+                    write(out, records);
+                    records.clear();
+                }
+                records.putInt((int) (frame + offset / frameSize));
+                records.put((byte) (offset % frameSize / channels));
+                for(int channel = 0; channel < channels; channel++)
+                    records.put(block.get(offset + channel));
+            }
+        }
+        if(records.remaining() < 4){
+            records.flip();
+            write(out, records);
+            records.clear();
+        }
+        records.putInt(-1);
+        records.flip();
+        write(out, records);
+    }
+
+    // Writes the header and every frame, dense, into a memory-mapped file (rendered in
+    // place, block by block), and returns the mapping.
+    public MappedByteBuffer mapDense(Path file) throws IOException {
+        long size = HEADER_SIZE + frameCount * getFrameSize();
+        if(size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("The roll is too big to map (" + size + " bytes); use writeDense.");
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            writeHeader(map, false);
+            for(long frame = 0; frame < frameCount; frame += BLOCK_FRAMES)
+                render(frame, (int) Math.min(BLOCK_FRAMES, frameCount - frame), map);
+            map.force();
+            map.rewind();
+            return map;
+        }
+    }
+
+    private ByteBuffer writeHeader(ByteBuffer out, boolean sparse){
+        out.putInt(MAGIC);
+        out.put((byte) VERSION);
+        out.put((byte) (sparse ? 1 : 0));
+        out.put((byte) layout.ordinal());
+        out.put((byte) timeBase);
+        out.putInt(KEY_COUNT);
+        out.putInt(layout.channels);
+        out.putInt(PPQ);
+        out.putDouble(rate);
+        out.putLong(frameCount);
+        return out;
+    }
+
+    private static void write(WritableByteChannel out, ByteBuffer bytes) throws IOException {
+        while(bytes.hasRemaining())
+            out.write(bytes);
+    }
+}
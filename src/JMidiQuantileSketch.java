@@ -0,0 +1,160 @@
+/* Class that keeps an approximate distribution of positive values (ex: note
+   durations in quarter notes) so quantiles such as the median can be read
+   without keeping every value. Values are counted in logarithmic buckets:
+   bucket i holds the values from gamma^(i-1) to gamma^i, where gamma is
+   chosen so that any quantile reported is within relativeAccuracy of a real
+   value (1% by default), whatever the range of the values.
+
+   Two sketches with the same accuracy merge by adding their bucket counts, so
+   merging is exact, associative and commutative: sketches of single tracks
+   or files can be reduced in any order (ex: in parallel) into one for a
+   whole corpus and it is the same as if every value had been added to it.
+   A sketch is not thread-safe; give each thread its own and merge them.
+ */
+public class JMidiQuantileSketch {
+
+    public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+
+    private final double relativeAccuracy;
+    private final double gamma;
+    private final double inverseLogGamma;
+
+    // counts[i] is the count of bucket offset + i; values of 0 or less are only counted
+    private long[] counts = new long[0];
+    private int offset;
+    private long zeroCount;
+
+    private long count;
+    private double sum;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public JMidiQuantileSketch(){
+        this(DEFAULT_RELATIVE_ACCURACY);
+    }
+
+    public JMidiQuantileSketch(double relativeAccuracy){
+        if(!(relativeAccuracy > 0 && relativeAccuracy < 1))
+            throw new IllegalArgumentException("Relative accuracy must be between 0 and 1: " + relativeAccuracy);
+        this.relativeAccuracy = relativeAccuracy;
+        gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        inverseLogGamma = 1 / Math.log(gamma);
+    }
+
+    // Adds one value.
+    public void add(double value){
+        if(Double.isNaN(value))
+            throw new IllegalArgumentException("Cannot add NaN to a sketch.");
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        if(value <= 0){
+            zeroCount++;
+            return;
+        }
+
+        int bucket = (int) Math.ceil(Math.log(value) * inverseLogGamma);
+        if(counts.length == 0){
+            counts = new long[16];
+            offset = bucket - 8;
+        }
+        else if(bucket < offset || bucket >= offset + counts.length)
+            growTo(bucket, bucket);
+        counts[bucket - offset]++;
+    }
+
+    // Adds every value of another sketch (made with the same accuracy) to this one.
+    public JMidiQuantileSketch merge(JMidiQuantileSketch other){
+        if(other.relativeAccuracy != relativeAccuracy)
+            throw new IllegalArgumentException("Only sketches with the same accuracy can be merged.");
+        if(other.counts.length > 0){
+            if(counts.length == 0){
+                counts = other.counts.clone();
+                offset = other.offset;
+            }
+            else{
+                growTo(other.offset, other.offset + other.counts.length - 1);
+                for(int i = 0; i < other.counts.length; i++)
+                    counts[other.offset + i - offset] += other.counts[i];
+            }
+        }
+        zeroCount += other.zeroCount;
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        return this;
+    }
+
+    public double getRelativeAccuracy(){
+        return relativeAccuracy;
+    }
+
+    public long getCount(){
+        return count;
+    }
+
+    // Exact smallest, largest and mean value (0 if nothing was added).
+    public double getMin(){
+        return count == 0 ? 0 : min;
+    }
+
+    public double getMax(){
+        return count == 0 ? 0 : max;
+    }
+
+    public double getMean(){
+        return count == 0 ? 0 : sum / count;
+    }
+
+    // Value at quantile (0 to 1, ex: 0.5 for the median), within the relative accuracy.
+    // 0 if nothing was added.
+    public double getValueAtQuantile(double quantile){
+        if(quantile < 0 || quantile > 1)
+            throw new IllegalArgumentException("Quantile must be between 0 and 1: " + quantile);
+        if(count == 0)
+            return 0;
+
+        // Rank (from 0) of the value, then the bucket that holds it
+        long rank = (long) (quantile * (count - 1));
+        if(rank < zeroCount)
+            return Math.max(min, Math.min(0, max));
+        long seen = zeroCount;
+        for(int i = 0; i < counts.length; i++){
+            seen += counts[i];
+            if(seen > rank){
+                // Middle of the bucket (relative to its bounds), kept within the exact range
+                double value = 2 * Math.pow(gamma, offset + i) / (gamma + 1);
+                return Math.max(min, Math.min(value, max));
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public String toString(){
+        return String.format("count %d, min %.3f, p10 %.3f, p50 %.3f, p90 %.3f, p99 %.3f, max %.3f, mean %.3f",
+                count, getMin(), getValueAtQuantile(0.1), getValueAtQuantile(0.5), getValueAtQuantile(0.9),
+                getValueAtQuantile(0.99), getMax(), getMean());
+    }
+
+    // Makes counts cover the buckets low to high (and everything it covered before).
+    private void growTo(int low, int high){
+        int newOffset = Math.min(offset, low);
+        int newEnd = Math.max(offset + counts.length, high + 1);
+        if(newOffset == offset && newEnd == offset + counts.length)
+            return;
+
+        // Some room on the side that grew, so values creeping outward do not copy every time
+        int room = Math.max(8, (newEnd - newOffset) / 2);
+        if(newOffset < offset)
+            newOffset -= room;
+        if(newEnd > offset + counts.length)
+            newEnd += room;
+        long[] newCounts = new long[newEnd - newOffset];
+        System.arraycopy(counts, 0, newCounts, offset - newOffset, counts.length);
+        counts = newCounts;
+        offset = newOffset;
+    }
+}
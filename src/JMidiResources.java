@@ -0,0 +1,51 @@
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/* Helper that reads the constant tables in the req directory (MIDI channels,
+   control change codes and key signatures). They are looked up on the
+   classpath first (/req/<name>, so they can be bundled in a jar) and then in
+   a req directory under the working directory, on any operating system.
+ */
+class JMidiResources {
+
+    private static final String DIRECTORY = "req";
+
+    private JMidiResources(){
+    }
+
+    // Every line of a table. Only called while a table is being loaded (once per table),
+    // so a missing file is reported as an UncheckedIOException.
+    static List<String> readLines(String name){
+        try (InputStream in = open(name)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            List<String> lines = new ArrayList<>();
+            String line;
+            while((line = reader.readLine()) != null)
+                lines.add(line);
+            return lines;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static InputStream open(String name) throws IOException {
+        InputStream in = JMidiResources.class.getResourceAsStream("/" + DIRECTORY + "/" + name);
+        if(in != null)
+            return in;
+
+        Path path = Paths.get(DIRECTORY, name);
+        if(Files.isRegularFile(path))
+            return Files.newInputStream(path);
+        throw new FileNotFoundException("Cannot find " + DIRECTORY + "/" + name + " on the classpath or in " + path.toAbsolutePath());
+    }
+}
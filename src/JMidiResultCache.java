@@ -0,0 +1,268 @@
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/* Class that caches JMidiAnalysis results so a MIDI file that has not changed
+   is only decoded once. A result is keyed by the SHA-256 of the file's bytes
+   together with the library version and JMidiAnalysis.FORMAT_VERSION, so a
+   renamed or copied file still hits and a new version never reads old data.
+   When the reader has a JMidiFilter, its fingerprint is part of the key too,
+   so a filtered result is never handed out for another filter (or none).
+
+   There are two tiers, both least-recently-used and bounded in bytes:
+   - memory: the JMidiAnalysis objects themselves (sizes estimated);
+   - disk: one <key>.jma file per result in the cache directory. Recency is
+     the file's modification time, so it survives restarts. Files are written
+     to a temporary name and moved in place, so a crash never leaves a
+     half-written result behind.
+
+   The cache can be shared by several threads (ex: JMidiBatchAnalyzer's).
+
+   Run it to analyze every MIDI file in a directory through the cache:
+   java JMidiResultCache <cache directory> <directory with MIDI files>
+ */
+public class JMidiResultCache {
+
+    // Part of every key: results of another library version are never used.
+    public static final String LIBRARY_VERSION = "0.1";
+
+    private static final String EXTENSION = ".jma";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path directory;
+    private final long maxDiskBytes;
+    private final long maxMemoryBytes;
+
+    // Both tiers in access order (least recently used first): key -> size in bytes
+    private final LinkedHashMap<String, Long> diskEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, JMidiAnalysis> memoryEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskBytes;
+    private long memoryBytes;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // Opens (or creates) a cache in directory, keeping at most maxDiskBytes on disk and
+    // about maxMemoryBytes of results in memory (0 turns the memory tier off).
+    public JMidiResultCache(Path directory, long maxDiskBytes, long maxMemoryBytes) throws IOException {
+        if(maxDiskBytes < 0 || maxMemoryBytes < 0)
+            throw new IllegalArgumentException("Cache sizes cannot be negative.");
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        this.maxMemoryBytes = maxMemoryBytes;
+        Files.createDirectories(directory);
+
+        // Existing results, oldest first
+        List<File> existing;
+        try (Stream<Path> list = Files.list(directory)) {
+            existing = list.filter(path -> path.getFileName().toString().endsWith(EXTENSION))
+                    .map(Path::toFile).sorted(Comparator.comparingLong(File::lastModified))
+                    .collect(Collectors.toList());
+        }
+        for(File result : existing){
+            String name = result.getName();
+            diskEntries.put(name.substring(0, name.length() - EXTENSION.length()), result.length());
+            diskBytes += result.length();
+        }
+        evictFromDisk();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2){
+            System.out.println("Usage: java JMidiResultCache <cache directory> <directory with MIDI files>");
+            return;
+        }
+
+        JMidiResultCache cache = new JMidiResultCache(Paths.get(args[0]), 1L << 30, 256L << 20);
+        JMidiFileReader reader = new JMidiFileReader();
+        List<Path> inputs = JMidiFileReader.findMidiFiles(Paths.get(args[1]));
+
+        long start = System.nanoTime();
+        long notes = 0;
+        for(Path input : inputs)
+            notes += cache.get(reader, input.toFile()).getNotes().size();
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println("Files: " + inputs.size() + ", notes: " + notes + ", time: " + elapsed / 1_000_000 + " ms");
+        System.out.println("Memory hits: " + cache.getMemoryHits() + ", disk hits: " + cache.getDiskHits()
+                + ", misses: " + cache.getMisses());
+    }
+
+    // The analysis of a file: from memory, from disk, or (on a miss) decoded and stored in both.
+    public JMidiAnalysis get(JMidiFileReader reader, File file) throws IOException, InvalidMidiDataException {
+        ByteBuffer data = reader.open(file);
+        String key = keyOf(data, reader.getFilter());
+
+        JMidiAnalysis analysis = fromMemory(key);
+        if(analysis != null){
+            memoryHits.incrementAndGet();
+            return analysis;
+        }
+
+        analysis = fromDisk(key);
+        if(analysis != null){
+            diskHits.incrementAndGet();
+            toMemory(key, analysis);
+            return analysis;
+        }
+
+        misses.incrementAndGet();
+        JMidiAnalysis.Collector collector = new JMidiAnalysis.Collector();
+        reader.read(data, collector);
+        analysis = collector.toAnalysis();
+        toDisk(key, analysis);
+        toMemory(key, analysis);
+        return analysis;
+    }
+
+    // Drops every result (both tiers).
+    public synchronized void clear() throws IOException {
+        for(String key : diskEntries.keySet())
+            Files.deleteIfExists(pathOf(key));
+        diskEntries.clear();
+        memoryEntries.clear();
+        diskBytes = 0;
+        memoryBytes = 0;
+    }
+
+    public long getMemoryHits(){
+        return memoryHits.get();
+    }
+
+    public long getDiskHits(){
+        return diskHits.get();
+    }
+
+    public long getMisses(){
+        return misses.get();
+    }
+
+    public synchronized long getDiskBytes(){
+        return diskBytes;
+    }
+
+    public synchronized long getMemoryBytes(){
+        return memoryBytes;
+    }
+
+    // Key of a file: SHA-256 of the versions, the reader's filter (if any) and the file's bytes, in hex.
+    static String keyOf(ByteBuffer data, JMidiFilter filter){
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e); // every JVM has it
+        }
+        digest.update((LIBRARY_VERSION + "/" + JMidiAnalysis.FORMAT_VERSION + "/").getBytes(StandardCharsets.UTF_8));
+        if(filter != null)
+            digest.update(("filter " + filter.fingerprint() + "/").getBytes(StandardCharsets.UTF_8));
+        digest.update(data.duplicate());
+
+        byte[] hash = digest.digest();
+        char[] hex = new char[hash.length * 2];
+        for(int i = 0; i < hash.length; i++){
+            hex[2 * i] = HEX[(hash[i] >> 4) & 0x0F];
+            hex[2 * i + 1] = HEX[hash[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+
+    private synchronized JMidiAnalysis fromMemory(String key){
+        return memoryEntries.get(key);
+    }
+
+    private synchronized void toMemory(String key, JMidiAnalysis analysis){
+        long size = analysis.estimatedSize();
+        if(size > maxMemoryBytes || memoryEntries.containsKey(key))
+            return;
+        memoryEntries.put(key, analysis);
+        memoryBytes += size;
+
+        Iterator<Map.Entry<String, JMidiAnalysis>> oldestFirst = memoryEntries.entrySet().iterator();
+        while(memoryBytes > maxMemoryBytes && oldestFirst.hasNext()){
+            memoryBytes -= oldestFirst.next().getValue().estimatedSize();
+            oldestFirst.remove();
+        }
+    }
+
+    private JMidiAnalysis fromDisk(String key) throws IOException {
+        synchronized(this){
+            if(diskEntries.get(key) == null)
+                return null; // also marks it as recently used
+        }
+
+        Path path = pathOf(key);
+        try {
+            JMidiAnalysis analysis = JMidiAnalysis.fromByteBuffer(ByteBuffer.wrap(Files.readAllBytes(path)));
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            return analysis;
+        } catch (IOException e) {
+            // Deleted behind our back or corrupt: forget it and decode the file again
+            synchronized(this){
+                Long size = diskEntries.remove(key);
+                if(size != null)
+                    diskBytes -= size;
+            }
+            Files.deleteIfExists(path);
+            return null;
+        }
+    }
+
+    private void toDisk(String key, JMidiAnalysis analysis) throws IOException {
+        Path temporary = Files.createTempFile(directory, key, ".tmp");
+        try {
+            ByteBuffer bytes = analysis.toByteBuffer();
+            try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                while(bytes.hasRemaining())
+                    out.write(bytes);
+            }
+            long size = Files.size(temporary);
+            if(size > maxDiskBytes)
+                return;
+            Files.move(temporary, pathOf(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            synchronized(this){
+                Long previous = diskEntries.put(key, size);
+                diskBytes += size - (previous == null ? 0 : previous);
+                evictFromDisk();
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    // Deletes the least recently used results until the disk tier fits.
+    private synchronized void evictFromDisk() throws IOException {
+        Iterator<Map.Entry<String, Long>> oldestFirst = diskEntries.entrySet().iterator();
+        while(diskBytes > maxDiskBytes && oldestFirst.hasNext()){
+            Map.Entry<String, Long> oldest = oldestFirst.next();
+            Files.deleteIfExists(pathOf(oldest.getKey()));
+            diskBytes -= oldest.getValue();
+            oldestFirst.remove();
+        }
+    }
+
+    private Path pathOf(String key){
+        return directory.resolve(key + EXTENSION);
+    }
+}
@@ -0,0 +1,189 @@
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/* Class that checks JMidiFileWriter against real files: every MIDI file is
+   written back both ways and read again, and any difference is printed.
+   - events: the file read into a JMidiFileWriter must give back the same
+     events (track by track, tick, status and data bytes, meta and SysEx
+     payloads) when the copy is read;
+   - analysis: the file's JMidiAnalysis written with
+     JMidiFileWriter.write(JMidiAnalysis, ...) must give back the same notes,
+     tempos, time signatures and key signatures. The notes come back in
+     tracks numbered from 1 (track 0 is the conductor track), so tracks are
+     compared by their order instead of their number.
+
+   The copies are written to temporary files that are deleted afterwards.
+   It exits with status 1 if any file differs, so it can be run by a build:
+   java JMidiRoundTripCheck [MIDI files or directories]   (default: MIDI_Files)
+ */
+public class JMidiRoundTripCheck {
+
+    public static void main(String[] args) throws Exception {
+        List<Path> inputs = new ArrayList<>();
+        for(String arg : args.length > 0 ? args : new String[]{"MIDI_Files"}){
+            inputs.addAll(JMidiFileReader.findMidiFiles(Paths.get(arg)));
+        }
+        if(inputs.isEmpty()){
+            System.out.println("Usage: java JMidiRoundTripCheck [MIDI files or directories]");
+            System.exit(1);
+        }
+
+        int failures = 0;
+        for(Path input : inputs){
+            List<String> differences = new ArrayList<>();
+            checkEvents(input.toFile(), differences);
+            checkAnalysis(input.toFile(), differences);
+            if(differences.isEmpty())
+                System.out.println("OK   " + input);
+            else{
+                failures++;
+                System.out.println("FAIL " + input);
+                for(String difference : differences)
+                    System.out.println("     " + difference);
+            }
+        }
+        System.out.println(inputs.size() + " files, " + failures + " failed");
+        if(failures > 0)
+            System.exit(1);
+    }
+
+    // Writes every event of the file through a JMidiFileWriter and compares the events of the copy.
+    static void checkEvents(File input, List<String> differences) throws Exception {
+        JMidiFileReader reader = new JMidiFileReader();
+        EventRecorder original = new EventRecorder();
+        reader.read(input, original);
+
+        Path copy = Files.createTempFile("jmidi-events", ".mid");
+        try {
+            try (FileChannel channel = FileChannel.open(copy, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                reader.read(input, new JMidiFileWriter(channel));
+            }
+            EventRecorder written = new EventRecorder();
+            reader.read(copy.toFile(), written);
+            compare("events", original.events, written.events, differences);
+        } finally {
+            Files.deleteIfExists(copy);
+        }
+    }
+
+    // Writes the analysis of the file with JMidiFileWriter.write and compares the analysis of the copy.
+    static void checkAnalysis(File input, List<String> differences) throws Exception {
+        JMidiFileReader reader = new JMidiFileReader();
+        JMidiAnalysis original = JMidiAnalysis.read(reader, input);
+
+        Path copy = Files.createTempFile("jmidi-notes", ".mid");
+        try {
+            JMidiFileWriter.write(original, copy);
+            JMidiAnalysis written = JMidiAnalysis.read(reader, copy.toFile());
+            compare("notes", notesOf(original.getNotes()), notesOf(written.getNotes()), differences);
+            compare("tempos", temposOf(original), temposOf(written), differences);
+            compare("time signatures", timeSignaturesOf(original), timeSignaturesOf(written), differences);
+            compare("key signatures", keySignaturesOf(original), keySignaturesOf(written), differences);
+        } finally {
+            Files.deleteIfExists(copy);
+        }
+    }
+
+    // Adds the first difference between two lists (and their sizes if they differ).
+    private static void compare(String what, List<String> expected, List<String> actual, List<String> differences){
+        if(expected.size() != actual.size())
+            differences.add(what + ": " + expected.size() + " in the file, " + actual.size() + " in the copy");
+        for(int i = 0; i < Math.min(expected.size(), actual.size()); i++){
+            if(!expected.get(i).equals(actual.get(i))){
+                differences.add(what + " #" + i + ": " + expected.get(i) + " in the file, " + actual.get(i) + " in the copy");
+                return;
+            }
+        }
+    }
+
+    // One line per note, sorted, with the track replaced by its order among the tracks with notes.
+    private static List<String> notesOf(JMidiNoteTable notes){
+        Map<Integer, Integer> trackOrder = new TreeMap<>();
+        for(int i = 0; i < notes.size(); i++)
+            trackOrder.put(notes.getTrack(i), 0);
+        int order = 0;
+        for(Map.Entry<Integer, Integer> track : trackOrder.entrySet())
+            track.setValue(order++);
+
+        List<String> lines = new ArrayList<>(notes.size());
+        for(int i = 0; i < notes.size(); i++){
+            lines.add(String.format("tick %012d-%012d track %d channel %d key %d velocity %d", notes.getTickStart(i),
+                    notes.getTickStop(i), trackOrder.get(notes.getTrack(i)), notes.getChannel(i), notes.getKey(i),
+                    notes.getVelocity(i)));
+        }
+        Collections.sort(lines);
+        return lines;
+    }
+
+    private static List<String> temposOf(JMidiAnalysis analysis){
+        JMidiTempoMap tempoMap = analysis.getTempoMap();
+        List<String> lines = new ArrayList<>();
+        for(int i = 0; i < tempoMap.size(); i++)
+            lines.add("tick " + tempoMap.getTick(i) + " " + tempoMap.getMicrosecondsPerQuarter(i) + " us per quarter");
+        return lines;
+    }
+
+    private static List<String> timeSignaturesOf(JMidiAnalysis analysis){
+        JMidiMeasureIndex measureIndex = analysis.getMeasureIndex();
+        List<String> lines = new ArrayList<>();
+        for(int i = 0; i < measureIndex.size(); i++)
+            lines.add("tick " + measureIndex.getTick(i) + " " + measureIndex.getNumerator(i) + "/" + measureIndex.getDenominator(i));
+        return lines;
+    }
+
+    private static List<String> keySignaturesOf(JMidiAnalysis analysis){
+        List<String> lines = new ArrayList<>();
+        for(int i = 0; i < analysis.getKeySignatureCount(); i++)
+            lines.add("tick " + analysis.getKeySignatureTick(i) + " " + analysis.getKeySignature(i));
+        return lines;
+    }
+
+    // Handler that keeps every event as a line of text.
+    private static class EventRecorder implements JMidiEventHandler {
+        private final List<String> events = new ArrayList<>();
+        private int track;
+
+        @Override
+        public void header(int format, int numberOfTracks, int division){
+            events.add("header format " + format + " tracks " + numberOfTracks + " division " + division);
+        }
+
+        @Override
+        public void startTrack(int trackNumber, int length){
+            track = trackNumber;
+            events.add("track " + trackNumber);
+        }
+
+        @Override
+        public void shortMessage(long tick, int status, int data1, int data2){
+            events.add(String.format("track %d tick %d short %02X %02X %02X", track, tick, status, data1, data2));
+        }
+
+        @Override
+        public void metaMessage(long tick, int type, ByteBuffer data){
+            events.add(String.format("track %d tick %d meta %02X%s", track, tick, type, hexOf(data)));
+        }
+
+        @Override
+        public void sysexMessage(long tick, int status, ByteBuffer data){
+            events.add(String.format("track %d tick %d sysex %02X%s", track, tick, status, hexOf(data)));
+        }
+
+        private static String hexOf(ByteBuffer data){
+            StringBuilder hex = new StringBuilder();
+            for(int i = data.position(); i < data.limit(); i++)
+                hex.append(String.format(" %02X", data.get(i) & 0xFF));
+            return hex.toString();
+        }
+    }
+}
@@ -0,0 +1,299 @@
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/* Class that gathers statistics about MIDI files while they are decoded: it
+   is a JMidiEventHandler, so everything is counted in the one pass the reader
+   makes over the file and the notes are never gone over again. It counts
+   pitches, velocities (and through them dynamics), programs (instruments),
+   controllers and channel messages in primitive arrays, and keeps
+   JMidiQuantileSketches of the note durations and of the time between one
+   note onset and the next (the inter-onset interval), both in quarter notes.
+   Durations come from pairing the notes of each track (JMidiNotePairer), the
+   inter-onset intervals are between the distinct onset ticks of a track
+   (notes of a chord share an onset).
+
+   Statistics merge: every counter adds up and the sketches merge exactly, so
+   statistics of single tracks or files can be reduced in any order (ex: in
+   parallel) into the statistics of a whole corpus without reading anything
+   again. One instance must only be fed by one thread at a time.
+
+   Run it to get the statistics of every MIDI file in a directory tree:
+   java JMidiStatistics <directory with MIDI files>
+ */
+public class JMidiStatistics implements JMidiEventHandler {
+
+    private static final int KEYS = 128;
+    private static final String[] COMMAND_NAMES = {"NOTE OFF", "NOTE ON", "POLYPHONIC PRESSURE", "CONTROL CHANGE",
+            "PROGRAM CHANGE", "CHANNEL PRESSURE", "PITCH BEND"};
+
+    // Shown for each histogram in toString().
+    private static final int TOP_ENTRIES = 10;
+
+    private long files;
+    private long failedFiles;
+    private long tracks;
+    private long notes;
+    private long metaMessages;
+    private long sysexMessages;
+
+    // Indexed by MIDI key, velocity, program, controller and (command >> 4) - 8
+    private final long[] pitches = new long[KEYS];
+    private final long[] velocities = new long[KEYS];
+    private final long[] programs = new long[KEYS];
+    private final long[] controllers = new long[KEYS];
+    private final long[] commands = new long[COMMAND_NAMES.length];
+
+    // In quarter notes
+    private final JMidiQuantileSketch durations = new JMidiQuantileSketch();
+    private final JMidiQuantileSketch interOnsetIntervals = new JMidiQuantileSketch();
+
+    // State of the file and track being decoded
+    private int ppq;
+    private long lastOnset = -1;
+    private final JMidiNotePairer pairer = new JMidiNotePairer((tickStart, tickStop, channel, key, velocity) ->
+            durations.add((tickStop - tickStart) / (double) ppq));
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1){
+            System.out.println("Usage: java JMidiStatistics <directory with MIDI files>");
+            return;
+        }
+
+        List<Path> inputs = JMidiFileReader.findMidiFiles(Paths.get(args[0]));
+
+        // Tables the parallel stream's threads would otherwise race to load
+        JMidiNote.setUpChannelLookup();
+        JMidiControl.initMessageSet();
+
+        // One JMidiStatistics per file (on whichever thread reads it), reduced by merging
+        long start = System.nanoTime();
+        JMidiFileReader reader = new JMidiFileReader();
+        JMidiStatistics corpus = inputs.parallelStream().collect(JMidiStatistics::new,
+                (statistics, input) -> statistics.merge(readFile(reader, input)), JMidiStatistics::merge);
+        System.out.print(corpus);
+        System.out.println("Time: " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    // Statistics of one file; a file that cannot be read counts as failed.
+    public static JMidiStatistics readFile(JMidiFileReader reader, Path file){
+        JMidiStatistics statistics = new JMidiStatistics();
+        try {
+            reader.read(file.toFile(), statistics);
+        } catch (IOException | InvalidMidiDataException | RuntimeException e) {
+            statistics = failedFile();
+        }
+        return statistics;
+    }
+
+    // Statistics of a file that could not be read, to merge with the others so it is counted.
+    public static JMidiStatistics failedFile(){
+        JMidiStatistics statistics = new JMidiStatistics();
+        statistics.failedFiles = 1;
+        return statistics;
+    }
+
+    // Statistics of one file decoded with one JMidiStatistics per track (see
+    // JMidiFileReader.readInParallel), merged once every track is done.
+    public static JMidiStatistics readInParallel(JMidiFileReader reader, ByteBuffer data, Executor executor)
+            throws InvalidMidiDataException {
+        List<JMidiFileReader.TrackChunk> chunks = reader.findTracks(data);
+        JMidiStatistics[] perTrack = new JMidiStatistics[chunks.size()];
+        reader.readInParallel(data, chunks, trackNumber -> perTrack[trackNumber] = new JMidiStatistics(), executor);
+
+        JMidiStatistics statistics = new JMidiStatistics();
+        for(JMidiStatistics track : perTrack){
+            if(track != null)
+                statistics.merge(track);
+        }
+        statistics.files = 1; // every track saw the header
+        return statistics;
+    }
+
+    // Adds everything another JMidiStatistics counted to this one, and returns this one.
+    public JMidiStatistics merge(JMidiStatistics other){
+        files += other.files;
+        failedFiles += other.failedFiles;
+        tracks += other.tracks;
+        notes += other.notes;
+        metaMessages += other.metaMessages;
+        sysexMessages += other.sysexMessages;
+        add(pitches, other.pitches);
+        add(velocities, other.velocities);
+        add(programs, other.programs);
+        add(controllers, other.controllers);
+        add(commands, other.commands);
+        durations.merge(other.durations);
+        interOnsetIntervals.merge(other.interOnsetIntervals);
+        return this;
+    }
+
+    @Override
+    public void header(int format, int numberOfTracks, int division){
+        files++;
+        ppq = division; // durations are only measured with a PPQ based division
+    }
+
+    @Override
+    public void startTrack(int trackNumber, int length){
+        tracks++;
+        pairer.clear();
+        lastOnset = -1;
+    }
+
+    @Override
+    public void shortMessage(long tick, int status, int data1, int data2){
+        int command = status & 0xF0;
+        commands[(command >> 4) - 8]++;
+
+        if(command == JMidiTranscriber.NOTE_ON && data2 != 0){
+            notes++;
+            pitches[data1]++;
+            velocities[data2]++;
+            if(tick > lastOnset){
+                if(lastOnset >= 0 && hasPPQ())
+                    interOnsetIntervals.add((tick - lastOnset) / (double) ppq);
+                lastOnset = tick;
+            }
+        }
+        else if(command == JMidiTranscriber.PROGRAM_CHANGE)
+            programs[data1]++;
+        else if(command == JMidiTranscriber.MIDI_CONTROL_CHANGE)
+            controllers[data1]++;
+
+        if(hasPPQ())
+            pairer.onShortMessage(tick, status, data1, data2);
+    }
+
+    @Override
+    public void metaMessage(long tick, int type, ByteBuffer data){
+        metaMessages++;
+    }
+
+    @Override
+    public void sysexMessage(long tick, int status, ByteBuffer data){
+        sysexMessages++;
+    }
+
+    public long getFiles(){
+        return files;
+    }
+
+    public long getFailedFiles(){
+        return failedFiles;
+    }
+
+    public long getTracks(){
+        return tracks;
+    }
+
+    public long getNotes(){
+        return notes;
+    }
+
+    // Number of notes started with a MIDI key / velocity, and of program and control changes
+    // to a program / controller.
+    public long getPitchCount(int key){
+        return pitches[key];
+    }
+
+    public long getVelocityCount(int velocity){
+        return velocities[velocity];
+    }
+
+    public long getProgramCount(int program){
+        return programs[program];
+    }
+
+    public long getControllerCount(int controller){
+        return controllers[controller];
+    }
+
+    // Number of notes started with a dynamic (index in JMidiNote.dynamicName).
+    public long getDynamicCount(int dynamic){
+        long count = 0;
+        for(int velocity = 1; velocity < KEYS; velocity++){
+            if(JMidiNote.dynamicOf(velocity) == dynamic)
+                count += velocities[velocity];
+        }
+        return count;
+    }
+
+    public JMidiQuantileSketch getDurations(){
+        return durations;
+    }
+
+    public JMidiQuantileSketch getInterOnsetIntervals(){
+        return interOnsetIntervals;
+    }
+
+    // Report of everything counted (the TOP_ENTRIES most common entries of each histogram).
+    @Override
+    public String toString(){
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append("Files: ").append(files).append(" (").append(failedFiles).append(" failed)\n");
+        stringBuilder.append("Tracks: ").append(tracks).append("\n");
+        stringBuilder.append("Notes: ").append(notes).append("\n");
+        stringBuilder.append("Meta messages: ").append(metaMessages).append(", SysEx messages: ").append(sysexMessages).append("\n");
+
+        stringBuilder.append("Channel messages:\n");
+        for(int command = 0; command < commands.length; command++){
+            if(commands[command] > 0)
+                stringBuilder.append("  ").append(COMMAND_NAMES[command]).append(": ").append(commands[command]).append("\n");
+        }
+
+        stringBuilder.append("Pitches:\n");
+        for(int key : top(pitches))
+            stringBuilder.append("  ").append(JMidiNote.pitchNotationOf(key)).append(": ").append(pitches[key]).append("\n");
+
+        stringBuilder.append("Dynamics:\n");
+        for(int dynamic = 0; dynamic <= JMidiNote.dynamicOf(KEYS - 1); dynamic++)
+            stringBuilder.append("  ").append(JMidiNote.dynamicName(dynamic)).append(": ").append(getDynamicCount(dynamic)).append("\n");
+
+        stringBuilder.append("Instruments:\n");
+        for(int program : top(programs))
+            stringBuilder.append("  ").append(JMidiNote.channelNameOf(program)).append(": ").append(programs[program]).append("\n");
+
+        stringBuilder.append("Controllers:\n");
+        for(int controller : top(controllers))
+            stringBuilder.append("  ").append(JMidiControl.codeNameOf(controller)).append(": ").append(controllers[controller]).append("\n");
+
+        stringBuilder.append("Durations (quarter notes): ").append(durations).append("\n");
+        stringBuilder.append("Inter-onset intervals (quarter notes): ").append(interOnsetIntervals).append("\n");
+        return stringBuilder.toString();
+    }
+
+    private boolean hasPPQ(){
+        return ppq > 0 && (ppq & 0x8000) == 0;
+    }
+
+    private static void add(long[] to, long[] from){
+        for(int i = 0; i < to.length; i++)
+            to[i] += from[i];
+    }
+
+    // Indices of the TOP_ENTRIES largest counts that are not 0, largest first.
+    private static int[] top(long[] counts){
+        int[] top = new int[TOP_ENTRIES];
+        int size = 0;
+        for(int i = 0; i < counts.length; i++){
+            if(counts[i] == 0 || (size == TOP_ENTRIES && counts[i] <= counts[top[size - 1]]))
+                continue;
+            // Insertion into the sorted list (ties keep the lower index first)
+            int position = Math.min(size, TOP_ENTRIES - 1);
+            while(position > 0 && counts[top[position - 1]] < counts[i]){
+                top[position] = top[position - 1];
+                position--;
+            }
+            top[position] = i;
+            size = Math.min(size + 1, TOP_ENTRIES);
+        }
+        return Arrays.copyOf(top, size);
+    }
+}
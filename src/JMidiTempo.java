@@ -1,3 +1,5 @@
+import java.nio.ByteBuffer;
+
 /* Class that represents a Tempo MIDI message.
    Allows client to no longer require original MIDI data to
    determine what the tempo at a given time/tick is.
@@ -11,14 +13,22 @@ public class JMidiTempo {
     private final double TICKS_PER_SECOND; // Ticks per Second
     private final double SECONDS_PER_TICK; // Alternatively, Seconds per Tick
     private final long START_TICK; // The starting tick of the current tempo (since tempos can change)
+    private final int MICROSECONDS_PER_QUARTER; // The exact tempo as stored in the MIDI file
 
     // Constructor for the JMidiTempo object which takes in the starting tick,
     // the PPQ, and the rest of the MIDI information. Allows client to disregard
     // MIDI information after object is built.
     public JMidiTempo(long startTick, int ppq, byte[] tempoInfo){
+        this(startTick, ppq, ByteBuffer.wrap(tempoInfo));
+    }
+
+    // Same as above but reads the tempo straight from the file (ex: a slice handed
+    // out by JMidiFileReader) without copying it.
+    public JMidiTempo(long startTick, int ppq, ByteBuffer tempoInfo){
         PPQ = ppq;
         // tempo is given in hexadecimal values representing microseconds per quarter note
-        int tempoInt = (tempoInfo[0] & 0xff) << 16 | (tempoInfo[1] & 0xff) << 8 | (tempoInfo[2] & 0xff);
+        int tempoInt = microsecondsPerQuarterOf(tempoInfo);
+        MICROSECONDS_PER_QUARTER = tempoInt;
 
         // this turns it to beats per minute
         BEATS_PER_MINUTE = 60_000_000 / tempoInt;
@@ -30,6 +40,19 @@ public class JMidiTempo {
         START_TICK = startTick;
     }
 
+    // Reads the microseconds per quarter note out of the data of a SET TEMPO message.
+    public static int microsecondsPerQuarterOf(ByteBuffer tempoInfo){
+        return (tempoInfo.get(0) & 0xff) << 16 | (tempoInfo.get(1) & 0xff) << 8 | (tempoInfo.get(2) & 0xff);
+    }
+
+    public int getMicrosecondsPerQuarter(){
+        return MICROSECONDS_PER_QUARTER;
+    }
+
+    public long getStartTick(){
+        return START_TICK;
+    }
+
     // Prints it out in a human readable (though inefficient) manner,
     // will be changed to toDescriptiveString in version 0.2
     @Override
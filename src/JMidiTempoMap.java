@@ -0,0 +1,232 @@
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* Class that combines every tempo change of a file into one map so ticks can
+   be placed in wall-clock time (and back). It is built once from all SET TEMPO
+   meta events (format 1 files keep them in the first, "conductor" track, but
+   every track is looked at) and precomputes the time at which each tempo
+   starts, so a conversion is a binary search plus one multiplication.
+
+   Times are kept exactly: the map works with the microseconds per quarter note
+   stored in the file (not the rounded BEATS_PER_MINUTE of JMidiTempo), and the
+   starting time of each tempo is kept in units of microseconds * PPQ so no
+   rounding error builds up from one tempo to the next.
+ */
+public class JMidiTempoMap {
+
+    // Tempo MIDI uses until the first SET TEMPO message: 120 BPM.
+    public static final int DEFAULT_MICROSECONDS_PER_QUARTER = 500_000;
+
+    private final int PPQ;
+
+    // One entry per tempo, in order of tick. startTimes[i] is the time tempo i
+    // starts at, in microseconds * PPQ.
+    private final long[] ticks;
+    private final int[] microsecondsPerQuarter;
+    private final long[] startTimes;
+
+    // Builds the map from count tempo changes (tick, microseconds per quarter note) in any
+    // order. When several changes share a tick, the last one wins. If there is no change
+    // at tick 0, the default tempo is used until the first one.
+    public JMidiTempoMap(int ppq, long[] changeTicks, int[] changeTempos, int count){
+        if(ppq <= 0 || (ppq & 0x8000) != 0)
+            throw new IllegalArgumentException("JMidiTempoMap needs a PPQ based division, not " + ppq);
+        PPQ = ppq;
+
+        // Sorts the changes by tick, keeping the order of changes that share a tick
+        Integer[] order = new Integer[count];
+        for(int i = 0; i < count; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(changeTicks[a], changeTicks[b]));
+
+        long[] sortedTicks = new long[count + 1];
+        int[] sortedTempos = new int[count + 1];
+        sortedTicks[0] = 0;
+        sortedTempos[0] = DEFAULT_MICROSECONDS_PER_QUARTER;
+        int size = 1;
+        for(int i = 0; i < count; i++){
+            long tick = changeTicks[order[i]];
+            int tempo = changeTempos[order[i]];
+            if(tempo <= 0)
+                throw new IllegalArgumentException("Tempo must be positive: " + tempo);
+
+            if(tick == sortedTicks[size - 1])
+                sortedTempos[size - 1] = tempo; // same tick: the later change wins
+            else{
+                sortedTicks[size] = tick;
+                sortedTempos[size] = tempo;
+                size++;
+            }
+        }
+
+        ticks = Arrays.copyOf(sortedTicks, size);
+        microsecondsPerQuarter = Arrays.copyOf(sortedTempos, size);
+        startTimes = new long[size];
+        for(int i = 1; i < size; i++)
+            startTimes[i] = startTimes[i - 1] + (ticks[i] - ticks[i - 1]) * microsecondsPerQuarter[i - 1];
+    }
+
+    // Reads every SET TEMPO message of a MIDI file into a tempo map.
+    public static JMidiTempoMap read(JMidiFileReader reader, File file) throws IOException, InvalidMidiDataException {
+        Collector collector = new Collector();
+        reader.read(file, collector);
+        return collector.toTempoMap();
+    }
+
+    public int getPPQ(){
+        return PPQ;
+    }
+
+    // Number of tempos in the map (including the default one if the file has no tempo at tick 0).
+    public int size(){
+        return ticks.length;
+    }
+
+    public long getTick(int index){
+        return ticks[index];
+    }
+
+    public int getMicrosecondsPerQuarter(int index){
+        return microsecondsPerQuarter[index];
+    }
+
+    // Microseconds per quarter note in effect at the given tick.
+    public int getMicrosecondsPerQuarterAt(long tick){
+        return microsecondsPerQuarter[indexOfTick(tick)];
+    }
+
+    // Time of a tick since the start of the file, in microseconds.
+    public double tickToMicroseconds(long tick){
+        return scaledTime(tick, indexOfTick(tick)) / (double) PPQ;
+    }
+
+    // Time of a tick since the start of the file, in seconds.
+    public double tickToSeconds(long tick){
+        return scaledTime(tick, indexOfTick(tick)) / (PPQ * 1e6);
+    }
+
+    // Tick at a given time since the start of the file (in microseconds), rounded down.
+    public long microsecondsToTick(double microseconds){
+        if(microseconds <= 0)
+            return 0;
+        double scaled = microseconds * PPQ;
+
+        // Last tempo starting at or before that time
+        int low = 0;
+        int high = startTimes.length - 1;
+        while(low < high){
+            int middle = (low + high + 1) >>> 1;
+            if(startTimes[middle] <= scaled)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        return ticks[low] + (long) Math.floor((scaled - startTimes[low]) / microsecondsPerQuarter[low]);
+    }
+
+    // Tick at a given time since the start of the file (in seconds), rounded down.
+    public long secondsToTick(double seconds){
+        return microsecondsToTick(seconds * 1e6);
+    }
+
+    // Converts count ticks (from ticks[from]) to seconds in one sweep: while the ticks
+    // go up, the current tempo is found by walking forward instead of searching again.
+    // Unsorted input still works, it just falls back to a binary search when a tick goes back.
+    public void ticksToSeconds(long[] ticks, int from, int count, double[] seconds, int to){
+        double scale = PPQ * 1e6;
+        int index = 0;
+        long previous = Long.MIN_VALUE;
+        for(int i = 0; i < count; i++){
+            long tick = ticks[from + i];
+            if(tick < previous)
+                index = indexOfTick(tick);
+            else{
+                while(index + 1 < this.ticks.length && this.ticks[index + 1] <= tick)
+                    index++;
+            }
+            seconds[to + i] = scaledTime(tick, index) / scale;
+            previous = tick;
+        }
+    }
+
+    // Converts every tick of an array to seconds (see above).
+    public double[] ticksToSeconds(long[] ticks){
+        double[] seconds = new double[ticks.length];
+        ticksToSeconds(ticks, 0, ticks.length, seconds, 0);
+        return seconds;
+    }
+
+    // Index of the tempo in effect at the given tick (binary search).
+    private int indexOfTick(long tick){
+        int low = 0;
+        int high = ticks.length - 1;
+        while(low < high){
+            int middle = (low + high + 1) >>> 1;
+            if(ticks[middle] <= tick)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        return low;
+    }
+
+    // Time of a tick in microseconds * PPQ, given the tempo in effect at that tick.
+    private long scaledTime(long tick, int index){
+        return startTimes[index] + (tick - ticks[index]) * microsecondsPerQuarter[index];
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append("TEMPO MAP (PPQ ");
+        stringBuilder.append(PPQ);
+        stringBuilder.append("):\n");
+        for(int i = 0; i < ticks.length; i++){
+            stringBuilder.append("Tick #: ");
+            stringBuilder.append(ticks[i]);
+            stringBuilder.append(" (");
+            stringBuilder.append(startTimes[i] / (PPQ * 1e6));
+            stringBuilder.append(" s): ");
+            stringBuilder.append(microsecondsPerQuarter[i]);
+            stringBuilder.append(" microseconds per quarter note\n");
+        }
+        return stringBuilder.toString();
+    }
+
+    // Handler that collects the SET TEMPO messages of every track of a file.
+    public static class Collector implements JMidiEventHandler {
+        private int ppq;
+        private long[] ticks = new long[16];
+        private int[] tempos = new int[16];
+        private int count;
+
+        @Override
+        public void header(int format, int numberOfTracks, int division){
+            ppq = division;
+        }
+
+        @Override
+        public void metaMessage(long tick, int type, ByteBuffer data){
+            if(type != JMidiTranscriber.SET_TEMPO || data.limit() < 3)
+                return;
+            int tempo = JMidiTempo.microsecondsPerQuarterOf(data);
+            if(tempo == 0)
+                return; // broken message, the previous tempo stays in effect
+
+            if(count == ticks.length){
+                ticks = Arrays.copyOf(ticks, count * 2);
+                tempos = Arrays.copyOf(tempos, count * 2);
+            }
+            ticks[count] = tick;
+            tempos[count] = tempo;
+            count++;
+        }
+
+        public JMidiTempoMap toTempoMap(){
+            return new JMidiTempoMap(ppq, ticks, tempos, count);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+import java.io.PrintStream;
+
+/* Class that writes note clusters in the human readable layout MidiTester
+   has always printed, one cluster per line:
+   starting tick,[channels],[notes],[dynamics],[ratios to quarter note]
+   Each line is built in one StringBuilder and printed with a single call.
+ */
+public class JMidiTextClusterWriter implements JMidiClusterWriter {
+
+    private final PrintStream out;
+    private final StringBuilder line = new StringBuilder();
+
+    public JMidiTextClusterWriter(PrintStream out){
+        this.out = out;
+    }
+
+    @Override
+    public void writeCluster(JMidiNoteTable notes, int start, int end){
+        JMidiNoteTable.NoteView note = notes.view();
+        line.setLength(0);
+        line.append(notes.getTickStart(start)).append(",[");
+        for(int i = start; i < end; i++)
+            line.append(notes.getChannel(i)).append(',');
+
+        line.append("],[");
+        for(int i = start; i < end; i++)
+            line.append(note.moveTo(i)).append(',');
+
+        line.append("],[");
+        for(int i = start; i < end; i++)
+            line.append(note.moveTo(i).getDynamic()).append(',');
+
+        line.append("],[");
+        for(int i = start; i < end; i++)
+            line.append(note.moveTo(i).getNoteInTermsOfQuarter()).append(',');
+
+        line.append(']');
+        out.println(line);
+    }
+
+    @Override
+    public void flush(){
+        out.flush();
+    }
+
+    // The PrintStream belongs to the caller (ex: System.out), so it is only flushed.
+    @Override
+    public void close(){
+        out.flush();
+    }
+}
@@ -1,3 +1,5 @@
+import java.nio.ByteBuffer;
+
 /* Class that represents a MIDI Time Signature message.
    Allows client to no longer require original MIDI data to
    determine what the time signature at a given tick/note is.
@@ -12,14 +14,29 @@ public class JMidiTimeSign {
 
     // Constructor using MIDI data.
     public JMidiTimeSign(byte[] data){
+        this(ByteBuffer.wrap(data));
+    }
+
+    // Constructor using MIDI data straight from the file (ex: a slice handed out by
+    // JMidiFileReader), read from index 0 to the buffer's limit without copying it.
+    public JMidiTimeSign(ByteBuffer data){
         // Must have all four values for it to be a valid Time Signature Message
-        if(data.length != 4)
+        if(data.limit() != 4)
             throw new IllegalArgumentException("MIDI data for Time Signature must be 4 bytes long");// to follow MIDI guidelines
 
-        numerator = data[0];
-        denominator = ((int) Math.pow(2, data[1])); // denom = 2^second data value
-        midiTicksPerMetronomeClick = data[2];
-        _32ndNotesPerMidiQuarterNote = data[3];
+        numerator = data.get(0);
+        denominator = ((int) Math.pow(2, data.get(1))); // denom = 2^second data value
+        midiTicksPerMetronomeClick = data.get(2);
+        _32ndNotesPerMidiQuarterNote = data.get(3);
+    }
+
+    // Getters for the parts of the time signature (ex: 6/8 has numerator 6, denominator 8).
+    public int getNumerator(){
+        return numerator;
+    }
+
+    public int getDenominator(){
+        return denominator;
     }
 
     // Prints it out in a human readable (though inefficient) manner,
@@ -0,0 +1,397 @@
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/* Class that indexes where the events of a MIDI file are, so a range of ticks
+   can be decoded without decoding everything before it (ex: a 30 second
+   excerpt of a long orchestral file). For every track it keeps checkpoints:
+   the byte offset of an event in the file, the tick of the event before it
+   and the running status there, which is all the reader needs to start
+   decoding at that event. There is a checkpoint at the start of each track
+   and at the first event after every checkpointTicks ticks (by default 4
+   quarter notes, a measure of 4/4).
+
+   JMidiFileReader.readTicks starts each track at its last checkpoint before
+   the range and stops once the track is past it, so the cost is the range
+   plus at most one checkpoint interval per track, not the whole file.
+
+   Building an index walks over every event once without decoding it. forFile
+   saves the index next to the MIDI file (<file>.jmti) and uses that sidecar
+   from then on, as long as the file's size and modification time are what
+   they were when it was built.
+
+   Run it to get an excerpt of a file, transcribed or written as a MIDI file:
+   java JMidiTrackIndex <MIDI file> <from tick> <to tick> [output MIDI file]
+ */
+public class JMidiTrackIndex {
+
+    public static final int MAGIC = 0x4A4D5449; // "JMTI"
+    public static final int VERSION = 1;
+    public static final String EXTENSION = ".jmti";
+
+    // Default spacing of the checkpoints, in quarter notes (or in ticks for SMPTE timing)
+    public static final int DEFAULT_CHECKPOINT_QUARTERS = 4;
+    public static final int DEFAULT_SMPTE_CHECKPOINT_TICKS = 1000;
+
+    private static final int HEADER_CHUNK = 0x4D546864; // "MThd"
+    private static final int TRACK_CHUNK = 0x4D54726B; // "MTrk"
+
+    // The file the index was built from (both 0 when it was built from a buffer)
+    private long fileSize;
+    private long lastModified;
+
+    private final long checkpointTicks;
+
+    // Per track: where its events are (from the start of the file) and its first checkpoint;
+    // firstCheckpoints has one more entry, the number of checkpoints
+    private final int[] chunkOffsets;
+    private final int[] chunkLengths;
+    private final int[] firstCheckpoints;
+
+    // Per checkpoint: offset of the event from the start of the file, tick of the event
+    // before it (0 at the start of a track) and the running status before it
+    private final int[] offsets;
+    private final long[] ticks;
+    private final byte[] statuses;
+
+    private JMidiTrackIndex(long checkpointTicks, int[] chunkOffsets, int[] chunkLengths, int[] firstCheckpoints,
+                            int[] offsets, long[] ticks, byte[] statuses){
+        this.checkpointTicks = checkpointTicks;
+        this.chunkOffsets = chunkOffsets;
+        this.chunkLengths = chunkLengths;
+        this.firstCheckpoints = firstCheckpoints;
+        this.offsets = offsets;
+        this.ticks = ticks;
+        this.statuses = statuses;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 3){
+            System.out.println("Usage: java JMidiTrackIndex <MIDI file> <from tick> <to tick> [output MIDI file]");
+            return;
+        }
+
+        File file = new File(args[0]);
+        long fromTick = Long.parseLong(args[1]);
+        long toTick = Long.parseLong(args[2]);
+        JMidiTrackIndex index = forFile(file);
+        System.err.println("Tracks: " + index.getTrackCount() + ", checkpoints: " + index.getCheckpointCount()
+                + " (every " + index.getCheckpointTicks() + " ticks)");
+
+        JMidiFileReader reader = new JMidiFileReader();
+        ByteBuffer data = reader.open(file);
+        if(args.length >= 4){
+            try (FileChannel out = FileChannel.open(new File(args[3]).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                reader.readTicks(data, index, fromTick, toTick, new JMidiFileWriter(out));
+            }
+        }
+        else{
+            PrintStream out = System.out;
+            reader.readTicks(data, index, fromTick, toTick, new JMidiTranscriber(out));
+            out.flush();
+        }
+    }
+
+    // Index of a MIDI file, from its sidecar (<file>.jmti) if it has one that is up to date,
+    // else built and saved as its sidecar. If the sidecar cannot be written (ex: the directory
+    // is read-only) the index is still returned, it is just built again next time.
+    public static JMidiTrackIndex forFile(File file) throws IOException, InvalidMidiDataException {
+        Path sidecar = new File(file.getPath() + EXTENSION).toPath();
+        long fileSize = file.length();
+        long lastModified = file.lastModified();
+
+        if(Files.isRegularFile(sidecar)){
+            try {
+                JMidiTrackIndex index = fromByteBuffer(ByteBuffer.wrap(Files.readAllBytes(sidecar)));
+                if(index.fileSize == fileSize && index.lastModified == lastModified)
+                    return index;
+            } catch (IOException e) {
+                // Unreadable or from another version: built again below
+            }
+        }
+
+        JMidiTrackIndex index = build(new JMidiFileReader().open(file));
+        index.fileSize = fileSize;
+        index.lastModified = lastModified;
+        try {
+            index.save(sidecar);
+        } catch (IOException e) {
+            // The index works the same without its sidecar
+        }
+        return index;
+    }
+
+    // Index of a file in memory (from the buffer's position), with the default checkpoints.
+    public static JMidiTrackIndex build(ByteBuffer data) throws InvalidMidiDataException {
+        int division = data.remaining() >= 14 ? data.getShort(data.position() + 12) & 0xFFFF : 0;
+        boolean ppq = division > 0 && (division & 0x8000) == 0;
+        return build(data, ppq ? (long) division * DEFAULT_CHECKPOINT_QUARTERS : DEFAULT_SMPTE_CHECKPOINT_TICKS);
+    }
+
+    // Index of a file in memory with a checkpoint every checkpointTicks ticks (at most).
+    public static JMidiTrackIndex build(ByteBuffer data, long checkpointTicks) throws InvalidMidiDataException {
+        if(checkpointTicks < 1)
+            throw new IllegalArgumentException("Checkpoints must be at least 1 tick apart: " + checkpointTicks);
+
+        int base = data.position();
+        List<JMidiFileReader.TrackChunk> chunks = new JMidiFileReader().findTracks(data);
+        int[] chunkOffsets = new int[chunks.size()];
+        int[] chunkLengths = new int[chunks.size()];
+        int[] firstCheckpoints = new int[chunks.size() + 1];
+        Checkpoints checkpoints = new Checkpoints();
+        for(JMidiFileReader.TrackChunk chunk : chunks){
+            chunkOffsets[chunk.trackNumber] = chunk.offset - base;
+            chunkLengths[chunk.trackNumber] = chunk.length;
+            firstCheckpoints[chunk.trackNumber] = checkpoints.size;
+            scanTrack(data, base, chunk.offset, chunk.offset + chunk.length, checkpointTicks, checkpoints);
+        }
+        firstCheckpoints[chunks.size()] = checkpoints.size;
+
+        return new JMidiTrackIndex(checkpointTicks, chunkOffsets, chunkLengths, firstCheckpoints,
+                Arrays.copyOf(checkpoints.offsets, checkpoints.size), Arrays.copyOf(checkpoints.ticks, checkpoints.size),
+                Arrays.copyOf(checkpoints.statuses, checkpoints.size));
+    }
+
+    public int getTrackCount(){
+        return chunkOffsets.length;
+    }
+
+    public long getCheckpointTicks(){
+        return checkpointTicks;
+    }
+
+    // Number of checkpoints, of every track.
+    public int getCheckpointCount(){
+        return offsets.length;
+    }
+
+    // Where the events of a track are: offset from the start of the file and length in bytes.
+    public int getTrackOffset(int track){
+        return chunkOffsets[track];
+    }
+
+    public int getTrackLength(int track){
+        return chunkLengths[track];
+    }
+
+    // The last checkpoint of a track from which every event at tick or after is still ahead:
+    // the last one after an event before tick, or the start of the track.
+    public int checkpointBefore(int track, long tick){
+        int low = firstCheckpoints[track] + 1;
+        int high = firstCheckpoints[track + 1];
+        while(low < high){
+            int middle = (low + high) >>> 1;
+            if(ticks[middle] < tick)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low - 1;
+    }
+
+    // Offset from the start of the file of the event at a checkpoint, the tick of the event
+    // before it and the running status to decode it with.
+    public int getCheckpointOffset(int checkpoint){
+        return offsets[checkpoint];
+    }
+
+    public long getCheckpointTick(int checkpoint){
+        return ticks[checkpoint];
+    }
+
+    public int getCheckpointStatus(int checkpoint){
+        return statuses[checkpoint] & 0xFF;
+    }
+
+    // True if the track chunks of the file in data (from its position) are where this index
+    // says they are. Only the chunk headers are looked at.
+    public boolean matches(ByteBuffer data){
+        int base = data.position();
+        if(data.limit() - base < 14 || data.getInt(base) != HEADER_CHUNK)
+            return false;
+        for(int track = 0; track < chunkOffsets.length; track++){
+            int header = base + chunkOffsets[track] - 8;
+            if(header < base || (long) header + 8 + chunkLengths[track] > data.limit()
+                    || data.getInt(header) != TRACK_CHUNK || data.getInt(header + 4) != chunkLengths[track])
+                return false;
+        }
+        return true;
+    }
+
+    // Writes the index to a file (to a temporary file first, then moved in place).
+    public void save(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            ByteBuffer bytes = toByteBuffer();
+            try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                while(bytes.hasRemaining())
+                    out.write(bytes);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    // The index in its binary form (big-endian): magic, version, size and modification time
+    // of the file, checkpoint spacing, counts, then the tracks and the checkpoints.
+    public ByteBuffer toByteBuffer(){
+        int tracks = chunkOffsets.length;
+        ByteBuffer out = ByteBuffer.allocate(40 + tracks * 12 + offsets.length * 13);
+        out.putInt(MAGIC).putInt(VERSION);
+        out.putLong(fileSize).putLong(lastModified).putLong(checkpointTicks);
+        out.putInt(tracks).putInt(offsets.length);
+        for(int track = 0; track < tracks; track++)
+            out.putInt(chunkOffsets[track]).putInt(chunkLengths[track]).putInt(firstCheckpoints[track]);
+        for(int i = 0; i < offsets.length; i++)
+            out.putInt(offsets[i]).putLong(ticks[i]).put(statuses[i]);
+        out.flip();
+        return out;
+    }
+
+    // Reads an index written by toByteBuffer.
+    public static JMidiTrackIndex fromByteBuffer(ByteBuffer in) throws IOException {
+        try {
+            if(in.getInt() != MAGIC)
+                throw new IOException("Not a track index.");
+            int version = in.getInt();
+            if(version != VERSION)
+                throw new IOException("Unsupported track index version: " + version);
+            long fileSize = in.getLong();
+            long lastModified = in.getLong();
+            long checkpointTicks = in.getLong();
+            int tracks = in.getInt();
+            int count = in.getInt();
+            if(tracks < 0 || count < tracks || (long) tracks * 12 + (long) count * 13 > in.remaining())
+                throw new IOException("Corrupt track index.");
+
+            int[] chunkOffsets = new int[tracks];
+            int[] chunkLengths = new int[tracks];
+            int[] firstCheckpoints = new int[tracks + 1];
+            for(int track = 0; track < tracks; track++){
+                chunkOffsets[track] = in.getInt();
+                chunkLengths[track] = in.getInt();
+                firstCheckpoints[track] = in.getInt();
+                if(firstCheckpoints[track] < (track == 0 ? 0 : firstCheckpoints[track - 1] + 1))
+                    throw new IOException("Corrupt track index.");
+            }
+            firstCheckpoints[tracks] = count;
+            if(tracks > 0 && firstCheckpoints[tracks - 1] >= count)
+                throw new IOException("Corrupt track index.");
+
+            int[] offsets = new int[count];
+            long[] ticks = new long[count];
+            byte[] statuses = new byte[count];
+            for(int i = 0; i < count; i++){
+                offsets[i] = in.getInt();
+                ticks[i] = in.getLong();
+                statuses[i] = in.get();
+            }
+
+            JMidiTrackIndex index = new JMidiTrackIndex(checkpointTicks, chunkOffsets, chunkLengths, firstCheckpoints,
+                    offsets, ticks, statuses);
+            index.fileSize = fileSize;
+            index.lastModified = lastModified;
+            return index;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Corrupt track index.", e);
+        }
+    }
+
+    // Walks over the events of a track chunk (bytes start to end - 1) the way JMidiFileReader
+    // decodes them, adding a checkpoint at the start and at the first event after every
+    // checkpointTicks ticks.
+    private static void scanTrack(ByteBuffer data, int base, int start, int end, long checkpointTicks,
+                                  Checkpoints checkpoints) throws InvalidMidiDataException {
+        int position = start;
+        long tick = 0;
+        int runningStatus = 0;
+        long nextCheckpoint = checkpointTicks;
+        checkpoints.add(position - base, 0, 0);
+
+        while(position < end){
+            if(tick >= nextCheckpoint){
+                checkpoints.add(position - base, tick, runningStatus);
+                nextCheckpoint = (tick / checkpointTicks + 1) * checkpointTicks;
+            }
+
+            // Delta time (variable-length quantity)
+            long delta = 0;
+            int b;
+            do{
+                if(position >= end)
+                    throw truncated(position - base);
+                b = data.get(position++) & 0xFF;
+                delta = (delta << 7) | (b & 0x7F);
+            } while((b & 0x80) != 0);
+            tick += delta;
+
+            if(position >= end)
+                throw truncated(position - base);
+            int status = data.get(position) & 0xFF;
+            if(status == JMidiFileReader.META || status == JMidiFileReader.SYSEX
+                    || status == JMidiFileReader.SYSEX_CONTINUATION){
+                position += status == JMidiFileReader.META ? 2 : 1;
+                int length = 0;
+                do{
+                    if(position >= end)
+                        throw truncated(position - base);
+                    b = data.get(position++) & 0xFF;
+                    length = (length << 7) | (b & 0x7F);
+                } while((b & 0x80) != 0);
+                if(length < 0 || length > end - position)
+                    throw truncated(position - base);
+                position += length;
+            }
+            else{
+                if(status >= 0x80){
+                    if(status > 0xEF)
+                        throw new InvalidMidiDataException("Unexpected status byte " + status + " at byte " + (position - base));
+                    runningStatus = status;
+                    position++;
+                }
+                else if(runningStatus == 0)
+                    throw new InvalidMidiDataException("Data byte without a status byte at byte " + (position - base));
+                int command = runningStatus & 0xF0;
+                position += command == 0xC0 || command == 0xD0 ? 1 : 2;
+            }
+        }
+        if(position > end)
+            throw truncated(end - base);
+    }
+
+    private static InvalidMidiDataException truncated(int position){
+        return new InvalidMidiDataException("Track chunk ends in the middle of an event at byte " + position);
+    }
+
+    // Growable checkpoint arrays used while building.
+    private static class Checkpoints {
+        private int[] offsets = new int[64];
+        private long[] ticks = new long[64];
+        private byte[] statuses = new byte[64];
+        private int size;
+
+        private void add(int offset, long tick, int status){
+            if(size == offsets.length){
+                offsets = Arrays.copyOf(offsets, size * 2);
+                ticks = Arrays.copyOf(ticks, size * 2);
+                statuses = Arrays.copyOf(statuses, size * 2);
+            }
+            offsets[size] = offset;
+            ticks[size] = tick;
+            statuses[size++] = (byte) status;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/* Class that transcribes the events of a MIDI file into the human readable
+   output MidiTester has always printed. It is a JMidiEventHandler, so it is
+   driven directly by JMidiFileReader and never needs a javax.sound.midi
+   object. Notes are paired with JMidiNotePairer and stored in a
+   JMidiNoteTable; once the whole file has been read the table is sorted
+   and its clusters (notes starting on the same tick) are handed to a
+   JMidiClusterWriter (the text layout by default).
+
+   Notes are paired track by track, so transcribeInParallel can give every
+   track its own transcriber on an executor and k-way merge their note tables
+   afterwards; its output is byte for byte the same as the sequential one.
+ */
+public class JMidiTranscriber implements JMidiEventHandler {
+
+    // Variables that represent the MIDI value for various types of MIDI messages.
+    // Depending on the type of MIDI file, some choose to format a NOTE_OFF message
+    // using the NOTE_OFF tag or simply a NOTE_ON message with 0 velocity.
+    public static final int NOTE_ON = 0x90;
+    public static final int NOTE_OFF = 0x80;
+    public static final int MIDI_CONTROL_CHANGE = 0xB0; // Header for control change messages
+    public static final int PROGRAM_CHANGE = 0xC0; // Header for program (instrument/channel) change messages
+
+    // Variables that represent MIDI values for various meta-messages.
+    public static final int TIME_SIGNATURE = 0x58;
+    public static final int KEY_SIGNATURE = 0x59;
+    public static final int TRACK_NAME = 0x03;
+    public static final int RANDOM_TEXT = 0x01;
+    public static final int SET_TEMPO = 0x51;
+    public static final int END_OF_TRACK = 0x2F;
+    public static final int MIDI_PORT_MESSAGE = 0x21;
+
+    // Where the transcription is printed and where the clusters are written
+    private final PrintStream out;
+    private final JMidiClusterWriter clusterWriter;
+
+    // Pulses per quarter note of the file, known once the header has been read.
+    private int ppq;
+
+    // Pairs each note with the message that turns it off and the table the paired notes end up in.
+    private JMidiNotePairer notesPlayed;
+    private JMidiNoteTable notes;
+    private int currentTrack;
+
+    // Prints everything, clusters included, to out.
+    public JMidiTranscriber(PrintStream out){
+        this(out, new JMidiTextClusterWriter(out));
+    }
+
+    // Prints the events to out but writes the clusters with the given writer (null: the
+    // clusters are not written, ex: for a track whose notes are merged with the others').
+    public JMidiTranscriber(PrintStream out, JMidiClusterWriter clusterWriter){
+        this.out = out;
+        this.clusterWriter = clusterWriter;
+    }
+
+    // Getter for the notes paired so far (sorted by starting tick once the file has been read).
+    public JMidiNoteTable getNotes(){
+        return notes;
+    }
+
+    @Override
+    public void header(int format, int numberOfTracks, int division){
+        ppq = division;
+        notes = new JMidiNoteTable(ppq);
+        notesPlayed = new JMidiNotePairer(new NoteCollector());
+    }
+
+    @Override
+    public void startTrack(int trackNumber, int length){
+        // Notes are paired within a track, never across tracks
+        currentTrack = trackNumber;
+        notesPlayed.clear();
+        out.println("Track " + (trackNumber + 1) + ": size = " + length + " bytes");
+        out.println();
+    }
+
+    @Override
+    public void shortMessage(long tick, int status, int data1, int data2){
+        // Is it a note on/off message? (NOTE_OFF or a NOTE_ON with 0 velocity)
+        // The pairer finds the matching note in constant time and hands it to
+        // the NoteCollector once it has been turned off.
+        if(notesPlayed.onShortMessage(tick, status, data1, data2))
+            return;
+
+        int command = status & 0xF0;
+        // Is it a MIDI Program Change Message?
+        if (command == PROGRAM_CHANGE) {
+            out.print("Select Channel Mode: ");
+            out.print(JMidiNote.channelNameOf(data1));
+            out.println();
+        }
+        // Is it a MIDI Control Change Message?
+        else if (command == MIDI_CONTROL_CHANGE) {
+            JMidiControl control = new JMidiControl(data1, data2);
+            out.print(control);
+            out.println();
+            out.println();
+        }
+    }
+
+    @Override
+    public void metaMessage(long tick, int type, ByteBuffer data){
+        // Is it a time signature message?
+        if (type == TIME_SIGNATURE) {
+            JMidiTimeSign time = new JMidiTimeSign(data);
+            out.println("Tick #: " + tick + time);
+        }
+        // Is it a key signature message?
+        else if (type == KEY_SIGNATURE) {
+            JMidiKeySign.JKeySignature keySign = JMidiKeySign.findKey(data);
+            out.println(keySign);
+        }
+        // Is it a tempo message?
+        else if (type == SET_TEMPO) {
+            JMidiTempo midiTempo = new JMidiTempo(tick, ppq, data);
+            out.println(midiTempo);
+        }
+        // End of Track message?
+        else if (type == END_OF_TRACK) {
+            JMidiControl mes = new JMidiControl();
+            out.println(mes);
+            out.println();
+        }
+        // MIDI port message?
+        else if (type == MIDI_PORT_MESSAGE) {
+            out.println("MIDI Port: " + (data.get(0) + 1));
+        }
+        // Random text/track name?
+        else if (type == TRACK_NAME || type == RANDOM_TEXT) {
+            out.println("TRACK NAME:");
+            for (int i = 0; i < data.limit(); i++)
+                out.print((char) data.get(i));
+            out.println();
+        }
+        // No idea...
+        else
+            out.print("Type of MetaMessage: " + type);
+
+        out.println();
+    }
+
+    @Override
+    public void endFile(){
+        notes.sortByTickStart();
+        if(clusterWriter == null)
+            return;
+        long start = JMidiMetrics.ENABLED ? System.nanoTime() : 0;
+        try {
+            clusterWriter.writeClusters(notes);
+            clusterWriter.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if(JMidiMetrics.ENABLED)
+            JMidiMetrics.OUTPUT.record(start);
+    }
+
+    // Transcribes a file with every track decoded and paired on the given executor
+    // (ex: ForkJoinPool.commonPool()). Each track is printed to its own buffer and the
+    // buffers are written out in track order, followed by the clusters of the merged
+    // note table, so the output is identical to reading the file sequentially.
+    // Returns the merged note table (sorted by starting tick).
+    public static JMidiNoteTable transcribeInParallel(JMidiFileReader reader, File file, PrintStream out,
+                                                      Executor executor) throws IOException, InvalidMidiDataException {
+        return transcribeInParallel(reader, file, out, new JMidiTextClusterWriter(out), executor);
+    }
+
+    // Same as above, but the clusters are written with the given writer.
+    public static JMidiNoteTable transcribeInParallel(JMidiFileReader reader, File file, PrintStream out,
+                                                      JMidiClusterWriter clusterWriter, Executor executor)
+            throws IOException, InvalidMidiDataException {
+        ByteBuffer data = reader.open(file);
+        List<JMidiFileReader.TrackChunk> chunks = reader.findTracks(data);
+        int trackCount = chunks.size();
+
+        // The lookup tables are shared by every track, so they are loaded before
+        // the tracks are handed out (a missing table then fails here, not in a track).
+        JMidiNote.setUpChannelLookup();
+        JMidiKeySign.initList();
+        JMidiControl.initMessageSet();
+
+        ByteArrayOutputStream[] buffers = new ByteArrayOutputStream[trackCount];
+        JMidiTranscriber[] transcribers = new JMidiTranscriber[trackCount];
+        for(int i = 0; i < trackCount; i++){
+            buffers[i] = new ByteArrayOutputStream();
+            PrintStream trackOut = new PrintStream(buffers[i]);
+            transcribers[i] = new JMidiTranscriber(trackOut, null); // the clusters come from the merged table
+        }
+        reader.readInParallel(data, chunks, trackNumber -> transcribers[trackNumber], executor);
+
+        List<JMidiNoteTable> tables = new ArrayList<>();
+        int ppq = 0;
+        for(int i = 0; i < trackCount; i++){
+            if(transcribers[i].notes == null)
+                continue; // track skipped by the reader's filter
+            ppq = transcribers[i].ppq;
+            transcribers[i].out.flush();
+            buffers[i].writeTo(out);
+            transcribers[i].notes.sortByTickStart();
+            tables.add(transcribers[i].notes);
+        }
+
+        JMidiNoteTable merged = JMidiNoteTable.merge(tables, ppq);
+        long start = JMidiMetrics.ENABLED ? System.nanoTime() : 0;
+        clusterWriter.writeClusters(merged);
+        clusterWriter.flush();
+        if(JMidiMetrics.ENABLED)
+            JMidiMetrics.OUTPUT.record(start);
+        return merged;
+    }
+
+    // Listener that stores every note paired by JMidiNotePairer in the note table.
+    private class NoteCollector implements JMidiNotePairer.PairListener {
+        @Override
+        public void notePaired(long tickStart, long tickStop, int channel, int key, int velocity) {
+            notes.add(tickStart, tickStop, channel, key, velocity, currentTrack);
+        }
+    }
+}